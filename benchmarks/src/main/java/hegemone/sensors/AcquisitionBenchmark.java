@@ -0,0 +1,94 @@
+package hegemone.sensors;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/* driver and Sensors hot paths on the untimed simulated buses.
+   The integration time is cut to one ADC step so the driver does not
+   wait out a measurement; run with -prof gc to see allocations per operation. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AcquisitionBenchmark {
+    private AcquisitionPipeline pipeline;
+    private SimulatedOneWire oneWire;
+    private Sensors sensors;
+    private Spectrometer spectrometer;
+    private final int[] flux = new int[10];
+    private final int[] rlqi = new int[3];
+    private final SpectralIndices indices = new SpectralIndices();
+    private final double[] values = new double[Sensors.SPECTRAL.size()];
+    private long timestamp;
+    private LinkedHashMap<String, Integer> spectralData;
+    private final StringBuilder json = new StringBuilder(2048);
+
+    @Setup
+    public void setup() throws Exception {
+        pipeline = new AcquisitionPipeline();
+        oneWire = SimulatedOneWire.hegemoneBoard(Files.createTempDirectory("hegemone-w1").toFile());
+        sensors = new Sensors(pipeline, SimulatedI2CBus.hegemoneBoard(false), oneWire.getBusMaster());
+        spectrometer = sensors.getSpectralSensor();
+        spectrometer.setIntegrationTime(0, 0);
+        spectralData = spectrometer.spectralData();
+        spectrometer.getPhotonFlux(flux);
+        timestamp = System.currentTimeMillis() * 1000;
+    }
+
+    @TearDown
+    public void tearDown() {
+        pipeline.close();
+        oneWire.close();
+    }
+
+    @Benchmark
+    public int[] getPhotonFlux() {
+        spectrometer.getPhotonFlux(flux);
+        return flux;
+    }
+
+    @Benchmark
+    public int[] getPhotonFluxAllocating() {
+        return spectrometer.getPhotonFlux();
+    }
+
+    @Benchmark
+    public Object getRLQIMap() {
+        return spectrometer.getRLQI(spectralData);
+    }
+
+    @Benchmark
+    public int[] getRLQI() {
+        spectrometer.getRLQI(flux, rlqi);
+        return rlqi;
+    }
+
+    /* every index of a sample, RLQI included */
+    @Benchmark
+    public double[] spectralIndices() {
+        timestamp += 1_000_000;
+        indices.compute(flux, 1, timestamp, values, flux.length);
+        return values;
+    }
+
+    @Benchmark
+    public Sample readSpectral() {
+        return sensors.readSpectral(System.currentTimeMillis() * 1000);
+    }
+
+    /* what sensorsToJSON used to do for the I2C sensors: read and serialize.
+       The DS18B20 read waits for a conversion and is left out. */
+    @Benchmark
+    public int sensorsToJSON() {
+        long t = System.currentTimeMillis() * 1000;
+        json.setLength(0);
+        sensors.readSpectral(t).toJSON(json);
+        sensors.readLight(t).toJSON(json);
+        return json.length();
+    }
+}
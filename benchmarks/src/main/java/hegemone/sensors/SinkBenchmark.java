@@ -0,0 +1,64 @@
+package hegemone.sensors;
+
+import io.questdb.cutlass.line.LineUdpSender;
+import io.questdb.network.Net;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/* serialization and delivery side: JSON and ILP encoding of a spectral
+   sample and the DataSubmitter fan-out to three consumers */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SinkBenchmark {
+    private static final int QUESTDB_PORT = 9009;
+    private Sample sample;
+    private final StringBuilder json = new StringBuilder(2048);
+    private QuestDBConsumer questdb;
+    private LineUdpSender sender;
+
+    @Setup
+    public void setup() {
+        var values = new double[Sensors.SPECTRAL.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 1000 + 37 * i;
+        }
+        sample = new Sample("PlantyPlantMonitor", System.currentTimeMillis() * 1000, Sensors.SPECTRAL, values);
+        questdb = new QuestDBConsumer("127.0.0.1", QUESTDB_PORT, QuestDBConsumer.Protocol.UDP);
+        /* nobody listens, rows go out as datagrams whenever the buffer fills */
+        sender = new LineUdpSender(Net.parseIPv4("0.0.0.0"), Net.parseIPv4("127.0.0.1"), QUESTDB_PORT, 64 * 1024, 1);
+        for (int i = 0; i < 3; i++) {
+            DataSubmitter.register(new DataConsumer() {
+                @Override
+                public void accept(Sample s) {
+                }
+            });
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        sender.close();
+        DataSubmitter.shutdown(1000);
+    }
+
+    @Benchmark
+    public int sampleToJSON() {
+        json.setLength(0);
+        return sample.toJSON(json).length();
+    }
+
+    @Benchmark
+    public void questDBLine() {
+        questdb.writeRow(sender, sample);
+    }
+
+    @Benchmark
+    public void dataSubmitterFanOut() {
+        DataSubmitter.submit(sample);
+    }
+}
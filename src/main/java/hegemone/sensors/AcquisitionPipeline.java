@@ -0,0 +1,86 @@
+package hegemone.sensors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+
+/* per-bus acquisition executors
+ *
+ * Every I2C bus has an owner thread, and all reads of the devices on it
+ * go through that thread, executed strictly in submission order. The
+ * owner is the only thread that touches the bus file descriptor, so the
+ * transfers of two drivers never interleave. Different buses have
+ * different owners and are sampled in parallel; a Pi 4 can have five
+ * (i2c-1, 3, 4, 5, 6). 1-Wire masters get an owner each as well (their
+ * reads mostly wait for the kernel to finish a conversion), running in
+ * parallel with the I2C work.
+ *
+ * Buses are named as in DeviceRegistry; i2c() and oneWire() without a
+ * name are the owners of the default bus, DEFAULT_BUS.
+ */
+class AcquisitionPipeline implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.pipeline");
+    public static final String DEFAULT_BUS = "main";
+    private final Map<String, ExecutorService> i2cOwners = new ConcurrentHashMap<>();
+    private final Map<String, ExecutorService> oneWireOwners = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    public ExecutorService i2c() {
+        return i2c(DEFAULT_BUS);
+    }
+
+    /* the owner of an I2C bus, started on first use */
+    public ExecutorService i2c(String bus) {
+        return owner(i2cOwners, "hegemone-i2c-", bus);
+    }
+
+    public ExecutorService oneWire() {
+        return oneWire(DEFAULT_BUS);
+    }
+
+    public ExecutorService oneWire(String bus) {
+        return owner(oneWireOwners, "hegemone-w1-", bus);
+    }
+
+    public <T> CompletableFuture<T> onI2C(Supplier<T> read) {
+        return CompletableFuture.supplyAsync(read, i2c());
+    }
+
+    public <T> CompletableFuture<T> onI2C(String bus, Supplier<T> read) {
+        return CompletableFuture.supplyAsync(read, i2c(bus));
+    }
+
+    public <T> CompletableFuture<T> onOneWire(Supplier<T> read) {
+        return CompletableFuture.supplyAsync(read, oneWire());
+    }
+
+    private ExecutorService owner(Map<String, ExecutorService> owners, String prefix, String bus) {
+        if (closed) {
+            throw new IllegalStateException("acquisition pipeline is closed");
+        }
+        return owners.computeIfAbsent(bus, b -> Executors.newSingleThreadExecutor(daemon(prefix + b)));
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        i2cOwners.values().forEach(ExecutorService::shutdown);
+        oneWireOwners.values().forEach(ExecutorService::shutdown);
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            var t = new Thread(r, name);
+            t.setDaemon(true);
+            t.setUncaughtExceptionHandler((th, e) -> logger.error("Uncaught exception on {}", th.getName(), e));
+            return t;
+        };
+    }
+}
@@ -10,33 +10,24 @@ import hegemone.sensors.Utils;
 
 
 class AmbientLight {
-	private static I2CBuffer oneBuf;
-	private static I2CBuffer twoBuf;
-	private static I2CBuffer threeBuf;
-	private static I2CBuffer fourBuf;
-	private static volatile I2CBus i2cBus;
+	private final I2CBuffer oneBuf = new I2CBuffer(1);
+	private final I2CBuffer twoBuf = new I2CBuffer(2);
+	private final I2CBuffer threeBuf = new I2CBuffer(3);
+	private final I2CBuffer fourBuf = new I2CBuffer(4);
+	private final I2CPort i2cBus;
 	private static final long I2C_WAIT = 500l;
 	private static final int ALS_CONFIG = 0x00;
 	private static final int WHITE_REG = 0x05;
-	private static final int ALS_REG = 0x04;  // unused
+	private static final int ALS_REG = 0x04;
 	/* merged into 0x12 0x13 configuration */
 	private static final int ALS_INTEGRATION_25 = 0x0C;
 	private static final int ALS_GAIN_1_8 = 0x02;
-		
-	static {
-		try {
-			oneBuf = new I2CBuffer(1);
-			twoBuf = new I2CBuffer(2);
-			threeBuf = new I2CBuffer(3);
-			fourBuf = new I2CBuffer(4);
-		} catch (Exception e) {
-			System.err.println("Failed to initialize read-write buffers");
-			System.exit(1);
-		}
-	}
 				
-	public AmbientLight(I2CBus bus) {
+	private final I2CRegisters registers;
+
+	public AmbientLight(I2CPort bus) {
 		i2cBus = bus;
+		registers = new I2CRegisters(bus, DeviceTree.ADAFRUIT_AMBIENT_LIGHT_SENSOR, true);
 	}
 	public void configure() {
 		/* set 1/8 gain, integration time 25 ms */
@@ -56,18 +47,21 @@ class AmbientLight {
 	public int getWhiteLight() {
 		int ret=0;
 		try {
-			ByteBuffer buf = ByteBuffer.allocate(2);
 			// returned data is always little endian
-			buf.order(ByteOrder.LITTLE_ENDIAN);
-			buf.put(Utils.read_register(i2cBus,
-					      DeviceTree.ADAFRUIT_AMBIENT_LIGHT_SENSOR,
-					      WHITE_REG,
-					      2));
-			// get from index 0 as position advances using put()
-			ret = Short.toUnsignedInt(buf.getShort(0));
+			ret = registers.readWord(WHITE_REG);
 		} catch (IOException e) {
 			System.err.println("Could not get white light data from ambient light sensor.");
 		}
 		return ret;
 	}
+	/* the ALS channel, what dumps/veml7700_i2c_trace.log reads */
+	public int getAmbientLight() {
+		int ret=0;
+		try {
+			ret = registers.readWord(ALS_REG);
+		} catch (IOException e) {
+			System.err.println("Could not get ambient light data from ambient light sensor.");
+		}
+		return ret;
+	}
 }
@@ -0,0 +1,232 @@
+package hegemone.sensors;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/* passes on a sample only when one of its channels changed meaningfully
+ *
+ * Channels are filtered by name, each with a Rule; a sample passes when
+ * any of its filtered channels asks for it, whole, since a schema always
+ * carries all its channels. Schemas without filtered channels pass
+ * untouched. Per device and schema, against the last sample passed on:
+ *
+ *   deadband        the value moved by more than the deviation
+ *   swinging door   the values since do not fit between two lines through
+ *                   the last passed value +- the deviation any more, i.e.
+ *                   no straight line from it stays within the deviation of
+ *                   every one of them; the sample before is passed on, so
+ *                   a slow drift costs a sample per bend and not per step
+ *
+ * The deviation is the larger of the absolute threshold and the relative
+ * one times the last passed value. A channel turning NaN or back always
+ * passes, after the held sample if there is one, and after maxSilenceMs without a sample passed the next one goes
+ * out as a heartbeat. Holding the last passed value (deadband) or drawing
+ * lines between the passed ones (swinging door) stays within about the
+ * deviation of what was suppressed. Swinging door holds back the last
+ * suppressed sample, so a bend shows up one sample late; the held sample
+ * of a sensor that stops is never sent.
+ */
+public class ChangeFilter implements SampleStage {
+    public static final long DEFAULT_MAX_SILENCE_MS = TimeUnit.MINUTES.toMillis(15);
+
+    public record Rule(double absolute, double relative, boolean swingingDoor) {
+        public Rule {
+            if (!(absolute >= 0 && relative >= 0)) {
+                throw new IllegalArgumentException("thresholds must not be negative: " + absolute + ", " + relative);
+            }
+        }
+
+        public static Rule deadband(double absolute, double relative) {
+            return new Rule(absolute, relative, false);
+        }
+
+        public static Rule swingingDoor(double absolute, double relative) {
+            return new Rule(absolute, relative, true);
+        }
+
+        double deviation(double reference) {
+            return Math.max(absolute, relative * Math.abs(reference));
+        }
+    }
+
+    private record Key(String device, SampleSchema schema) {
+    }
+
+    private static final Rule[] NONE = {};
+
+    private final long maxSilenceUs;
+    private final Map<String, Rule> rules;
+    /* rules by channel index, NONE for schemas without filtered channels */
+    private final Map<SampleSchema, Rule[]> schemas = new HashMap<>();
+    private final Map<Key, Door> doors = new HashMap<>();
+    private final Metrics.Counter passed;
+    private final Metrics.Counter suppressed;
+
+    public ChangeFilter(Map<String, Rule> rules) {
+        this(rules, DEFAULT_MAX_SILENCE_MS);
+    }
+
+    public ChangeFilter(Map<String, Rule> rules, long maxSilenceMs) {
+        if (maxSilenceMs <= 0) {
+            throw new IllegalArgumentException("maximum silence must be positive");
+        }
+        this.rules = Map.copyOf(rules);
+        this.maxSilenceUs = TimeUnit.MILLISECONDS.toMicros(maxSilenceMs);
+        passed = Metrics.counter("hegemone_filter_samples_total", "Samples through the change filter", "result", "passed");
+        suppressed = Metrics.counter("hegemone_filter_samples_total", "Samples through the change filter",
+                "result", "suppressed");
+    }
+
+    @Override
+    public void process(Sample sample, Consumer<Sample> next) {
+        synchronized (this) {
+            var channels = schemas.computeIfAbsent(sample.getSchema(), this::resolve);
+            if (channels != NONE) {
+                doors.computeIfAbsent(new Key(sample.getDevice(), sample.getSchema()), k -> new Door(channels))
+                        .add(sample, next);
+                return;
+            }
+        }
+        next.accept(sample);
+    }
+
+    private Rule[] resolve(SampleSchema schema) {
+        var out = new Rule[schema.size()];
+        boolean any = false;
+        for (int c = 0; c < out.length; c++) {
+            out[c] = rules.get(schema.channel(c));
+            any |= out[c] != null;
+        }
+        return any ? out : NONE;
+    }
+
+    public long getPassed() {
+        return passed.get();
+    }
+
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("filtering %s: passed=%d suppressed=%d", rules.keySet(), getPassed(), getSuppressed());
+    }
+
+    /* the state of one device and schema */
+    private final class Door {
+        private final Rule[] channels;
+        /* any swinging door channel, only then is the held sample sent */
+        private final boolean door;
+        /* slopes of the two lines per channel, per µs */
+        private final double[] upper;
+        private final double[] lower;
+        /* last passed on, last suppressed while a door is open */
+        private Sample archived;
+        private Sample held;
+
+        Door(Rule[] channels) {
+            this.channels = channels;
+            boolean any = false;
+            for (var rule : channels) {
+                any |= rule != null && rule.swingingDoor();
+            }
+            door = any;
+            upper = new double[channels.length];
+            lower = new double[channels.length];
+        }
+
+        void add(Sample sample, Consumer<Sample> next) {
+            if (archived == null) {
+                pass(sample, next);
+                return;
+            }
+            if (sample.getTimestamp() <= archived.getTimestamp()) {
+                /* late or repeated, nothing to compare against */
+                suppressed.increment();
+                return;
+            }
+            /* no line from archived reaches a NaN, so a held sample goes out before one */
+            if (held != null && (closes(sample) || door && changed(sample))) {
+                pass(held, next);
+            }
+            if (changed(sample) || sample.getTimestamp() - archived.getTimestamp() >= maxSilenceUs) {
+                pass(sample, next);
+                return;
+            }
+            widen(sample);
+            if (held != null) {
+                suppressed.increment();
+            }
+            held = sample;
+        }
+
+        /* a held sample counts as suppressed once it is dropped for good */
+        private void pass(Sample sample, Consumer<Sample> next) {
+            if (held != null && held != sample) {
+                suppressed.increment();
+            }
+            archived = sample;
+            held = null;
+            Arrays.fill(upper, Double.POSITIVE_INFINITY);
+            Arrays.fill(lower, Double.NEGATIVE_INFINITY);
+            passed.increment();
+            next.accept(sample);
+        }
+
+        /* deadband crossed, or a channel read or lost */
+        private boolean changed(Sample sample) {
+            for (int c = 0; c < channels.length; c++) {
+                if (channels[c] == null) {
+                    continue;
+                }
+                double a = archived.value(c);
+                double v = sample.value(c);
+                if (Double.isNaN(a) != Double.isNaN(v)) {
+                    return true;
+                }
+                if (!channels[c].swingingDoor() && Math.abs(v - a) > channels[c].deviation(a)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /* would sample leave no line from archived that fits all of them */
+        private boolean closes(Sample sample) {
+            double dt = sample.getTimestamp() - archived.getTimestamp();
+            for (int c = 0; c < channels.length; c++) {
+                if (channels[c] == null || !channels[c].swingingDoor()) {
+                    continue;
+                }
+                double a = archived.value(c);
+                double v = sample.value(c);
+                double e = channels[c].deviation(a);
+                if (Math.max(lower[c], (v - e - a) / dt) > Math.min(upper[c], (v + e - a) / dt)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void widen(Sample sample) {
+            double dt = sample.getTimestamp() - archived.getTimestamp();
+            for (int c = 0; c < channels.length; c++) {
+                if (channels[c] == null || !channels[c].swingingDoor()) {
+                    continue;
+                }
+                double a = archived.value(c);
+                double v = sample.value(c);
+                if (Double.isNaN(a) || Double.isNaN(v)) {
+                    continue;
+                }
+                double e = channels[c].deviation(a);
+                upper[c] = Math.min(upper[c], (v + e - a) / dt);
+                lower[c] = Math.max(lower[c], (v - e - a) / dt);
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package hegemone.sensors;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/* waits for a device operation to complete
+ *
+ * Instead of sleeping a fixed worst case, the first poll happens when the
+ * operation is expected to be done, after which the condition is polled
+ * with exponentially growing intervals. The lead time before the first poll
+ * adapts: if the first poll already succeeds it is shortened a little, so
+ * the engine tracks the chip's actual speed instead of the nominal one. Each
+ * poll is one bus transaction or one sysfs read, so the number of polls is
+ * kept low without adding much latency. Gives up after the timeout.
+ */
+class CompletionEngine {
+    @FunctionalInterface
+    interface Condition {
+        boolean ready() throws IOException;
+    }
+
+    private static final double[] POLL_BUCKETS = {1, 2, 3, 4, 6, 8, 12, 16, 32};
+
+    private final String name;
+    private final long minPollUs;
+    private final long maxPollUs;
+    /* learned wait before the first poll, µs, and the nominal time it was learned for */
+    private long leadUs;
+    private long leadExpectedUs;
+
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder polls = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder totalUs = new LongAdder();
+    private final AtomicLong maxUs = new AtomicLong();
+    /* polls per wait, set by export() */
+    private volatile Metrics.Histogram pollsPerWait;
+
+    public CompletionEngine(String name, long minPollUs, long maxPollUs) {
+        this.name = name;
+        this.minPollUs = minPollUs;
+        this.maxPollUs = maxPollUs;
+    }
+
+    /* true once the condition holds, false on timeout.
+       expectedUs is the nominal duration of the operation. */
+    public synchronized boolean await(Condition condition, long expectedUs, long timeoutUs) {
+        long start = System.nanoTime();
+        long deadline = start + timeoutUs * 1000;
+        if (leadExpectedUs != expectedUs) {
+            leadUs = expectedUs;
+            leadExpectedUs = expectedUs;
+        }
+        long first = leadUs;
+        if (first > 0) {
+            Timing.suspend(first);
+        }
+        long interval = minPollUs;
+        int n = 0;
+        waits.increment();
+        while (true) {
+            polls.increment();
+            n++;
+            try {
+                if (condition.ready()) {
+                    long us = (System.nanoTime() - start) / 1000;
+                    record(us, n);
+                    /* done on the first poll: try polling earlier next time,
+                       otherwise start just before when it finished this time */
+                    leadUs = n == 1 ? first - first / 8 : Math.min(expectedUs, us - us / 8);
+                    return true;
+                }
+            } catch (IOException e) {
+                errors.increment();
+            }
+            long now = System.nanoTime();
+            if (now - deadline >= 0) {
+                timeouts.increment();
+                var h = pollsPerWait;
+                if (h != null) {
+                    h.observe(n);
+                }
+                return false;
+            }
+            Timing.suspend(Math.min(interval, (deadline - now) / 1000 + 1));
+            interval = Math.min(interval * 2, maxPollUs);
+        }
+    }
+
+    private void record(long us, int n) {
+        var h = pollsPerWait;
+        if (h != null) {
+            h.observe(n);
+        }
+        totalUs.add(us);
+        long m = maxUs.get();
+        while (us > m && !maxUs.compareAndSet(m, us)) {
+            m = maxUs.get();
+        }
+    }
+
+    /* publish the counters in Metrics, labelled with the engine name and the given labels */
+    public void export(String... labels) {
+        var all = new String[labels.length + 2];
+        all[0] = "engine";
+        all[1] = name;
+        System.arraycopy(labels, 0, all, 2, labels.length);
+        Metrics.counter("hegemone_completion_waits_total", "Operations waited for", waits::sum, all);
+        Metrics.counter("hegemone_completion_polls_total", "Readiness polls", polls::sum, all);
+        Metrics.counter("hegemone_completion_timeouts_total", "Waits given up", timeouts::sum, all);
+        Metrics.counter("hegemone_completion_errors_total", "Readiness polls that failed", errors::sum, all);
+        pollsPerWait = Metrics.histogram("hegemone_completion_polls_per_wait", "Readiness polls per wait",
+                POLL_BUCKETS, all);
+    }
+
+    public Stats stats() {
+        long n = waits.sum() - timeouts.sum();
+        return new Stats(name, waits.sum(), polls.sum(), timeouts.sum(), errors.sum(),
+                n <= 0 ? 0 : totalUs.sum() / n, maxUs.get());
+    }
+
+    /* latencies in µs, polls counts every condition check */
+    public record Stats(String name, long waits, long polls, long timeouts, long errors,
+                        long meanUs, long maxUs) {
+        @Override
+        public String toString() {
+            return String.format("%s: waits=%d polls=%d timeouts=%d errors=%d latency(mean=%d µs, max=%d µs)",
+                    name, waits, polls, timeouts, errors, meanUs, maxUs);
+        }
+    }
+}
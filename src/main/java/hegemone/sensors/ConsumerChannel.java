@@ -0,0 +1,292 @@
+package hegemone.sensors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/* one bounded queue + worker thread per registered DataConsumer
+ *
+ * submit() never waits for the consumer (unless the BLOCK policy is
+ * chosen). The worker collects up to maxBatch entries, waiting at most
+ * lingerMs after the first one, and hands them to the consumer in one
+ * acceptBatch() call. A consumer that throws only loses its own batch.
+ *
+ * SPOOL channels have no queue: they read from the shared SampleSpool
+ * through their own cursor and only commit once the consumer accepted
+ * and flushed a batch. A batch that failed with a DeliveryException is
+ * retried with exponential backoff; a backlog is drained in maxBatch
+ * sized batches without lingering.
+ */
+class ConsumerChannel {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.datasubmitter");
+    private static final long IDLE_POLL_MS = 1000;
+    private static final long MIN_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 60_000;
+    /* attempts at a batch the consumer rejects for other reasons than delivery */
+    private static final int MAX_ATTEMPTS = 3;
+
+    enum OverflowPolicy {
+        /* discard the oldest queued entry to make room */
+        DROP_OLDEST,
+        /* make the submitting thread wait for room */
+        BLOCK,
+        /* deliver from the write-ahead spool, nothing is lost while the consumer is down */
+        SPOOL
+    }
+
+    record Config(int capacity, int maxBatch, long lingerMs, OverflowPolicy policy) {
+        public static final Config DEFAULT = new Config(256, 32, 200, OverflowPolicy.DROP_OLDEST);
+
+        public Config {
+            if (capacity < 1 || maxBatch < 1 || lingerMs < 0) {
+                throw new IllegalArgumentException("invalid consumer channel configuration");
+            }
+        }
+
+        public Config withPolicy(OverflowPolicy p) {
+            return new Config(capacity, maxBatch, lingerMs, p);
+        }
+    }
+
+    private record Entry(Sample sample, long enqueued) {
+    }
+
+    private final String name;
+    private final DataConsumer consumer;
+    private final Config config;
+    private final ArrayBlockingQueue<Entry> queue;
+    private final SampleSpool.Cursor cursor;
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    /* metrics */
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder latencyNs = new LongAdder();
+    private final AtomicLong maxLatencyNs = new AtomicLong();
+    private final Metrics.Histogram deliveryLatency;
+
+    /* cursor into the spool for SPOOL channels, null otherwise */
+    ConsumerChannel(String name, DataConsumer consumer, Config config, SampleSpool.Cursor cursor) {
+        this.name = name;
+        this.consumer = consumer;
+        this.config = config;
+        this.queue = new ArrayBlockingQueue<>(config.capacity());
+        this.cursor = cursor;
+        Metrics.gauge("hegemone_sink_queue_depth", "Samples queued for the sink", queue::size, "sink", name);
+        Metrics.gauge("hegemone_sink_backlog", "Spooled samples the sink has yet to deliver",
+                () -> cursor != null ? cursor.backlog() : 0, "sink", name);
+        Metrics.counter("hegemone_sink_submitted_total", "Samples offered to the sink", submitted::sum, "sink", name);
+        Metrics.counter("hegemone_sink_delivered_total", "Samples delivered by the sink", delivered::sum, "sink", name);
+        Metrics.counter("hegemone_sink_dropped_total", "Samples dropped before delivery", dropped::sum, "sink", name);
+        Metrics.counter("hegemone_sink_failures_total", "Failed deliveries", failures::sum, "sink", name);
+        deliveryLatency = Metrics.histogram("hegemone_sink_delivery_seconds", "Time from submit to delivery",
+                Metrics.LATENCY_BUCKETS, "sink", name);
+        this.worker = new Thread(cursor != null ? this::workSpool : this::work, "hegemone-sink-" + name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void offer(Sample sample) {
+        submitted.increment();
+        if (cursor != null) {
+            /* already in the spool, the worker picks it up from there */
+            return;
+        }
+        var entry = new Entry(sample, System.nanoTime());
+        switch (config.policy()) {
+            case BLOCK -> {
+                try {
+                    queue.put(entry);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped.increment();
+                }
+            }
+            default -> {
+                while (!queue.offer(entry)) {
+                    if (queue.poll() != null) {
+                        dropped.increment();
+                    }
+                }
+            }
+        }
+    }
+
+    private void work() {
+        var batch = new ArrayList<Entry>(config.maxBatch());
+        while (running || !queue.isEmpty()) {
+            try {
+                var first = queue.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    idle();
+                    continue;
+                }
+                batch.add(first);
+                long lingerUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.lingerMs());
+                while (batch.size() < config.maxBatch()) {
+                    long wait = lingerUntil - System.nanoTime();
+                    var next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                deliver(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                running = false;
+            }
+        }
+    }
+
+    private void deliver(List<Entry> batch) {
+        var data = new ArrayList<Sample>(batch.size());
+        for (var e : batch) {
+            data.add(e.sample());
+        }
+        try {
+            consumer.acceptBatch(data);
+        } catch (RuntimeException e) {
+            failures.increment();
+            logger.error("Consumer {} failed, dropping {} entries", name, batch.size(), e);
+            return;
+        }
+        long now = System.nanoTime();
+        for (var e : batch) {
+            recordLatency(now - e.enqueued());
+        }
+        delivered.add(batch.size());
+        batches.increment();
+    }
+
+    private void recordLatency(long latency) {
+        deliveryLatency.observeNanos(latency);
+        latencyNs.add(latency);
+        long m = maxLatencyNs.get();
+        while (latency > m && !maxLatencyNs.compareAndSet(m, latency)) {
+            m = maxLatencyNs.get();
+        }
+    }
+
+    private void workSpool() {
+        var batch = new ArrayList<Sample>(config.maxBatch());
+        long backoff = MIN_BACKOFF_MS;
+        int attempts = 0;
+        while (running) {
+            try {
+                if (!cursor.await(IDLE_POLL_MS)) {
+                    idle();
+                    continue;
+                }
+                /* only linger for live data, a backlog goes out at full speed */
+                if (config.lingerMs() > 0 && cursor.backlog() < config.maxBatch()) {
+                    Thread.sleep(config.lingerMs());
+                }
+                batch.clear();
+                cursor.read(batch, config.maxBatch());
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                try {
+                    consumer.acceptBatch(batch);
+                    consumer.flush();
+                } catch (DeliveryException e) {
+                    failures.increment();
+                    cursor.rewind();
+                    logger.warn("Consumer {} could not deliver {} entries, {} in backlog, retrying in {} s: {}",
+                            name, batch.size(), cursor.backlog(), backoff / 1000, e.getMessage());
+                    Thread.sleep(backoff);
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+                    continue;
+                } catch (RuntimeException e) {
+                    failures.increment();
+                    if (++attempts < MAX_ATTEMPTS) {
+                        cursor.rewind();
+                        logger.error("Consumer {} failed, retrying", name, e);
+                        continue;
+                    }
+                    logger.error("Consumer {} failed {} times, skipping {} entries", name, attempts, batch.size(), e);
+                    dropped.add(batch.size());
+                    cursor.commit();
+                    attempts = 0;
+                    continue;
+                }
+                cursor.commit();
+                attempts = 0;
+                backoff = MIN_BACKOFF_MS;
+                /* latency from the sample's own timestamp, spooled samples may be old */
+                long now = System.currentTimeMillis() * 1000;
+                for (var sample : batch) {
+                    recordLatency(TimeUnit.MICROSECONDS.toNanos(Math.max(0, now - sample.getTimestamp())));
+                }
+                delivered.add(batch.size());
+                batches.increment();
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (IOException e) {
+                failures.increment();
+                logger.error("Consumer {} could not read the spool", name, e);
+            }
+        }
+    }
+
+    private void idle() {
+        try {
+            consumer.flush();
+        } catch (RuntimeException e) {
+            failures.increment();
+            logger.error("Consumer {} failed to flush", name, e);
+        }
+    }
+
+    public void shutdown(long timeoutMs) {
+        running = false;
+        if (cursor != null) {
+            /* the spool keeps whatever is left, no need to wait out a backoff */
+            worker.interrupt();
+        }
+        try {
+            worker.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public Stats stats() {
+        long n = delivered.sum();
+        return new Stats(name, queue.size(), config.capacity(), submitted.sum(), n, dropped.sum(),
+                cursor != null ? cursor.backlog() : 0, failures.sum(), batches.sum(),
+                n == 0 ? 0 : latencyNs.sum() / n, maxLatencyNs.get());
+    }
+
+    /* delivery statistics of one consumer, latencies from submit()
+       (for SPOOL channels from the sample timestamp) to the end of the
+       consumer call in nanoseconds; backlog is what a SPOOL channel
+       has yet to deliver from the spool */
+    public record Stats(String name, int queueDepth, int capacity, long submitted, long delivered,
+                        long dropped, long backlog, long failures, long batches,
+                        long meanLatencyNs, long maxLatencyNs) {
+        @Override
+        public String toString() {
+            return String.format("%s: queue=%d/%d submitted=%d delivered=%d dropped=%d backlog=%d "
+                            + "failures=%d batches=%d latency(mean=%d ms, max=%d ms)",
+                    name, queueDepth, capacity, submitted, delivered, dropped, backlog, failures, batches,
+                    TimeUnit.NANOSECONDS.toMillis(meanLatencyNs), TimeUnit.NANOSECONDS.toMillis(maxLatencyNs));
+        }
+    }
+}
@@ -1,6 +1,19 @@
 package hegemone.sensors;
 
+import java.util.List;
+
 public interface DataConsumer {
 
-    public void accept(String data);
+    public void accept(Sample sample);
+
+    /* called from the consumer's own worker thread with everything
+       that queued up during the batching window */
+    public default void acceptBatch(List<Sample> batch) {
+        batch.forEach(this::accept);
+    }
+
+    /* called by the worker when no data arrived for a while,
+       consumers that buffer should write out what they hold */
+    public default void flush() {
+    }
 }
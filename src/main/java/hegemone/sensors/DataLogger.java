@@ -7,7 +7,7 @@ public class DataLogger implements DataConsumer {
     private static final Logger log = LoggerFactory.getLogger("hegemone.sensors.datalogger");
 
     @Override
-    public void accept(String data) {
-        log.debug(data);
+    public void accept(Sample sample) {
+        log.debug("{}", sample);
     }
 }
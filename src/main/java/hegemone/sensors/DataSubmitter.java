@@ -3,23 +3,144 @@ package hegemone.sensors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
-import java.util.concurrent.CompletableFuture;
-import java.util.function.Consumer;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class DataSubmitter {
     private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.datasubmitter");
-    static List<DataConsumer> consumerList = new ArrayList<>();
+    /* the write-ahead spool of SPOOL channels */
+    public static final String SPOOL_DIR = "/var/spool/hegemone";
+    static List<ConsumerChannel> consumerList = new CopyOnWriteArrayList<>();
+    /* run in order on every submitted sample before it reaches any branch */
+    static List<SampleStage> stages = new CopyOnWriteArrayList<>();
+    /* consumers registered without a branch get the samples as they come out of the stages */
+    private static final Branch DIRECT = new Branch(List.of());
+    static List<Branch> branches = new CopyOnWriteArrayList<>(List.of(DIRECT));
+    /* opened by the first SPOOL channel, holds the samples of its branch */
+    private static volatile SampleSpool spool;
+    private static volatile Branch spoolBranch;
+
+    /* stages of their own in front of some of the consumers, e.g. summaries
+       for the network sinks while the local ones keep every sample; each
+       branch runs its stages once per sample for all of its consumers */
+    public static final class Branch {
+        private final List<SampleStage> stages;
+        private final List<ConsumerChannel> channels = new CopyOnWriteArrayList<>();
+
+        private Branch(List<SampleStage> stages) {
+            this.stages = stages;
+        }
+
+        private void pass(Sample sample, int stage) {
+            if (stage < stages.size()) {
+                stages.get(stage).process(sample, s -> pass(s, stage + 1));
+            } else {
+                publish(this, sample);
+            }
+        }
+    }
+
     /**
-     * Submit data to some kind of data consumer
+     * Submit data to some kind of data consumer.
+     * The sample goes through the stages first, then through the stages of
+     * each branch; consumers get whatever comes out of theirs.
+     * Only enqueues, delivery happens on each consumer's own worker thread.
+     * With SPOOL channels registered the sample is appended to the spool first.
      */
-    public static void submit(String data) {
-        logger.debug("---- submitting data -----\n" + data + "\n----- end data submission frame ------");
-        consumerList.forEach(c -> c.accept(data));
+    public static void submit(Sample sample) {
+        pass(sample, 0);
+    }
+
+    private static void pass(Sample sample, int stage) {
+        if (stage < stages.size()) {
+            stages.get(stage).process(sample, s -> pass(s, stage + 1));
+            return;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("---- submitting data -----\n" + sample + "\n----- end data submission frame ------");
+        }
+        for (var b : branches) {
+            /* stages of a branch nobody listens to are not run */
+            if (!b.channels.isEmpty()) {
+                b.pass(sample, 0);
+            }
+        }
+    }
+
+    private static void publish(Branch branch, Sample sample) {
+        var s = spool;
+        if (s != null && branch == spoolBranch) {
+            try {
+                s.append(sample);
+            } catch (IOException e) {
+                logger.error("Could not append to spool, spooled consumers miss this sample", e);
+            }
+        }
+        branch.channels.forEach(c -> c.offer(sample));
+    }
+
+    public static void addStage(SampleStage stage) {
+        stages.add(stage);
+    }
+
+    /* a new branch running the given stages, in order, after the common ones */
+    public static Branch branch(SampleStage... stages) {
+        var branch = new Branch(List.of(stages));
+        branches.add(branch);
+        return branch;
     }
 
     public static void register(DataConsumer consumer) {
-        consumerList.add(consumer);
+        register(consumer, ConsumerChannel.Config.DEFAULT);
+    }
+
+    public static void register(DataConsumer consumer, ConsumerChannel.Config config) {
+        register(consumer, config, DIRECT);
+    }
+
+    /* channel names are stable across restarts as long as consumers are
+       registered in the same order, SPOOL channels resume from their cursor;
+       there is one spool, so all SPOOL channels must share a branch */
+    public static synchronized void register(DataConsumer consumer, ConsumerChannel.Config config, Branch branch) {
+        var name = consumer.getClass().getSimpleName() + "-" + consumerList.size();
+        SampleSpool.Cursor cursor = null;
+        if (config.policy() == ConsumerChannel.OverflowPolicy.SPOOL) {
+            if (spoolBranch != null && spoolBranch != branch) {
+                logger.error("The spool holds the samples of another branch, {} falls back to dropping old entries", name);
+                config = config.withPolicy(ConsumerChannel.OverflowPolicy.DROP_OLDEST);
+            } else {
+                try {
+                    if (spool == null) {
+                        var opened = new SampleSpool(new File(SPOOL_DIR));
+                        spoolBranch = branch;
+                        spool = opened;
+                    }
+                    cursor = spool.cursor(name);
+                } catch (IOException e) {
+                    logger.error("Could not open spool in {}, {} falls back to dropping old entries", SPOOL_DIR, name, e);
+                    config = config.withPolicy(ConsumerChannel.OverflowPolicy.DROP_OLDEST);
+                }
+            }
+        }
+        var channel = new ConsumerChannel(name, consumer, config, cursor);
+        consumerList.add(channel);
+        branch.channels.add(channel);
+    }
+
+    /* queue depth, drop and latency figures per consumer */
+    public static List<ConsumerChannel.Stats> stats() {
+        return consumerList.stream().map(ConsumerChannel::stats).toList();
+    }
+
+    /* stop accepting work and give each worker up to timeoutMs to drain,
+       spooled samples stay in the spool for the next start */
+    public static void shutdown(long timeoutMs) {
+        consumerList.forEach(c -> c.shutdown(timeoutMs));
+        var s = spool;
+        if (s != null) {
+            s.close();
+        }
     }
 }
@@ -0,0 +1,16 @@
+package hegemone.sensors;
+
+/* a consumer could not deliver a batch for now (network down, server
+   error) and wants it again later; durable channels retry with backoff,
+   anything else a consumer throws is taken for a bad batch */
+public class DeliveryException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public DeliveryException(String message) {
+        super(message);
+    }
+
+    public DeliveryException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,356 @@
+package hegemone.sensors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/* the buses and sensors one daemon polls
+ *
+ * Read from a properties file, DEFAULT_CONFIG or -Dhegemone.config:
+ *
+ *   station = PlantyPlantMonitor
+ *   i2c.<bus> = /dev/i2c-1
+ *   w1.<bus> = /sys/bus/w1/devices/w1_bus_master1
+ *   w1.<bus>.discover = true          poll DS18B20s not listed as sensors,
+ *   w1.<bus>.period = 60000           named after their serial
+ *   w1.<bus>.resolution = 12          9 to 12 bits, see OneWireBus
+ *
+ *   sensor.<name>.type = spectral | light | soil | ds18b20
+ *   sensor.<name>.bus = <bus>         an i2c bus, a w1 bus for ds18b20
+ *   sensor.<name>.address = 0x37      soil only, 0x36 to 0x39
+ *   sensor.<name>.serial = 28-...     ds18b20 only
+ *   sensor.<name>.resolution = 12     ds18b20 only, w1.<bus>.resolution by default
+ *   sensor.<name>.period = <ms>       defaults per type, see Type
+ *   sensor.<name>.device = <id>       device_id of its samples, <station>/<name> by default
+ *   sensor.<name>.exposure = auto | fixed   spectral only, see Spectrometer.setAutoExposure
+ *   sensor.<name>.ppfd_factor = 1     spectral only, µmol/m²/s per count, see SpectralIndices
+ *
+ * Without a file the registry describes the original board (defaults()):
+ * one of each sensor on /dev/i2c-1 reporting as the station itself, and
+ * any further DS18B20 on w1_bus_master1. The AS7341 and VEML7700 have
+ * fixed addresses, so there can be one of each per bus.
+ *
+ * Every bus is read on its own owner thread of the AcquisitionPipeline,
+ * so sensors on different buses are sampled in parallel.
+ */
+class DeviceRegistry implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.registry");
+    public static final String DEFAULT_CONFIG = "/etc/hegemone/sensors.properties";
+    /* w1_therm families with the DS18B20 w1_slave format */
+    private static final Set<String> THERM_FAMILIES = Set.of("10", "22", "28", "3b", "42");
+
+    enum Type {
+        SPECTRAL(10_000),
+        LIGHT(100),
+        SOIL(1_000),
+        DS18B20(60_000);
+
+        final long defaultPeriodMs;
+
+        Type(long defaultPeriodMs) {
+            this.defaultPeriodMs = defaultPeriodMs;
+        }
+
+        static Type parse(String name, String value) {
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("sensor." + name + ".type: unknown type " + value
+                        + ", expected one of " + Arrays.toString(values()).toLowerCase());
+            }
+        }
+    }
+
+    /* opens an I2C bus by device file, LinuxI2CPort::new on a Pi */
+    interface BusOpener {
+        I2CPort open(String path) throws IOException;
+    }
+
+    /* takes a reading on the bus owner and hands the sample to out, later
+       from a follow-up task on the owner if the driver releases the bus
+       while the device converts (Soil) */
+    interface Reader {
+        void read(long timestamp, Consumer<Sample> out);
+    }
+
+    /* one sensor instance with its sampling period and the executor that owns its bus */
+    static final class Instance {
+        private final String name;
+        private final String device;
+        private final Type type;
+        private final long periodMs;
+        private final Executor executor;
+        private final Reader reader;
+        private final Metrics.Histogram latency;
+
+        Instance(String name, String device, Type type, long periodMs, Executor executor, Reader reader) {
+            this.name = name;
+            this.device = device;
+            this.type = type;
+            this.periodMs = periodMs;
+            this.executor = executor;
+            this.reader = reader;
+            latency = Metrics.histogram("hegemone_sensor_read_seconds", "Duration of one sensor reading",
+                    Metrics.LATENCY_BUCKETS, "sensor", name, "type", type.name().toLowerCase());
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDevice() {
+            return device;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public long getPeriodMs() {
+            return periodMs;
+        }
+
+        public Executor getExecutor() {
+            return executor;
+        }
+
+        /* timestamp in µs since the epoch, call on getExecutor(); a reading
+           still going from the last slot makes the driver skip this one */
+        public void read(long timestamp, Consumer<Sample> out) {
+            long start = System.nanoTime();
+            reader.read(timestamp, sample -> {
+                latency.observeNanos(System.nanoTime() - start);
+                out.accept(sample);
+            });
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + type.name().toLowerCase() + " as " + device + ", every " + periodMs + " ms)";
+        }
+    }
+
+    private final String station;
+    private final AcquisitionPipeline pipeline;
+    private final Map<String, I2CPort> i2cBuses = new LinkedHashMap<>();
+    private final Map<String, OneWireBus> w1Buses = new LinkedHashMap<>();
+    private final List<Instance> instances = new ArrayList<>();
+
+    public DeviceRegistry(Properties config, AcquisitionPipeline pipeline, BusOpener opener) throws IOException {
+        this.pipeline = pipeline;
+        station = config.getProperty("station", Sensors.DEVICE_ID);
+        try {
+            for (var e : i2cPaths(config).entrySet()) {
+                i2cBuses.put(e.getKey(), new MeteredI2CPort(opener.open(e.getValue())));
+            }
+            for (var e : w1Paths(config).entrySet()) {
+                w1Buses.put(e.getKey(), new OneWireBus(new File(e.getValue())));
+            }
+            var taken = new HashSet<String>();
+            var serials = new HashSet<String>();
+            for (var name : sensorNames(config)) {
+                instances.add(create(config, name, taken, serials));
+            }
+            for (var bus : w1Buses.keySet()) {
+                if (Boolean.parseBoolean(config.getProperty("w1." + bus + ".discover", "true"))) {
+                    discover(config, bus, serials);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+        instances.forEach(i -> logger.info("Polling {}", i));
+    }
+
+    /* the configuration file, the original board if there is none */
+    public static Properties readConfig(File file) throws IOException {
+        if (!file.exists()) {
+            logger.info("No {}, using the default board", file);
+            return defaults();
+        }
+        var config = new Properties();
+        try (var in = new FileReader(file)) {
+            config.load(in);
+        }
+        return config;
+    }
+
+    public static Properties defaults() {
+        var config = new Properties();
+        config.setProperty("station", Sensors.DEVICE_ID);
+        config.setProperty("i2c." + AcquisitionPipeline.DEFAULT_BUS, DeviceTree.DEFAULT_I2C_BUS);
+        config.setProperty("w1." + AcquisitionPipeline.DEFAULT_BUS, DeviceTree.DEFAULT_W1_BUS);
+        define(config, "spectrometer", Type.SPECTRAL, AcquisitionPipeline.DEFAULT_BUS);
+        define(config, "light", Type.LIGHT, AcquisitionPipeline.DEFAULT_BUS);
+        define(config, "soil", Type.SOIL, AcquisitionPipeline.DEFAULT_BUS);
+        config.setProperty("sensor.soil.address", "0x" + Integer.toHexString(DeviceTree.ADAFRUIT_SOIL_SENSOR));
+        define(config, "temperature", Type.DS18B20, AcquisitionPipeline.DEFAULT_BUS);
+        config.setProperty("sensor.temperature.serial", DeviceTree.DS18B20_SERIAL);
+        return config;
+    }
+
+    private static void define(Properties config, String name, Type type, String bus) {
+        config.setProperty("sensor." + name + ".type", type.name().toLowerCase());
+        config.setProperty("sensor." + name + ".bus", bus);
+        /* the original series keep their device_id */
+        config.setProperty("sensor." + name + ".device", Sensors.DEVICE_ID);
+    }
+
+    /* bus name to device file, for the self test */
+    public static Map<String, String> i2cPaths(Properties config) {
+        return buses(config, "i2c.");
+    }
+
+    public static Map<String, String> w1Paths(Properties config) {
+        return buses(config, "w1.");
+    }
+
+    private static Map<String, String> buses(Properties config, String prefix) {
+        var result = new LinkedHashMap<String, String>();
+        for (var key : new TreeSet<>(config.stringPropertyNames())) {
+            if (key.startsWith(prefix) && key.indexOf('.', prefix.length()) < 0) {
+                result.put(key.substring(prefix.length()), config.getProperty(key).trim());
+            }
+        }
+        return result;
+    }
+
+    private static Set<String> sensorNames(Properties config) {
+        var names = new TreeSet<String>();
+        for (var key : config.stringPropertyNames()) {
+            if (key.startsWith("sensor.") && key.endsWith(".type")) {
+                names.add(key.substring("sensor.".length(), key.length() - ".type".length()));
+            }
+        }
+        return names;
+    }
+
+    private Instance create(Properties config, String name, Set<String> taken, Set<String> serials) {
+        var type = Type.parse(name, config.getProperty("sensor." + name + ".type"));
+        var bus = required(config, name, "bus");
+        long period = Long.parseLong(config.getProperty("sensor." + name + ".period",
+                Long.toString(type.defaultPeriodMs)).trim());
+        var device = config.getProperty("sensor." + name + ".device", station + "/" + name).trim();
+        if (type == Type.DS18B20) {
+            var serial = required(config, name, "serial");
+            if (!serials.add(serial)) {
+                throw new IllegalArgumentException("sensor." + name + ": " + serial + " is configured twice");
+            }
+            if (!w1Buses.containsKey(bus)) {
+                throw new IllegalArgumentException("sensor." + name + ".bus: no w1." + bus);
+            }
+            return temperature(name, device, period, bus, serial,
+                    config.getProperty("sensor." + name + ".resolution", resolution(config, bus)));
+        }
+        var port = i2cBuses.get(bus);
+        if (port == null) {
+            throw new IllegalArgumentException("sensor." + name + ".bus: no i2c." + bus);
+        }
+        int address = switch (type) {
+            case SPECTRAL -> DeviceTree.ADAFRUIT_SPECTROMETER;
+            case LIGHT -> DeviceTree.ADAFRUIT_AMBIENT_LIGHT_SENSOR;
+            default -> Integer.decode(config.getProperty("sensor." + name + ".address",
+                    Integer.toString(DeviceTree.ADAFRUIT_SOIL_SENSOR)).trim());
+        };
+        if (!taken.add(bus + "/" + address)) {
+            throw new IllegalArgumentException("sensor." + name + ": address 0x" + Integer.toHexString(address)
+                    + " on i2c." + bus + " is already in use");
+        }
+        Executor executor = pipeline.i2c(bus);
+        Reader reader;
+        switch (type) {
+            case SPECTRAL -> {
+                var spectrometer = new Spectrometer(port);
+                spectrometer.configure();
+                spectrometer.setAutoExposure(!"fixed".equalsIgnoreCase(config.getProperty("sensor." + name + ".exposure",
+                        System.getProperty("hegemone.spectral.exposure", "auto")).trim()));
+                var flux = new int[10];
+                var indices = new SpectralIndices(Double.parseDouble(config.getProperty("sensor." + name + ".ppfd_factor",
+                        Double.toString(SpectralIndices.DEFAULT_PPFD_PER_COUNT)).trim()));
+                reader = (t, out) -> out.accept(Sensors.spectralSample(device, t, spectrometer, flux, indices));
+            }
+            case LIGHT -> {
+                var light = new AmbientLight(port);
+                light.configure();
+                reader = (t, out) -> out.accept(Sensors.lightSample(device, t, light));
+            }
+            default -> {
+                var soil = new Soil(port, address);
+                reader = (t, out) -> soil.read(executor).thenAccept(r -> {
+                    if (r != null) {
+                        out.accept(Sensors.soilSample(device, t, r));
+                    }
+                });
+            }
+        }
+        return new Instance(name, device, type, period, executor, reader);
+    }
+
+    private Instance temperature(String name, String device, long period, String bus, String serial, String resolution) {
+        var oneWire = w1Buses.get(bus);
+        oneWire.setResolution(serial, Integer.parseInt(resolution.trim()));
+        return new Instance(name, device, Type.DS18B20, period, pipeline.oneWire(bus),
+                (t, out) -> out.accept(Sensors.temperatureSample(device, t, oneWire, serial)));
+    }
+
+    private static String resolution(Properties config, String bus) {
+        return config.getProperty("w1." + bus + ".resolution", Integer.toString(OneWireBus.DEFAULT_RESOLUTION));
+    }
+
+    /* every w1_therm slave under the bus master that is not configured already */
+    private void discover(Properties config, String bus, Set<String> serials) {
+        var master = w1Buses.get(bus).getMaster();
+        var found = master.list((dir, n) -> n.length() > 3 && n.charAt(2) == '-'
+                && THERM_FAMILIES.contains(n.substring(0, 2).toLowerCase()));
+        if (found == null) {
+            logger.warn("Could not list 1-Wire bus {} at {}", bus, master);
+            return;
+        }
+        Arrays.sort(found);
+        long period = Long.parseLong(config.getProperty("w1." + bus + ".period",
+                Long.toString(Type.DS18B20.defaultPeriodMs)).trim());
+        for (var serial : found) {
+            if (serials.add(serial)) {
+                instances.add(temperature(serial, station + "/" + serial, period, bus, serial, resolution(config, bus)));
+            }
+        }
+    }
+
+    private static String required(Properties config, String name, String key) {
+        var value = config.getProperty("sensor." + name + "." + key);
+        if (value == null || value.isBlank()) {
+            throw new IllegalArgumentException("sensor." + name + "." + key + " is missing");
+        }
+        return value.trim();
+    }
+
+    public List<Instance> getInstances() {
+        return List.copyOf(instances);
+    }
+
+    @Override
+    public void close() {
+        for (var port : i2cBuses.values()) {
+            try {
+                port.close();
+            } catch (IOException e) {
+                logger.warn("Could not close {}", port.getName(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package hegemone.sensors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/* appends every sample to the local data dump in SampleCodec format
+ *
+ * Each start of the daemon appends a new stream to the file, decode it
+ * with hegemone.sensors.SampleCodec. Written out once per batch. Streams
+ * start with a sync, so one appended after a power loss cut the file in
+ * the middle of a record still decodes, and so does the one before it up
+ * to the cut.
+ */
+public class DumpConsumer implements DataConsumer {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.dump");
+    private final File file;
+    private OutputStream out;
+    private SampleCodec.Encoder encoder;
+
+    public DumpConsumer(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public void accept(Sample sample) {
+        acceptBatch(List.of(sample));
+    }
+
+    @Override
+    public synchronized void acceptBatch(List<Sample> batch) {
+        try {
+            if (out == null) {
+                out = new BufferedOutputStream(new FileOutputStream(file, true), 8192);
+                encoder = new SampleCodec.Encoder(out, true);
+            }
+            for (var sample : batch) {
+                encoder.write(sample);
+            }
+            out.flush();
+        } catch (IOException e) {
+            logger.error("Could not write to data dump {}", file, e);
+            close();
+        }
+    }
+
+    /* a broken stream is abandoned, the next batch starts a new one */
+    private void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                /* already broken */
+            }
+            out = null;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package hegemone.sensors;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/* an input line exported through sysfs (/sys/class/gpio/gpioN/value)
+ *
+ * Used to watch interrupt outputs of the sensors instead of polling their
+ * status registers over I2C. The value file is kept open and re-read from
+ * offset 0 into a reusable buffer.
+ */
+class GpioLine implements AutoCloseable {
+    public static final String SYSFS_GPIO = "/sys/class/gpio";
+    private final int number;
+    private final boolean activeLow;
+    private final FileChannel value;
+    private final ByteBuffer buf = ByteBuffer.allocate(2);
+
+    /* the AS7341 INT pin is open drain, active low */
+    public GpioLine(int number, boolean activeLow) throws IOException {
+        this.number = number;
+        this.activeLow = activeLow;
+        var dir = Path.of(SYSFS_GPIO, "gpio" + number);
+        if (!Files.isDirectory(dir)) {
+            Files.writeString(Path.of(SYSFS_GPIO, "export"), Integer.toString(number));
+        }
+        Files.writeString(dir.resolve("direction"), "in");
+        value = FileChannel.open(dir.resolve("value"), StandardOpenOption.READ);
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    public synchronized boolean isAsserted() throws IOException {
+        buf.clear();
+        value.read(buf, 0);
+        boolean high = buf.position() > 0 && buf.get(0) == '1';
+        return high != activeLow;
+    }
+
+    @Override
+    public void close() throws IOException {
+        value.close();
+    }
+}
@@ -1,36 +1,280 @@
 package hegemone.sensors;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
-import java.net.URISyntaxException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
 
+/* POSTs samples to an HTTP endpoint
+ *
+ * All consumers share one HttpClient, so connections are kept alive
+ * (and multiplexed where the server speaks HTTP/2). A batch from the
+ * channel is cut into requests of batchSize samples, encoded as JSON
+ * (one nested document per request, the original format), one flat
+ * object per request, a JSON array, NDJSON or a SampleCodec stream, and
+ * optionally gzipped. Up to maxInFlight
+ * requests are sent concurrently. Timeouts, connection errors and
+ * 5xx/408/429 answers are retried with exponential backoff; if a request
+ * still fails the batch throws a DeliveryException and a spooled channel
+ * delivers it again later, requests of it that went through included.
+ */
 public class HTTPConsumer implements DataConsumer {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.http");
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long FIRST_RETRY_MS = 250;
+    private static final HttpClient CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(TIMEOUT)
+            .build();
+
+    enum Encoding {
+        /* one document per request in the original nested shape, see Sample.toLegacyJSON */
+        JSON("application/json", false),
+        /* one flat JSON object per request */
+        FLAT("application/json", false),
+        /* [{..},{..}] of flat objects */
+        JSON_ARRAY("application/json", true),
+        /* one flat JSON object per line */
+        NDJSON("application/x-ndjson", true),
+        /* one SampleCodec stream per request */
+        BINARY(SampleCodec.CONTENT_TYPE, true);
+
+        final String contentType;
+        /* more than one sample per request */
+        final boolean batches;
+
+        Encoding(String contentType, boolean batches) {
+            this.contentType = contentType;
+            this.batches = batches;
+        }
+    }
+
+    record Config(Encoding encoding, int batchSize, int maxInFlight, boolean gzip) {
+        public static final Config DEFAULT = new Config(Encoding.JSON, 1, 4, false);
+
+        public Config {
+            if (batchSize < 1 || maxInFlight < 1) {
+                throw new IllegalArgumentException("invalid HTTP consumer configuration");
+            }
+            if (!encoding.batches && batchSize > 1) {
+                logger.warn("The {} encoding posts one sample per request, ignoring a batch size of {}",
+                        encoding.name().toLowerCase(), batchSize);
+                batchSize = 1;
+            }
+        }
+    }
+
     String targetUrl;
+    private final URI uri;
+    private final Config config;
+    private final Semaphore inFlight;
+    /* encoding scratch, only used by the channel worker */
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(4096);
+    private final StringBuilder json = new StringBuilder(4096);
+
+    /* metrics */
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder latencyNs = new LongAdder();
+    private final AtomicLong maxLatencyNs = new AtomicLong();
 
     public HTTPConsumer(String targetUrl) {
+        this(targetUrl, Config.DEFAULT);
+    }
+
+    public HTTPConsumer(String targetUrl, Config config) {
         this.targetUrl = targetUrl;
+        this.uri = URI.create(targetUrl);
+        this.config = config;
+        this.inFlight = new Semaphore(config.maxInFlight());
+        Metrics.counter("hegemone_http_requests_total", "POST attempts", requests::sum, "url", targetUrl);
+        Metrics.counter("hegemone_http_retries_total", "POSTs retried", retries::sum, "url", targetUrl);
+        Metrics.counter("hegemone_http_failures_total", "POSTs given up", failures::sum, "url", targetUrl);
+        Metrics.counter("hegemone_http_sent_bytes_total", "Request body bytes", bytesSent::sum, "url", targetUrl);
+    }
+
+    @Override
+    public void accept(Sample sample) {
+        acceptBatch(List.of(sample));
     }
 
     @Override
-    public void accept(String data) {
+    public void acceptBatch(List<Sample> batch) {
+        var pending = new ArrayList<CompletableFuture<Void>>();
+        try {
+            for (int from = 0; from < batch.size(); from += config.batchSize()) {
+                var chunk = batch.subList(from, Math.min(batch.size(), from + config.batchSize()));
+                var request = createPostRequest(encode(chunk));
+                inFlight.acquire();
+                long started = System.nanoTime();
+                pending.add(send(request, 0).whenComplete((v, e) -> {
+                    inFlight.release();
+                    if (e == null) {
+                        record(chunk.size(), System.nanoTime() - started);
+                    } else {
+                        failures.increment();
+                    }
+                }));
+            }
+            RuntimeException failure = null;
+            for (var f : pending) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    if (failure == null || e.getCause() instanceof IllegalStateException) {
+                        failure = e.getCause() instanceof RuntimeException r ? r
+                                : new DeliveryException("POST to " + targetUrl + " failed", e.getCause());
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DeliveryException("POST to " + targetUrl + " interrupted", e);
+        }
+    }
+
+    private CompletableFuture<Void> send(HttpRequest request, int attempt) {
+        requests.increment();
+        return CLIENT.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .handle((resp, err) -> {
+                    if (err == null && resp.statusCode() / 100 == 2) {
+                        return CompletableFuture.<Void>completedFuture(null);
+                    }
+                    String why;
+                    if (err != null) {
+                        var cause = err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+                        why = cause.toString();
+                    } else {
+                        int status = resp.statusCode();
+                        why = "HTTP " + status;
+                        /* server trouble is worth retrying, a rejected document is not */
+                        if (status / 100 != 5 && status != 408 && status != 429) {
+                            return CompletableFuture.<Void>failedFuture(
+                                    new IllegalStateException("POST to " + targetUrl + " rejected with " + why));
+                        }
+                    }
+                    if (attempt + 1 >= MAX_ATTEMPTS) {
+                        return CompletableFuture.<Void>failedFuture(new DeliveryException(
+                                "POST to " + targetUrl + " failed " + MAX_ATTEMPTS + " times, last: " + why));
+                    }
+                    long delay = FIRST_RETRY_MS << attempt;
+                    logger.debug("POST to {} failed ({}), retrying in {} ms", targetUrl, why, delay);
+                    retries.increment();
+                    var later = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS);
+                    return CompletableFuture.runAsync(() -> { }, later)
+                            .thenCompose(v -> send(request, attempt + 1));
+                })
+                .thenCompose(f -> f);
+    }
+
+    private byte[] encode(List<Sample> chunk) {
+        body.reset();
         try {
-            var req = createPostRequest(data);
-            var resp = HttpClient.newBuilder()
-                    .build()
-                    .sendAsync(req, HttpResponse.BodyHandlers.ofString());
-            /* TODO: handle errors(!) */
-        } catch (Exception e) {
-            System.err.println("Couldn't send POST data \n" + e);
+            OutputStream out = config.gzip() ? new GZIPOutputStream(body, 4096) : body;
+            switch (config.encoding()) {
+                case BINARY -> {
+                    /* a fresh stream per request, so each body decodes on its own */
+                    var codec = new SampleCodec.Encoder(out);
+                    for (var sample : chunk) {
+                        codec.write(sample);
+                    }
+                }
+                case JSON_ARRAY -> {
+                    json.setLength(0);
+                    json.append('[');
+                    for (var sample : chunk) {
+                        if (json.length() > 1) {
+                            json.append(',');
+                        }
+                        sample.toJSON(json);
+                    }
+                    out.write(json.append(']').toString().getBytes(StandardCharsets.UTF_8));
+                }
+                case NDJSON -> {
+                    json.setLength(0);
+                    for (var sample : chunk) {
+                        sample.toJSON(json).append('\n');
+                    }
+                    out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+                }
+                case FLAT -> out.write(chunk.get(0).toJSON(json.delete(0, json.length()))
+                        .toString().getBytes(StandardCharsets.UTF_8));
+                default -> out.write(chunk.get(0).toLegacyJSON(json.delete(0, json.length()))
+                        .toString().getBytes(StandardCharsets.UTF_8));
+            }
+            out.close();
+        } catch (IOException e) {
+            /* not from a ByteArrayOutputStream */
+            throw new IllegalStateException(e);
+        }
+        return body.toByteArray();
+    }
+
+    private HttpRequest createPostRequest(byte[] data) {
+        bytesSent.add(data.length);
+        var builder = HttpRequest.newBuilder()
+                .uri(uri)
+                .timeout(TIMEOUT)
+                .header("Content-Type", config.encoding().contentType);
+        if (config.gzip()) {
+            builder.header("Content-Encoding", "gzip");
+        }
+        return builder.POST(HttpRequest.BodyPublishers.ofByteArray(data)).build();
+    }
+
+    private void record(int count, long latency) {
+        delivered.increment();
+        samples.add(count);
+        latencyNs.add(latency);
+        long m = maxLatencyNs.get();
+        while (latency > m && !maxLatencyNs.compareAndSet(m, latency)) {
+            m = maxLatencyNs.get();
         }
     }
 
-    private HttpRequest createPostRequest(String data) throws URISyntaxException {
-        return HttpRequest.newBuilder()
-                .uri(new URI(targetUrl))
-                .headers("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(data))
-                .build();
+    public Stats stats() {
+        long n = delivered.sum();
+        return new Stats(targetUrl, requests.sum(), samples.sum(), retries.sum(), failures.sum(),
+                bytesSent.sum(), n == 0 ? 0 : latencyNs.sum() / n, maxLatencyNs.get());
+    }
+
+    /* requests counts every attempt, failures the requests given up on;
+       bytes are request bodies as sent (after gzip); latency runs from
+       the first attempt to success */
+    public record Stats(String url, long requests, long samples, long retries, long failures,
+                        long bytesSent, long meanLatencyNs, long maxLatencyNs) {
+        @Override
+        public String toString() {
+            return String.format("%s: requests=%d samples=%d retries=%d failures=%d sent=%d kB "
+                            + "latency(mean=%d ms, max=%d ms)",
+                    url, requests, samples, retries, failures, bytesSent / 1024,
+                    TimeUnit.NANOSECONDS.toMillis(meanLatencyNs), TimeUnit.NANOSECONDS.toMillis(maxLatencyNs));
+        }
     }
 }
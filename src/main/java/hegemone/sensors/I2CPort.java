@@ -0,0 +1,37 @@
+package hegemone.sensors;
+
+import io.helins.linux.i2c.I2CBuffer;
+import io.helins.linux.i2c.I2CTransaction;
+
+import java.io.IOException;
+
+/* the I2C operations the drivers use
+ *
+ * LinuxI2CPort talks to a /dev/i2c-N character device, SimulatedI2CBus
+ * answers from register models of our sensors and ReplayI2CBus plays back
+ * a kernel i2c trace. Buffers and transactions are the linux-i2c ones, so
+ * drivers build them the same way for all three.
+ */
+interface I2CPort extends AutoCloseable {
+    /* device path or other description, for logs */
+    String getName();
+
+    void selectSlave(int address) throws IOException;
+
+    void read(I2CBuffer buffer, int length) throws IOException;
+
+    default void read(I2CBuffer buffer) throws IOException {
+        read(buffer, buffer.length);
+    }
+
+    void write(I2CBuffer buffer, int length) throws IOException;
+
+    default void write(I2CBuffer buffer) throws IOException {
+        write(buffer, buffer.length);
+    }
+
+    void doTransaction(I2CTransaction transaction) throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,114 @@
+package hegemone.sensors;
+
+import io.helins.linux.i2c.*;
+
+import java.io.IOException;
+
+/* register access for one device on an I2C bus
+ *
+ * Every transaction, buffer and flag set is allocated once per device
+ * (read transactions lazily, per read length) and reused afterwards, so
+ * the sampling loop does not allocate: values are decoded straight out
+ * of the native I2CBuffer into the caller's int[].
+ *
+ * Not thread safe on its own; callers serialize through the bus lock.
+ */
+class I2CRegisters {
+    /* longest burst we expect to read, AS7341 0x94..0xA0 is 13 */
+    private static final int MAX_READ = 32;
+    private final I2CPort bus;
+    private final int address;
+    private final I2CFlags addressFlags;
+    private final I2CFlags readFlags = new I2CFlags().set(I2CFlag.READ);
+    private final I2CBuffer register = new I2CBuffer(1);
+    private final I2CBuffer writeBuf = new I2CBuffer(2);
+    private final I2CTransaction[] reads = new I2CTransaction[MAX_READ + 1];
+
+    public I2CRegisters(I2CPort bus, int address) {
+        this(bus, address, false);
+    }
+
+    /* some devices (VEML7700) only answer if the register
+       address message is sent with NO_START */
+    public I2CRegisters(I2CPort bus, int address, boolean noStart) {
+        this.bus = bus;
+        this.address = address;
+        this.addressFlags = noStart ? new I2CFlags().set(I2CFlag.NO_START) : new I2CFlags();
+    }
+
+    public I2CPort getBus() {
+        return bus;
+    }
+
+    public int getAddress() {
+        return address;
+    }
+
+    private I2CTransaction transaction(int len) {
+        if (len < 1 || len > MAX_READ) {
+            throw new IllegalArgumentException("unsupported read length " + len);
+        }
+        var tx = reads[len];
+        if (tx == null) {
+            tx = new I2CTransaction(2);
+            tx.getMessage(0).setAddress(address)
+                    .setFlags(addressFlags)
+                    .setBuffer(register);
+            tx.getMessage(1).setAddress(address)
+                    .setFlags(readFlags)
+                    .setBuffer(new I2CBuffer(len));
+            reads[len] = tx;
+        }
+        return tx;
+    }
+
+    /* read len consecutive registers starting at reg, the returned
+       buffer is owned by this object and valid until the next read */
+    public I2CBuffer read(int reg, int len) throws IOException {
+        var tx = transaction(len);
+        register.set(0, reg);
+        synchronized (bus) {
+            bus.doTransaction(tx);
+        }
+        return tx.getMessage(1).getBuffer();
+    }
+
+    public int readByte(int reg) throws IOException {
+        return read(reg, 1).get(0);
+    }
+
+    /* 16-bit little endian register pair, low byte first */
+    public int readWord(int reg) throws IOException {
+        var buf = read(reg, 2);
+        return buf.get(1) << 8 | buf.get(0);
+    }
+
+    /* count little endian 16-bit words starting at reg into out[offset..] */
+    public void readWords(int reg, int count, int[] out, int offset) throws IOException {
+        var buf = read(reg, count * 2);
+        decodeWords(buf, 0, count, out, offset);
+    }
+
+    static void decodeWords(I2CBuffer buf, int from, int count, int[] out, int offset) {
+        for (int i = 0; i < count; i++) {
+            out[offset + i] = buf.get(from + 2 * i + 1) << 8 | buf.get(from + 2 * i);
+        }
+    }
+
+    public void writeByte(int reg, int value) throws IOException {
+        synchronized (bus) {
+            writeBuf.set(0, reg);
+            writeBuf.set(1, value);
+            bus.selectSlave(address);
+            bus.write(writeBuf);
+        }
+    }
+
+    /* raw write of a preassembled buffer */
+    public void write(I2CBuffer buf) throws IOException {
+        synchronized (bus) {
+            bus.selectSlave(address);
+            bus.write(buf);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package hegemone.sensors;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/* a kernel i2c trace, as in dumps/
+ *
+ * Parses the output of the i2c trace events (events/i2c in tracefs):
+ *
+ *   java-1897 [000] .... 5525.524815: i2c_write: i2c-1 #0 a=039 f=0000 l=2 [80-01]
+ *   java-1897 [000] .... 5525.525201: i2c_result: i2c-1 n=1 ret=1
+ *
+ * into transactions, the messages of one I2C_RDWR ioctl up to its
+ * i2c_result, tracked per task and bus. Read messages get their data from
+ * the i2c_reply event. Anything after the data (the dumps have hand-written
+ * notes there), headers and other events are ignored.
+ *
+ * Some dumps are several captures pasted together, so the timestamps can
+ * jump back. Each such jump starts a new segment: transactions still open
+ * are dropped and the segment is placed right after the previous one, so
+ * times only ever go forward.
+ *
+ * Run as a program it prints a per-device summary of a trace with the
+ * measured transaction durations, which is where the timings of
+ * SimulatedI2CBus come from.
+ */
+class I2CTrace {
+    private static final Pattern EVENT = Pattern.compile(
+            "-(\\d+)\\s+\\[\\d+\\].*?\\s(\\d+\\.\\d+):\\s+i2c_(write|read|reply|result):\\s+i2c-(\\d+)\\s+(.*)$");
+    private static final Pattern MESSAGE = Pattern.compile(
+            "#(\\d+)\\s+a=([0-9a-fA-F]+)\\s+f=([0-9a-fA-F]+)\\s+l=(\\d+)(?:\\s+\\[([0-9a-fA-F-]*)\\])?");
+    private static final Pattern RESULT = Pattern.compile("n=(\\d+)\\s+ret=(-?\\d+)");
+    /* I2C_M_RD in the kernel flags */
+    private static final int M_RD = 0x0001;
+
+    record Message(int address, int flags, int length, int[] data) {
+        public boolean isRead() {
+            return (flags & M_RD) != 0;
+        }
+    }
+
+    /* times in µs since the start of the trace, segments end to end,
+       endUs never before startUs; ret is the number
+       of messages transferred or a negative errno */
+    record Transaction(int line, int bus, long startUs, long endUs, List<Message> messages, int ret) {
+        public long durationUs() {
+            return endUs - startUs;
+        }
+
+        /* bytes on the wire, one address byte per message */
+        public int bytes() {
+            int n = 0;
+            for (var m : messages) {
+                n += m.length() + 1;
+            }
+            return n;
+        }
+
+        public int address() {
+            return messages.isEmpty() ? -1 : messages.get(0).address();
+        }
+    }
+
+    private final String name;
+    private final List<Transaction> transactions;
+
+    private I2CTrace(String name, List<Transaction> transactions) {
+        this.name = name;
+        this.transactions = Collections.unmodifiableList(transactions);
+    }
+
+    public static I2CTrace load(Path path) throws IOException {
+        try (var in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            return parse(path.getFileName().toString(), in);
+        }
+    }
+
+    /* an ioctl in progress on one task and bus */
+    private static final class Open {
+        final List<Message> messages = new ArrayList<>();
+        long start;
+        int line;
+    }
+
+    private record Key(int pid, int bus) {
+    }
+
+    public static I2CTrace parse(String name, BufferedReader in) throws IOException {
+        var result = new ArrayList<Transaction>();
+        var open = new HashMap<Key, Open>();
+        /* raw time of the first event of the segment, and where the segment starts */
+        long origin = -1;
+        long base = 0;
+        long last = 0;
+        int lineNo = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            lineNo++;
+            Matcher m = EVENT.matcher(line);
+            if (!m.find()) {
+                continue;
+            }
+            long raw = Math.round(Double.parseDouble(m.group(2)) * 1e6);
+            if (origin < 0 || raw < origin + (last - base)) {
+                /* first event, or the clock went back: a new capture */
+                if (origin >= 0) {
+                    base = last + 1;
+                }
+                origin = raw;
+                open.clear();
+            }
+            long us = base + raw - origin;
+            last = us;
+            var key = new Key(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(4)));
+            String event = m.group(3);
+            String rest = m.group(5);
+            if (event.equals("result")) {
+                var t = open.remove(key);
+                Matcher r = RESULT.matcher(rest);
+                if (t != null && r.find() && !t.messages.isEmpty()) {
+                    result.add(new Transaction(t.line, key.bus(), t.start, us,
+                            List.copyOf(t.messages), Integer.parseInt(r.group(2))));
+                }
+                continue;
+            }
+            Matcher msg = MESSAGE.matcher(rest);
+            if (!msg.find()) {
+                continue;
+            }
+            int index = Integer.parseInt(msg.group(1));
+            var message = new Message(Integer.parseInt(msg.group(2), 16), Integer.parseInt(msg.group(3), 16),
+                    Integer.parseInt(msg.group(4)), bytes(msg.group(5)));
+            if (event.equals("reply")) {
+                /* fills in the read announced by i2c_read */
+                var t = open.get(key);
+                if (t != null && index < t.messages.size()) {
+                    t.messages.set(index, message);
+                }
+                continue;
+            }
+            var t = open.computeIfAbsent(key, k -> new Open());
+            if (t.messages.isEmpty()) {
+                t.start = us;
+                t.line = lineNo;
+            }
+            var messages = t.messages;
+            while (messages.size() < index) {
+                messages.add(new Message(message.address(), 0, 0, new int[0]));
+            }
+            if (index < messages.size()) {
+                messages.set(index, message);
+            } else {
+                messages.add(message);
+            }
+        }
+        return new I2CTrace(name, result);
+    }
+
+    private static int[] bytes(String hex) {
+        if (hex == null || hex.isEmpty()) {
+            return new int[0];
+        }
+        var parts = hex.split("-");
+        var out = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            out[i] = Integer.parseInt(parts[i], 16);
+        }
+        return out;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Transaction> getTransactions() {
+        return transactions;
+    }
+
+    public String summary() {
+        var sb = new StringBuilder();
+        sb.append(String.format("%s: %d transactions%n", name, transactions.size()));
+        Map<Integer, List<Transaction>> byAddress = new TreeMap<>();
+        for (var t : transactions) {
+            byAddress.computeIfAbsent(t.address(), a -> new ArrayList<>()).add(t);
+        }
+        for (var e : byAddress.entrySet()) {
+            Map<Integer, long[]> bySize = new TreeMap<>();
+            int errors = 0;
+            for (var t : e.getValue()) {
+                if (t.ret() < 0) {
+                    errors++;
+                    continue;
+                }
+                var s = bySize.computeIfAbsent(t.bytes(), b -> new long[3]);
+                s[0]++;
+                s[1] += t.durationUs();
+                s[2] = Math.max(s[2], t.durationUs());
+            }
+            sb.append(String.format("  0x%02x: %d transactions, %d failed%n", e.getKey(), e.getValue().size(), errors));
+            for (var s : bySize.entrySet()) {
+                long[] v = s.getValue();
+                sb.append(String.format("    %3d bytes: %5d x, mean %d µs, max %d µs%n",
+                        s.getKey(), v[0], v[1] / v[0], v[2]));
+            }
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        for (var a : args) {
+            System.out.print(load(Path.of(a)).summary());
+        }
+    }
+}
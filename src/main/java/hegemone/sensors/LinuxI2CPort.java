@@ -0,0 +1,52 @@
+package hegemone.sensors;
+
+import io.helins.linux.i2c.I2CBuffer;
+import io.helins.linux.i2c.I2CBus;
+import io.helins.linux.i2c.I2CTransaction;
+
+import java.io.IOException;
+
+/* a real bus, /dev/i2c-N */
+class LinuxI2CPort implements I2CPort {
+    private final String path;
+    private final I2CBus bus;
+
+    public LinuxI2CPort(String path) throws IOException {
+        this.path = path;
+        this.bus = new I2CBus(path);
+    }
+
+    @Override
+    public String getName() {
+        return path;
+    }
+
+    public I2CBus getBus() {
+        return bus;
+    }
+
+    @Override
+    public void selectSlave(int address) throws IOException {
+        bus.selectSlave(address);
+    }
+
+    @Override
+    public void read(I2CBuffer buffer, int length) throws IOException {
+        bus.read(buffer, length);
+    }
+
+    @Override
+    public void write(I2CBuffer buffer, int length) throws IOException {
+        bus.write(buffer, length);
+    }
+
+    @Override
+    public void doTransaction(I2CTransaction transaction) throws IOException {
+        bus.doTransaction(transaction);
+    }
+
+    @Override
+    public void close() throws IOException {
+        bus.close();
+    }
+}
@@ -2,6 +2,13 @@ package hegemone.sensors;
 
 import java.io.IOException;
 import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,30 +17,146 @@ import io.helins.linux.i2c.*;
 
 class Main {
     private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.main");
+    /* buses and sensors, see DeviceRegistry for the format */
+    private static final File CONFIG = new File(System.getProperty("hegemone.config", DeviceRegistry.DEFAULT_CONFIG));
+    /* light and soil are sampled fast and only shipped to the network sinks as per-minute statistics */
+    private static final long AGGREGATE_WINDOW = 60_000;
+    /* slow channels only go out to the network sinks when they change, at least every -Dhegemone.filter.silence_ms;
+       -Dhegemone.filter=false ships every sample */
+    private static final boolean FILTER = Boolean.parseBoolean(System.getProperty("hegemone.filter", "true"));
+    private static final long FILTER_SILENCE = Long.getLong("hegemone.filter.silence_ms",
+            ChangeFilter.DEFAULT_MAX_SILENCE_MS);
+    /* -Dhegemone.simulate=true runs against simulated sensors, for load testing without a Pi */
+    private static final boolean SIMULATE = Boolean.getBoolean("hegemone.simulate");
+    /* every sample in SampleCodec format, decode with hegemone.sensors.SampleCodec */
+    private static final String DATA_DUMP = "/var/log/hegemone-data.dmp";
+    /* -Dhegemone.http.encoding=json|flat|json_array|ndjson|binary, -Dhegemone.http.batch=<samples per POST>,
+       -Dhegemone.http.inflight=<concurrent POSTs>, -Dhegemone.http.gzip=true */
+    private static final HTTPConsumer.Encoding HTTP_ENCODING =
+            HTTPConsumer.Encoding.valueOf(System.getProperty("hegemone.http.encoding", "json").toUpperCase());
+    /* json, the default, and flat are one sample per POST; the batching encodings default to 100 */
+    private static final HTTPConsumer.Config HTTP_CONFIG = new HTTPConsumer.Config(
+            HTTP_ENCODING,
+            Integer.getInteger("hegemone.http.batch", HTTP_ENCODING.batches ? 100 : 1),
+            Integer.getInteger("hegemone.http.inflight", 4),
+            Boolean.getBoolean("hegemone.http.gzip"));
+    /* Prometheus scrape port, 0 turns the endpoint off */
+    private static final int METRICS_PORT = Integer.getInteger("hegemone.metrics.port", MetricsServer.DEFAULT_PORT);
+    /* recent samples and the history over HTTP, 0 turns the endpoint off; -Dhegemone.api.ring=<samples kept per sensor group> */
+    private static final int API_PORT = Integer.getInteger("hegemone.api.port", QueryServer.DEFAULT_PORT);
+    private static final int API_RING = Integer.getInteger("hegemone.api.ring", SampleRing.DEFAULT_CAPACITY);
+    /* local history of every channel, an empty -Dhegemone.history.dir turns it off */
+    private static final String HISTORY_DIR = System.getProperty("hegemone.history.dir", SampleStore.DEFAULT_DIR);
+    private static final long HISTORY_DAYS = Long.getLong("hegemone.history.days",
+            TimeUnit.MILLISECONDS.toDays(SampleStore.DEFAULT_RETENTION_MS));
+    private static final long HISTORY_MB = Long.getLong("hegemone.history.mb", SampleStore.DEFAULT_MAX_BYTES >> 20);
 
     /* power-on self-test */
     public static void main(String[] args) throws Exception {
-        selftest();
+        var config = SIMULATE ? DeviceRegistry.defaults() : DeviceRegistry.readConfig(CONFIG);
+        if (SIMULATE) {
+            logger.warn("Running against simulated sensors");
+        } else {
+            selftest(config);
+        }
+        if (METRICS_PORT > 0) {
+            try {
+                new MetricsServer(METRICS_PORT);
+            } catch (IOException e) {
+                logger.error("Could not serve metrics on port {}", METRICS_PORT, e);
+            }
+        }
+        SampleStore history = null;
+        if (!HISTORY_DIR.isEmpty()) {
+            try {
+                history = new SampleStore(new File(HISTORY_DIR), TimeUnit.DAYS.toMillis(HISTORY_DAYS), HISTORY_MB << 20);
+            } catch (IOException e) {
+                logger.error("Could not open the sample history in {}", HISTORY_DIR, e);
+            }
+        }
+        /* the ring sees the raw samples */
+        var recent = new SampleRing(API_RING);
+        Consumer<Sample> submit = DataSubmitter::submit;
+        if (API_PORT > 0) {
+            try {
+                new QueryServer(API_PORT, recent, history);
+                submit = sample -> {
+                    recent.add(sample);
+                    DataSubmitter.submit(sample);
+                };
+            } catch (IOException e) {
+                logger.error("Could not serve recent samples on port {}", API_PORT, e);
+            }
+        }
+        /* network sinks get the summaries and deliver from the on-disk spool,
+           nothing is lost while the network is down */
+        var window = WindowAggregator.Window.tumbling(AGGREGATE_WINDOW);
+        var aggregator = new WindowAggregator(List.of(window), Sensors.LIGHT, Sensors.SOIL);
+        var network = FILTER
+                ? DataSubmitter.branch(aggregator, new ChangeFilter(filterRules(window), FILTER_SILENCE))
+                : DataSubmitter.branch(aggregator);
+        var networkSink = ConsumerChannel.Config.DEFAULT.withPolicy(ConsumerChannel.OverflowPolicy.SPOOL);
         if(args.length>0)
-            DataSubmitter.register(new HTTPConsumer(args[0]));
+            DataSubmitter.register(new HTTPConsumer(args[0], HTTP_CONFIG), networkSink, network);
         if(args.length>3)
-            DataSubmitter.register(new QuestDBConsumer(args[1], Integer.parseInt(args[2])));
+            DataSubmitter.register(new QuestDBConsumer(args[1], Integer.parseInt(args[2]),
+                    "udp".equalsIgnoreCase(args[3]) ? QuestDBConsumer.Protocol.UDP : QuestDBConsumer.Protocol.TCP),
+                    networkSink, network);
+        /* the local consumers keep every sample as read */
 	    DataSubmitter.register(new DataLogger());
-        var sensors = new Sensors();
-        while (true) {
-            DataSubmitter.submit(sensors.sensorsToJSON());
-            Utils.suspend(5000);
+        DataSubmitter.register(new DumpConsumer(new File(DATA_DUMP)));
+        if (history != null) {
+            DataSubmitter.register(history);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> DataSubmitter.shutdown(2000)));
+        var pipeline = new AcquisitionPipeline();
+        var registry = SIMULATE ? simulatedRegistry(config, pipeline)
+                : new DeviceRegistry(config, pipeline, LinuxI2CPort::new);
+        var scheduler = new SamplingScheduler(SamplingScheduler.MissedDeadlinePolicy.SKIP);
+        /* reads queue up on the owner of their bus, buses run in parallel */
+        var out = submit;
+        for (var sensor : registry.getInstances()) {
+            scheduler.schedule(sensor.getName(), sensor.getPeriodMs(), sensor.getExecutor(),
+                    t -> sensor.read(t, out));
+        }
+        scheduler.run();
+    }
+
+    /* DS18B20s as read, soil on its summaries: the mean for the trend,
+       min and max so that a short event within a window still goes out */
+    private static Map<String, ChangeFilter.Rule> filterRules(WindowAggregator.Window window) {
+        var rules = new HashMap<String, ChangeFilter.Rule>();
+        rules.put("ambient_temp", ChangeFilter.Rule.swingingDoor(0.1, 0));
+        for (var stat : List.of("mean", "min", "max")) {
+            rules.put("moisture_level_" + window.name() + "_" + stat, ChangeFilter.Rule.swingingDoor(10, 0.02));
+            rules.put("soil_temp_" + window.name() + "_" + stat, ChangeFilter.Rule.swingingDoor(0.2, 0));
         }
+        return rules;
+    }
+
+    /* the default board on simulated buses */
+    private static DeviceRegistry simulatedRegistry(Properties config, AcquisitionPipeline pipeline) throws IOException {
+        var root = Files.createTempDirectory("hegemone-w1").toFile();
+        var oneWire = SimulatedOneWire.hegemoneBoard(root);
+        DeviceRegistry.w1Paths(config).keySet()
+                .forEach(bus -> config.setProperty("w1." + bus, oneWire.getBusMaster().getPath()));
+        return new DeviceRegistry(config, pipeline, path -> SimulatedI2CBus.hegemoneBoard(true));
     }
 
-    private static void selftest() throws Exception {
+    private static void selftest(Properties config) throws Exception {
         System.out.println("Hegemone starting on " + System.getProperty("os.name") + " " + java.time.ZonedDateTime.now());
         System.out.println("Self test");
         /* Verify I2C */
-        var b1 = I2CVerify();
+        var b1 = true;
+        for (var path : DeviceRegistry.i2cPaths(config).values()) {
+            b1 &= I2CVerify(path);
+        }
         logger.info("I2C Verify Check: {}", b1);
         /* Verify 1-Wire */
-        var b2 = OneWireVerify();
+        var b2 = true;
+        for (var path : DeviceRegistry.w1Paths(config).values()) {
+            b2 &= OneWireVerify(path);
+        }
         logger.info("1-Wire Verify Check: {}", b2);
         /* Verify data log */
         var b3 = logVerify();
@@ -44,18 +167,18 @@ class Main {
         }
     }
 
-    private static boolean OneWireVerify() throws Exception {
-        var bus = new File(DeviceTree.DEFAULT_W1_BUS);
+    private static boolean OneWireVerify(String path) throws Exception {
+        var bus = new File(path);
         return bus.exists() && bus.isDirectory() && bus.canRead();
     }
 
-    private static boolean I2CVerify() throws Exception {
-        try (I2CBus bus = new I2CBus(DeviceTree.DEFAULT_I2C_BUS)) {
+    private static boolean I2CVerify(String path) throws Exception {
+        try (I2CBus bus = new I2CBus(path)) {
             I2CFunctionalities functionalities = bus.getFunctionalities();
 
             var funcs = new Object[]{functionalities.can(I2CFunctionality.TRANSACTIONS),
                     functionalities.can(I2CFunctionality.READ_BYTE)};
-            logger.info("I2C bus can transact? {}\nI2C bus can read bytes? {}", funcs);
+            logger.info("I2C bus {} can transact? {}\nI2C bus can read bytes? {}", path, funcs[0], funcs[1]);
             return (boolean) funcs[0] && (boolean) funcs[1];
         } catch (IOException e) {
             System.err.println(e);
@@ -64,7 +187,7 @@ class Main {
     }
 
     private static boolean logVerify() throws Exception {
-        var log = new File("/var/log/hegemone-data.dmp");
+        var log = new File(DATA_DUMP);
         try {
             /* create iff not exists */
             log.createNewFile();
@@ -0,0 +1,103 @@
+package hegemone.sensors;
+
+import io.helins.linux.i2c.I2CBuffer;
+import io.helins.linux.i2c.I2CTransaction;
+
+import java.io.IOException;
+
+/* counts and times the transfers on a bus
+ *
+ * Wraps the port DeviceRegistry hands to the drivers; every read, write
+ * and combined transaction is one hegemone_i2c_transfers_total and one
+ * observation of hegemone_i2c_transfer_seconds, failed ones also count in
+ * hegemone_i2c_errors_total. selectSlave is only an ioctl and not counted.
+ * Drivers lock the port they were given, so they all lock this wrapper.
+ */
+class MeteredI2CPort implements I2CPort {
+    private final I2CPort port;
+    private final Metrics.Counter reads;
+    private final Metrics.Counter writes;
+    private final Metrics.Counter transactions;
+    private final Metrics.Counter readErrors;
+    private final Metrics.Counter writeErrors;
+    private final Metrics.Counter transactionErrors;
+    private final Metrics.Histogram latency;
+
+    public MeteredI2CPort(I2CPort port) {
+        this.port = port;
+        var bus = port.getName();
+        reads = transfers(bus, "read");
+        writes = transfers(bus, "write");
+        transactions = transfers(bus, "transaction");
+        readErrors = errors(bus, "read");
+        writeErrors = errors(bus, "write");
+        transactionErrors = errors(bus, "transaction");
+        latency = Metrics.histogram("hegemone_i2c_transfer_seconds", "Duration of I2C transfers",
+                Metrics.LATENCY_BUCKETS, "bus", bus);
+    }
+
+    private static Metrics.Counter transfers(String bus, String op) {
+        return Metrics.counter("hegemone_i2c_transfers_total", "I2C transfers by operation", "bus", bus, "op", op);
+    }
+
+    private static Metrics.Counter errors(String bus, String op) {
+        return Metrics.counter("hegemone_i2c_errors_total", "Failed I2C transfers by operation", "bus", bus, "op", op);
+    }
+
+    @Override
+    public String getName() {
+        return port.getName();
+    }
+
+    @Override
+    public void selectSlave(int address) throws IOException {
+        port.selectSlave(address);
+    }
+
+    @Override
+    public void read(I2CBuffer buffer, int length) throws IOException {
+        long start = System.nanoTime();
+        reads.increment();
+        try {
+            port.read(buffer, length);
+        } catch (IOException e) {
+            readErrors.increment();
+            throw e;
+        } finally {
+            latency.observeNanos(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void write(I2CBuffer buffer, int length) throws IOException {
+        long start = System.nanoTime();
+        writes.increment();
+        try {
+            port.write(buffer, length);
+        } catch (IOException e) {
+            writeErrors.increment();
+            throw e;
+        } finally {
+            latency.observeNanos(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void doTransaction(I2CTransaction transaction) throws IOException {
+        long start = System.nanoTime();
+        transactions.increment();
+        try {
+            port.doTransaction(transaction);
+        } catch (IOException e) {
+            transactionErrors.increment();
+            throw e;
+        } finally {
+            latency.observeNanos(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        port.close();
+    }
+}
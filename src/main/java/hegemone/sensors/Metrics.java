@@ -0,0 +1,198 @@
+package hegemone.sensors;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/* process-wide metrics in the Prometheus text format
+ *
+ * Counters and histograms are LongAdders updated on the hot path without
+ * locking; functional counters and gauges read a value the instrumented
+ * class already keeps (a queue size, a LongAdder of its own) at scrape
+ * time. A metric is a name plus label pairs, name and labels given as
+ * "key", "value", ...; asking for the same counter or histogram twice
+ * returns the same one, registering a functional metric twice replaces the
+ * old supplier. scrape() renders everything, MetricsServer serves it.
+ */
+final class Metrics {
+    /* seconds, from a fast register read to a slow network request */
+    static final double[] LATENCY_BUCKETS = {0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025,
+            0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    private enum Type {
+        COUNTER, GAUGE, HISTOGRAM
+    }
+
+    private interface Series {
+        void write(StringBuilder out, String name, String labels);
+    }
+
+    private record Family(String help, Type type, Map<String, Series> series) {
+    }
+
+    private static final Map<String, Family> families = new LinkedHashMap<>();
+
+    private Metrics() {
+    }
+
+    static final class Counter implements Series {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        public void write(StringBuilder out, String name, String labels) {
+            sample(out, name, labels, value.sum());
+        }
+    }
+
+    static final class Histogram implements Series {
+        /* upper bounds, +Inf is implicit */
+        private final double[] bounds;
+        private final LongAdder[] counts;
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Histogram(double[] bounds) {
+            this.bounds = bounds.clone();
+            this.counts = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        public void observe(double value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            counts[i].increment();
+            sum.add(value);
+        }
+
+        public void observeNanos(long nanos) {
+            observe(nanos / 1e9);
+        }
+
+        @Override
+        public void write(StringBuilder out, String name, String labels) {
+            /* buckets are cumulative in the exposition format */
+            long total = 0;
+            var prefix = labels.isEmpty() ? "" : labels + ",";
+            for (int i = 0; i < counts.length; i++) {
+                total += counts[i].sum();
+                var le = i < bounds.length ? format(bounds[i]) : "+Inf";
+                sample(out, name + "_bucket", prefix + "le=\"" + le + "\"", total);
+            }
+            sample(out, name + "_sum", labels, sum.sum());
+            sample(out, name + "_count", labels, total);
+        }
+    }
+
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) series(name, help, Type.COUNTER, labels, false, Counter::new);
+    }
+
+    /* a counter kept elsewhere, read at scrape time */
+    public static void counter(String name, String help, LongSupplier value, String... labels) {
+        series(name, help, Type.COUNTER, labels, true, () -> (out, n, l) -> sample(out, n, l, value.getAsLong()));
+    }
+
+    public static void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        series(name, help, Type.GAUGE, labels, true, () -> (out, n, l) -> sample(out, n, l, value.getAsDouble()));
+    }
+
+    public static Histogram histogram(String name, String help, double[] buckets, String... labels) {
+        return (Histogram) series(name, help, Type.HISTOGRAM, labels, false, () -> new Histogram(buckets));
+    }
+
+    private static synchronized Series series(String name, String help, Type type, String[] labels,
+                                              boolean replace, Supplier<Series> create) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException(name + ": labels come in key/value pairs");
+        }
+        var family = families.computeIfAbsent(name, n -> new Family(help, type, new LinkedHashMap<>()));
+        if (family.type() != type) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type());
+        }
+        var key = labels(labels);
+        var existing = family.series().get(key);
+        if (existing != null && !replace) {
+            return existing;
+        }
+        var s = create.get();
+        family.series().put(key, s);
+        return s;
+    }
+
+    /* the whole registry, text format 0.0.4 */
+    public static String scrape() {
+        record Snapshot(String name, Family family, List<Map.Entry<String, Series>> series) {
+        }
+        var snapshot = new ArrayList<Snapshot>();
+        synchronized (Metrics.class) {
+            for (var e : families.entrySet()) {
+                snapshot.add(new Snapshot(e.getKey(), e.getValue(), new ArrayList<>(e.getValue().series().entrySet())));
+            }
+        }
+        var out = new StringBuilder(16384);
+        for (var f : snapshot) {
+            out.append("# HELP ").append(f.name()).append(' ')
+                    .append(f.family().help().replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+            out.append("# TYPE ").append(f.name()).append(' ')
+                    .append(f.family().type().name().toLowerCase()).append('\n');
+            for (var s : f.series()) {
+                s.getValue().write(out, f.name(), s.getKey());
+            }
+        }
+        return out.toString();
+    }
+
+    private static String labels(String[] labels) {
+        var sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"").append(labels[i + 1].replace("\\", "\\\\")
+                    .replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        return sb.toString();
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double v) {
+        if (Double.isNaN(v)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(v)) {
+            return v > 0 ? "+Inf" : "-Inf";
+        }
+        if (v == Math.rint(v) && Math.abs(v) < 1e15) {
+            return Long.toString((long) v);
+        }
+        return Double.toString(v);
+    }
+}
@@ -0,0 +1,270 @@
+package hegemone.sensors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/* the DS18B20s on one w1 bus master
+ *
+ * Reading a w1_slave file makes the kernel start a conversion on that one
+ * sensor and block for it, 750 ms at the default 12 bits. Instead the
+ * driver writes "trigger" to the master's therm_bulk_read, which starts
+ * a conversion on every sensor of the bus at once; therm_bulk_read reads
+ * -1 until they are done, and until a sensor's w1_slave has been read the
+ * kernel returns the converted value from it without converting again.
+ * So the first read of a sampling slot converts (waiting on its bus owner
+ * thread, see CompletionEngine) and the other sensors of the bus read the
+ * same conversion straight away. A conversion is used by each sensor at
+ * most once and only for MAX_AGE_MS; after that the next read triggers a
+ * new one. Masters without therm_bulk_read (kernels before 5.10) fall
+ * back to the blocking per-sensor read.
+ *
+ * w1_slave is parsed from a reused buffer. A reading counts only if the
+ * kernel says crc=.. YES, the CRC of the scratchpad checks out here as
+ * well and the scratchpad is not the power-on value (85 °C, the sensor
+ * lost power before converting); otherwise it is NaN.
+ *
+ * The resolution (9 to 12 bits) trades accuracy (0.5 to 0.0625 °C) for
+ * conversion time (94 to 750 ms); it is written to the sensor's
+ * resolution file, which needs root and a w1_therm with resolution
+ * support, else the sensor keeps its own.
+ */
+class OneWireBus {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.w1");
+    public static final int DEFAULT_RESOLUTION = 12;
+    private static final long MAX_AGE_MS = 1_000;
+    /* two lines of "xx xx xx xx xx xx xx xx xx : crc=xx YES" and "... t=-12345" */
+    private static final int SLAVE_BUFFER = 128;
+    private static final int SCRATCHPAD = 9;
+
+    private static final class Slave {
+        final File file;
+        int resolution = DEFAULT_RESOLUTION;
+        /* conversion this sensor read last */
+        long generation;
+
+        Slave(File file) {
+            this.file = file;
+        }
+    }
+
+    private final File master;
+    private final File bulk;
+    private final boolean bulkSupported;
+    private final Map<String, Slave> slaves = new HashMap<>();
+    private final byte[] buffer = new byte[SLAVE_BUFFER];
+    private final CompletionEngine conversion = new CompletionEngine("ds18b20_conversion", 10_000, 100_000);
+    private final Metrics.Counter invalid;
+    private final Metrics.Counter failedConversions;
+    /* completed bulk conversions and when the last one finished, System.nanoTime() */
+    private long generation;
+    private long convertedAt;
+
+    public OneWireBus(File master) {
+        this.master = master;
+        this.bulk = new File(master, "therm_bulk_read");
+        this.bulkSupported = bulk.exists();
+        if (!bulkSupported) {
+            logger.warn("{} has no therm_bulk_read, every DS18B20 read converts on its own", master);
+        }
+        conversion.export("bus", master.getPath());
+        invalid = Metrics.counter("hegemone_w1_invalid_readings_total",
+                "DS18B20 readings that failed, had a bad CRC or were the power-on value", "bus", master.getPath());
+        failedConversions = Metrics.counter("hegemone_w1_conversion_failures_total",
+                "Bulk conversions that could not be triggered or did not finish", "bus", master.getPath());
+    }
+
+    public File getMaster() {
+        return master;
+    }
+
+    /* 9 to 12 bits, for the next conversion */
+    public synchronized void setResolution(String serial, int bits) {
+        if (bits < 9 || bits > 12) {
+            throw new IllegalArgumentException("DS18B20 resolution is 9 to 12 bits, not " + bits);
+        }
+        var slave = slave(serial);
+        var file = new File(slave.file.getParentFile(), "resolution");
+        try {
+            int n = fill(file, buffer);
+            if (new String(buffer, 0, n, StandardCharsets.US_ASCII).trim().equals(Integer.toString(bits))) {
+                /* already set, writing would need root */
+                slave.resolution = bits;
+                return;
+            }
+        } catch (IOException e) {
+            /* try to write it anyway */
+        }
+        try (var out = new FileOutputStream(file)) {
+            out.write(Integer.toString(bits).getBytes(StandardCharsets.US_ASCII));
+            slave.resolution = bits;
+        } catch (IOException e) {
+            logger.warn("Could not set the resolution of {} to {} bits: {}", serial, bits, e.toString());
+        }
+    }
+
+    /* conversion time of the slowest sensor, µs */
+    private long conversionUs() {
+        int finest = 9;
+        for (var s : slaves.values()) {
+            finest = Math.max(finest, s.resolution);
+        }
+        return TimeUnit.MILLISECONDS.toMicros(750 >> (12 - finest));
+    }
+
+    /* °C, NaN if the sensor could not be read */
+    public synchronized double read(String serial) {
+        var slave = slave(serial);
+        if (bulkSupported) {
+            boolean fresh = slave.generation < generation
+                    && System.nanoTime() - convertedAt < TimeUnit.MILLISECONDS.toNanos(MAX_AGE_MS);
+            if (!fresh && !convert()) {
+                failedConversions.increment();
+                return Double.NaN;
+            }
+            slave.generation = generation;
+        }
+        double t = readSlave(slave.file, buffer);
+        if (Double.isNaN(t)) {
+            invalid.increment();
+        }
+        return t;
+    }
+
+    private Slave slave(String serial) {
+        return slaves.computeIfAbsent(serial, s -> new Slave(new File(new File(master, s), "w1_slave")));
+    }
+
+    /* one bulk conversion on all sensors, false if it did not finish */
+    private boolean convert() {
+        try (var out = new FileOutputStream(bulk)) {
+            out.write("trigger\n".getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            logger.warn("Could not trigger a conversion on 1-Wire bus {}", master, e);
+            return false;
+        }
+        long expected = conversionUs();
+        if (!conversion.await(this::converted, expected, 2 * expected + 250_000)) {
+            logger.warn("Conversion on 1-Wire bus {} did not finish within {} µs", master, 2 * expected + 250_000);
+            return false;
+        }
+        generation++;
+        convertedAt = System.nanoTime();
+        return true;
+    }
+
+    /* therm_bulk_read is -1 while converting, 1 or 0 once done */
+    private boolean converted() throws IOException {
+        int n = fill(bulk, buffer);
+        return n > 0 && (buffer[0] == '0' || buffer[0] == '1');
+    }
+
+    /* °C from a w1_slave file, NaN if unreadable or not valid */
+    static double readSlave(File w1Slave, byte[] buffer) {
+        int n;
+        try {
+            n = fill(w1Slave, buffer);
+        } catch (IOException e) {
+            var dir = w1Slave.getParentFile();
+            logger.warn("Could not read DS18B20 {} on 1-Wire bus {}", dir.getName(), dir.getParent(), e);
+            return Double.NaN;
+        }
+        return parse(buffer, n);
+    }
+
+    private static int fill(File file, byte[] buffer) throws IOException {
+        int n = 0;
+        try (var in = new FileInputStream(file)) {
+            int r;
+            while (n < buffer.length && (r = in.read(buffer, n, buffer.length - n)) > 0) {
+                n += r;
+            }
+        }
+        return n;
+    }
+
+    /* the w1_therm format:
+       72 01 4b 46 7f ff 0e 10 57 : crc=57 YES
+       72 01 4b 46 7f ff 0e 10 57 t=23125 */
+    static double parse(byte[] b, int length) {
+        if (length < SCRATCHPAD * 3) {
+            return Double.NaN;
+        }
+        /* the CRC over all nine bytes, the last one included, is 0 */
+        int crc = 0;
+        int or = 0;
+        for (int i = 0; i < SCRATCHPAD; i++) {
+            int hi = Character.digit(b[i * 3], 16);
+            int lo = Character.digit(b[i * 3 + 1], 16);
+            if (hi < 0 || lo < 0) {
+                return Double.NaN;
+            }
+            crc = crc8(crc, hi << 4 | lo);
+            or |= hi << 4 | lo;
+        }
+        /* all zeros has a valid CRC too, but is a missing sensor */
+        if (crc != 0 || or == 0) {
+            return Double.NaN;
+        }
+        if (b[0] == '5' && b[1] == '0' && b[3] == '0' && b[4] == '5' && b[18] == '0' && (b[19] | 0x20) == 'c') {
+            return Double.NaN;
+        }
+        int eol = indexOf(b, length, 0, (byte) '\n');
+        if (eol < 3 || b[eol - 3] != 'Y' || b[eol - 2] != 'E' || b[eol - 1] != 'S') {
+            return Double.NaN;
+        }
+        int t = -1;
+        for (int i = eol + 1; i + 1 < length; i++) {
+            if (b[i] == 't' && b[i + 1] == '=') {
+                t = i + 2;
+                break;
+            }
+        }
+        if (t < 0 || t >= length) {
+            return Double.NaN;
+        }
+        boolean negative = b[t] == '-';
+        if (negative) {
+            t++;
+        }
+        long milli = 0;
+        int digits = 0;
+        for (; t < length && b[t] >= '0' && b[t] <= '9'; t++, digits++) {
+            milli = milli * 10 + (b[t] - '0');
+        }
+        if (digits == 0) {
+            return Double.NaN;
+        }
+        return (negative ? -milli : milli) / 1000.0;
+    }
+
+    /* Dallas/Maxim CRC-8, x^8 + x^5 + x^4 + 1, one byte */
+    static int crc8(int crc, int b) {
+        for (int bit = 0; bit < 8; bit++) {
+            int mix = (crc ^ b) & 0x01;
+            crc >>= 1;
+            if (mix != 0) {
+                crc ^= 0x8C;
+            }
+            b >>= 1;
+        }
+        return crc;
+    }
+
+    private static int indexOf(byte[] b, int length, int from, byte c) {
+        for (int i = from; i < length; i++) {
+            if (b[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,302 @@
+package hegemone.sensors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/* the recent samples of a SampleRing over HTTP, for dashboards on the LAN
+ *
+ *   GET /latest                 newest sample of every device and schema
+ *   GET /range?from=..&to=..    samples still in the ring, timestamps in
+ *                               µs since the epoch, to defaults to now
+ *   GET /stream                 every new sample as a Server-Sent Event
+ *   GET /history                the series in the SampleStore
+ *   GET /history?device=..&schema=..&channel=..&from=..&to=..[&step=..]
+ *                               points of one series as [timestamp, value]
+ *                               pairs, or with step (µs) min, max, mean
+ *                               and last per interval
+ *
+ * The first three take device= and schema= to narrow them down and answer
+ * with the JSON documents of the HTTP sink, as an array or one per event.
+ * Everything comes out of the ring or the store, a request never reaches
+ * a sensor. Raw history is limited to MAX_POINTS points per request,
+ * longer ranges need a step.
+ * A stream has its own queue of STREAM_QUEUE samples; a client that
+ * falls behind loses samples instead of holding up the sampling threads.
+ */
+class QueryServer implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.api");
+    public static final int DEFAULT_PORT = 9111;
+    private static final int MAX_STREAMS = 8;
+    private static final int STREAM_QUEUE = 256;
+    private static final int MAX_POINTS = 100_000;
+    /* comment line sent on idle streams, keeps proxies from closing them */
+    private static final long KEEPALIVE_MS = 15_000;
+    private static final String JSON = "application/json";
+
+    private record Filter(String device, String schema) {
+        boolean test(Sample s) {
+            return (device == null || device.equals(s.getDevice()))
+                    && (schema == null || schema.equals(s.getSchema().getName()));
+        }
+    }
+
+    private final SampleRing ring;
+    /* null without a history */
+    private final SampleStore store;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicInteger streams = new AtomicInteger();
+    private final Metrics.Counter dropped;
+    private volatile boolean open = true;
+
+    public QueryServer(int port, SampleRing ring) throws IOException {
+        this(port, ring, null);
+    }
+
+    public QueryServer(int port, SampleRing ring, SampleStore store) throws IOException {
+        this.ring = ring;
+        this.store = store;
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/latest", exchange -> handle(exchange, "/latest"));
+        server.createContext("/range", exchange -> handle(exchange, "/range"));
+        server.createContext("/stream", exchange -> handle(exchange, "/stream"));
+        server.createContext("/history", exchange -> handle(exchange, "/history"));
+        /* every stream holds a thread, plus a few for the plain requests */
+        executor = Executors.newFixedThreadPool(MAX_STREAMS + 2, r -> {
+            var t = new Thread(r, "hegemone-api");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        dropped = Metrics.counter("hegemone_api_stream_dropped_total", "Samples not sent to a stream that fell behind");
+        Metrics.gauge("hegemone_api_streams", "Open event streams", streams::get);
+        server.start();
+        logger.info("Serving recent samples on port {}", getPort());
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange, String path) throws IOException {
+        try (exchange) {
+            if (!path.equals(exchange.getRequestURI().getPath())) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            Metrics.counter("hegemone_api_requests_total", "Requests to the local API", "path", path).increment();
+            var query = query(exchange);
+            var filter = new Filter(query.get("device"), query.get("schema"));
+            switch (path) {
+                case "/latest" -> send(exchange, ring.latest(), filter);
+                case "/range" -> {
+                    var range = range(query);
+                    if (range == null) {
+                        error(exchange, 400, "from (and to) are µs since the epoch\n");
+                        return;
+                    }
+                    send(exchange, ring.range(range[0], range[1]), filter);
+                }
+                case "/history" -> history(exchange, query, filter);
+                default -> stream(exchange, filter);
+            }
+        }
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        var query = new HashMap<String, String>();
+        var raw = exchange.getRequestURI().getRawQuery();
+        if (raw != null) {
+            for (var param : raw.split("&")) {
+                int eq = param.indexOf('=');
+                var key = eq < 0 ? param : param.substring(0, eq);
+                var value = eq < 0 ? "" : param.substring(eq + 1);
+                query.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+            }
+        }
+        return query;
+    }
+
+    /* from and to of a query, to defaulting to now; null if not numbers */
+    private static long[] range(Map<String, String> query) {
+        try {
+            long from = Long.parseLong(query.getOrDefault("from", ""));
+            long to = query.containsKey("to") ? Long.parseLong(query.get("to"))
+                    : TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()) + 1;
+            return new long[]{from, to};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void history(HttpExchange exchange, Map<String, String> query, Filter filter) throws IOException {
+        if (store == null) {
+            error(exchange, 404, "no history kept\n");
+            return;
+        }
+        var sb = new StringBuilder(4096).append('[');
+        if (!query.containsKey("channel")) {
+            for (var key : store.getSeries()) {
+                if ((filter.device() == null || filter.device().equals(key.device()))
+                        && (filter.schema() == null || filter.schema().equals(key.schema()))) {
+                    if (sb.length() > 1) {
+                        sb.append(',');
+                    }
+                    Sample.appendString(sb.append("{\"device_id\":"), key.device());
+                    Sample.appendString(sb.append(",\"schema\":"), key.schema());
+                    Sample.appendString(sb.append(",\"channel\":"), key.channel()).append('}');
+                }
+            }
+            json(exchange, sb.append("]\n"));
+            return;
+        }
+        var range = range(query);
+        if (filter.device() == null || filter.schema() == null || range == null) {
+            error(exchange, 400, "history needs device, schema, channel and from (and to) in µs since the epoch\n");
+            return;
+        }
+        var key = new SampleStore.SeriesKey(filter.device(), filter.schema(), query.get("channel"));
+        if (query.containsKey("step")) {
+            long step;
+            try {
+                step = Long.parseLong(query.get("step"));
+            } catch (NumberFormatException e) {
+                step = 0;
+            }
+            if (step <= 0) {
+                error(exchange, 400, "step is a positive number of µs\n");
+                return;
+            }
+            if ((range[1] - range[0]) / step >= MAX_POINTS) {
+                error(exchange, 400, "more than " + MAX_POINTS + " intervals, use a longer step\n");
+                return;
+            }
+            for (var b : store.downsample(key, range[0], range[1], step)) {
+                if (sb.length() > 1) {
+                    sb.append(',');
+                }
+                sb.append("{\"start\":").append(b.start()).append(",\"count\":").append(b.count());
+                Sample.appendNumber(sb.append(",\"min\":"), b.min());
+                Sample.appendNumber(sb.append(",\"max\":"), b.max());
+                Sample.appendNumber(sb.append(",\"mean\":"), b.mean());
+                Sample.appendNumber(sb.append(",\"last\":"), b.last());
+                sb.append('}');
+            }
+            json(exchange, sb.append("]\n"));
+            return;
+        }
+        /* stop writing past the limit, the scan still counts them */
+        var written = new int[1];
+        int n = store.scan(key, range[0], range[1], (timestamp, value) -> {
+            if (written[0]++ < MAX_POINTS) {
+                if (sb.length() > 1) {
+                    sb.append(',');
+                }
+                Sample.appendNumber(sb.append('[').append(timestamp).append(','), value);
+                sb.append(']');
+            }
+        });
+        if (n > MAX_POINTS) {
+            error(exchange, 413, "more than " + MAX_POINTS + " points, use a step or a shorter range\n");
+            return;
+        }
+        json(exchange, sb.append("]\n"));
+    }
+
+    private static void send(HttpExchange exchange, List<Sample> samples, Filter filter) throws IOException {
+        var sb = new StringBuilder(64 + 256 * samples.size()).append('[');
+        for (var s : samples) {
+            if (filter.test(s)) {
+                if (sb.length() > 1) {
+                    sb.append(',');
+                }
+                s.toJSON(sb);
+            }
+        }
+        json(exchange, sb.append("]\n"));
+    }
+
+    private static void json(HttpExchange exchange, StringBuilder sb) throws IOException {
+        var body = sb.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", JSON);
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static void error(HttpExchange exchange, int status, String message) throws IOException {
+        var body = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    /* runs until the client goes away or the server is closed */
+    private void stream(HttpExchange exchange, Filter filter) throws IOException {
+        if (streams.incrementAndGet() > MAX_STREAMS) {
+            streams.decrementAndGet();
+            error(exchange, 503, "too many streams\n");
+            return;
+        }
+        var queue = new ArrayBlockingQueue<Sample>(STREAM_QUEUE);
+        Consumer<Sample> listener = s -> {
+            if (filter.test(s) && !queue.offer(s)) {
+                dropped.increment();
+            }
+        };
+        ring.addListener(listener);
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            var out = exchange.getResponseBody();
+            var sb = new StringBuilder(1024);
+            while (open) {
+                var s = queue.poll(KEEPALIVE_MS, TimeUnit.MILLISECONDS);
+                sb.setLength(0);
+                if (s == null) {
+                    sb.append(": keepalive\n\n");
+                }
+                for (; s != null; s = queue.poll()) {
+                    s.toJSON(sb.append("data: ")).append("\n\n");
+                }
+                out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        } catch (IOException e) {
+            /* client went away */
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            ring.removeListener(listener);
+            streams.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
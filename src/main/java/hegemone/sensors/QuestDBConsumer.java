@@ -1,54 +1,174 @@
 package hegemone.sensors;
 
-import com.github.wnameless.json.flattener.JsonFlattener;
-import com.google.gson.Gson;
 import io.questdb.cutlass.line.AbstractLineSender;
 import io.questdb.cutlass.line.LineTcpSender;
 import io.questdb.cutlass.line.LineUdpSender;
 import io.questdb.network.Net;
-import io.questdb.std.Os;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+/* ILP writer with one long-lived sender
+ *
+ * Rows are written into the sender's buffer as they arrive and only
+ * flushed once FLUSH_ROWS rows are pending or FLUSH_INTERVAL has passed,
+ * or when the channel calls flush(), so many sampling cycles share one
+ * network write. A broken connection is reopened with exponential
+ * backoff. Rows that did not make it are not kept here: the failure is
+ * thrown as a DeliveryException and a spooled channel delivers them
+ * again from the spool.
+ */
 public class QuestDBConsumer implements DataConsumer {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.questdb");
+    private static final int TCP_BUFFER = 256 * 1024;
+    /* keep datagrams below a typical MTU */
+    private static final int UDP_BUFFER = 1400;
+    private static final int UDP_TTL = 2;
+    private static final int FLUSH_ROWS = 500;
+    private static final long FLUSH_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    private static final long MIN_BACKOFF = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_BACKOFF = TimeUnit.MINUTES.toNanos(1);
+
+    enum Protocol {
+        TCP, UDP
+    }
 
     private String tableName = "hegemone_sensors";
     private String IPv4Address;
     private int port;
+    private final Protocol protocol;
+    private AbstractLineSender sender;
+    /* rows written since the last successful flush */
+    private int pending;
+    private long lastFlush = System.nanoTime();
+    private long backoff = MIN_BACKOFF;
+    private long nextAttempt;
+    private long rowsSent;
+    private long connects;
 
     public QuestDBConsumer(String IPv4Address, int port) {
+        this(IPv4Address, port, Protocol.TCP);
+    }
+
+    public QuestDBConsumer(String IPv4Address, int port, Protocol protocol) {
         this.IPv4Address = IPv4Address;
         this.port = port;
+        this.protocol = protocol;
+    }
+
+    @Override
+    public void accept(Sample sample) {
+        acceptBatch(List.of(sample));
+    }
+
+    @Override
+    public synchronized void acceptBatch(List<Sample> batch) {
+        if (sender == null && !connect()) {
+            throw new DeliveryException(String.format("not connected to QuestDB at %s:%d, next attempt in %d s",
+                    IPv4Address, port, TimeUnit.NANOSECONDS.toSeconds(Math.max(0, nextAttempt - System.nanoTime()))));
+        }
+        for (var row : batch) {
+            try {
+                writeRow(sender, row);
+                pending++;
+            } catch (RuntimeException e) {
+                throw failed(e);
+            }
+        }
+        if (pending >= FLUSH_ROWS || System.nanoTime() - lastFlush >= FLUSH_INTERVAL) {
+            flush();
+        }
     }
 
+    /* write out everything pending, called by the channel worker after
+       each batch (spooled) or when idle */
     @Override
-    public void accept(String data) {
-        var gs = new Gson();
-        var flattenedData = new JsonFlattener(data).withSeparator('/').flatten();
-        var cleaned = flattenedData.replaceAll("/", "_");
-        cleaned = cleaned.replaceAll("\\[(\\d)\\]", "_$1");
-        Map map = (Map) gs.fromJson(cleaned, Object.class);
-        var entries = map.entrySet();
-        System.out.println(entries);
-        try (LineTcpSender sender = new LineTcpSender(Net.parseIPv4(IPv4Address), port, 256*1024)) {
-            var metric = sender.metric(tableName)
-                    .tag("by", "hegemone");
-            entries.forEach(e -> {
-                var entry = (Map.Entry<?, ?>) e;
-                var column = entry.getKey().toString();
-                var value = entry.getValue();
-                switch (value) {
-                    case Integer i -> metric.field(column, i);
-                    case Double d -> metric.field(column, d);
-                    case String s -> metric.field(column, s);
-                    case Long l -> metric.field(column, l);
-                    case default -> metric.field(column, value.toString());
-                }
-            });
-            System.out.println("Debug metric\n" + metric.toString());
-            metric.$(Os.currentTimeMicros() * 1000);
-            metric.flush();
+    public synchronized void flush() {
+        if (pending == 0 || sender == null) {
+            return;
+        }
+        try {
+            sender.flush();
+            rowsSent += pending;
+            pending = 0;
+            lastFlush = System.nanoTime();
+        } catch (RuntimeException e) {
+            throw failed(e);
+        }
+    }
+
+    private DeliveryException failed(RuntimeException cause) {
+        int lost = pending;
+        pending = 0;
+        disconnect(cause);
+        return new DeliveryException("QuestDB write to " + IPv4Address + ":" + port + " failed, "
+                + lost + " unflushed rows", cause);
+    }
+
+    private boolean connect() {
+        long now = System.nanoTime();
+        if (now - nextAttempt < 0) {
+            return false;
+        }
+        try {
+            int address = Net.parseIPv4(IPv4Address);
+            sender = switch (protocol) {
+                case TCP -> new LineTcpSender(address, port, TCP_BUFFER);
+                case UDP -> new LineUdpSender(Net.parseIPv4("0.0.0.0"), address, port, UDP_BUFFER, UDP_TTL);
+            };
+            backoff = MIN_BACKOFF;
+            connects++;
+            logger.info("Connected to QuestDB at {}:{} over {}", IPv4Address, port, protocol);
+            return true;
+        } catch (RuntimeException e) {
+            disconnect(e);
+            return false;
+        }
+    }
+
+    private void disconnect(RuntimeException cause) {
+        logger.warn("QuestDB connection to {}:{} failed, retrying in {} s: {}",
+                IPv4Address, port, TimeUnit.NANOSECONDS.toSeconds(backoff), cause.toString());
+        if (sender != null) {
+            try {
+                sender.close();
+            } catch (RuntimeException e) {
+                /* already broken */
+            }
+            sender = null;
+        }
+        nextAttempt = System.nanoTime() + backoff;
+        backoff = Math.min(backoff * 2, MAX_BACKOFF);
+    }
+
+    /* all channels are written as doubles, like the numbers of the
+       JSON documents this table was originally fed from */
+    void writeRow(AbstractLineSender sender, Sample row) {
+        var metric = sender.metric(tableName)
+                .tag("by", "hegemone")
+                .field("device_id", row.getDevice());
+        for (int i = 0; i < row.size(); i++) {
+            double v = row.value(i);
+            /* unreadable channels are left out of the row */
+            if (!Double.isNaN(v)) {
+                metric.field(row.channel(i), v);
+            }
         }
+        metric.$(row.getTimestamp() * 1000);
+    }
+
+    public synchronized long getRowsSent() {
+        return rowsSent;
+    }
+
+    public synchronized int getPendingRows() {
+        return pending;
+    }
+
+    public synchronized long getConnects() {
+        return connects;
     }
 
         public void setTableName (String tableName){
@@ -0,0 +1,182 @@
+package hegemone.sensors;
+
+import io.helins.linux.i2c.I2CBuffer;
+import io.helins.linux.i2c.I2CFlag;
+import io.helins.linux.i2c.I2CTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+
+/* plays a recorded I2CTrace back to the drivers
+ *
+ * Every transfer the driver makes is matched against the recorded
+ * transactions in order: same devices, directions and lengths, and the
+ * same bytes for writes. Reads are answered with the recorded replies,
+ * recorded failures (ret < 0) are thrown as IOExceptions, and when timed
+ * each transaction takes as long as it did on the recording.
+ *
+ * Strict replay fails on the first transfer that does not match the next
+ * recorded one, for checking a driver still talks to the chip exactly as
+ * recorded. Lenient replay skips ahead to the next match, so a driver
+ * that polls more or less often than the recording still gets the
+ * recorded answers; unmatched reads return zeros and are counted.
+ */
+class ReplayI2CBus implements I2CPort {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.simulation");
+
+    private final I2CTrace trace;
+    private final List<I2CTrace.Transaction> recorded;
+    private final boolean strict;
+    private final boolean timed;
+    private int cursor;
+    private int slave;
+    private long matched;
+    private long skipped;
+    private long unmatched;
+
+    public ReplayI2CBus(I2CTrace trace, boolean strict, boolean timed) {
+        this.trace = trace;
+        this.recorded = trace.getTransactions();
+        this.strict = strict;
+        this.timed = timed;
+    }
+
+    @Override
+    public String getName() {
+        return "replay of " + trace.getName();
+    }
+
+    @Override
+    public synchronized void selectSlave(int address) {
+        slave = address;
+    }
+
+    @Override
+    public synchronized void read(I2CBuffer buffer, int length) throws IOException {
+        replay(new int[]{slave}, new boolean[]{true}, new I2CBuffer[]{buffer}, new int[]{length});
+    }
+
+    @Override
+    public synchronized void write(I2CBuffer buffer, int length) throws IOException {
+        replay(new int[]{slave}, new boolean[]{false}, new I2CBuffer[]{buffer}, new int[]{length});
+    }
+
+    @Override
+    public synchronized void doTransaction(I2CTransaction transaction) throws IOException {
+        int n = transaction.length;
+        var addresses = new int[n];
+        var reads = new boolean[n];
+        var buffers = new I2CBuffer[n];
+        var lengths = new int[n];
+        for (int i = 0; i < n; i++) {
+            var msg = transaction.getMessage(i);
+            addresses[i] = msg.getAddress();
+            reads[i] = msg.getFlags().isSet(I2CFlag.READ);
+            buffers[i] = msg.getBuffer();
+            lengths[i] = buffers[i].length;
+        }
+        replay(addresses, reads, buffers, lengths);
+    }
+
+    private void replay(int[] addresses, boolean[] reads, I2CBuffer[] buffers, int[] lengths) throws IOException {
+        int found = -1;
+        for (int i = cursor; i < recorded.size(); i++) {
+            if (matches(recorded.get(i), addresses, reads, buffers, lengths)) {
+                found = i;
+                break;
+            }
+            if (strict) {
+                break;
+            }
+        }
+        if (found < 0) {
+            if (strict) {
+                throw new IOException(cursor < recorded.size()
+                        ? "transfer does not match " + trace.getName() + " line " + recorded.get(cursor).line()
+                        : "transfer past the end of " + trace.getName());
+            }
+            unmatched++;
+            for (int m = 0; m < buffers.length; m++) {
+                if (reads[m]) {
+                    for (int i = 0; i < lengths[m]; i++) {
+                        buffers[m].set(i, 0);
+                    }
+                }
+            }
+            logger.debug("No recorded transfer for 0x{}, answering with zeros", Integer.toHexString(addresses[0]));
+            return;
+        }
+        var t = recorded.get(found);
+        skipped += found - cursor;
+        cursor = found + 1;
+        matched++;
+        long start = System.nanoTime();
+        if (t.ret() < 0) {
+            throw new IOException("recorded transfer failed with errno " + -t.ret() + " (line " + t.line() + ")");
+        }
+        for (int m = 0; m < buffers.length; m++) {
+            if (reads[m]) {
+                var data = t.messages().get(m).data();
+                for (int i = 0; i < lengths[m]; i++) {
+                    buffers[m].set(i, i < data.length ? data[i] : 0);
+                }
+            }
+        }
+        if (timed) {
+            Timing.sleepUntil(start + t.durationUs() * 1000);
+        }
+    }
+
+    private static boolean matches(I2CTrace.Transaction t, int[] addresses, boolean[] reads,
+                                   I2CBuffer[] buffers, int[] lengths) {
+        var messages = t.messages();
+        if (messages.size() != addresses.length) {
+            return false;
+        }
+        for (int m = 0; m < addresses.length; m++) {
+            var msg = messages.get(m);
+            if (msg.address() != addresses[m] || msg.isRead() != reads[m] || msg.length() != lengths[m]) {
+                return false;
+            }
+            if (!reads[m]) {
+                var data = msg.data();
+                for (int i = 0; i < lengths[m]; i++) {
+                    if (i >= data.length || data[i] != buffers[m].get(i)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /* transfers answered from the recording */
+    public synchronized long getMatched() {
+        return matched;
+    }
+
+    /* recorded transactions passed over by lenient replay */
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+
+    public synchronized long getUnmatched() {
+        return unmatched;
+    }
+
+    public synchronized int getRemaining() {
+        return recorded.size() - cursor;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: matched=%d skipped=%d unmatched=%d remaining=%d",
+                getName(), matched, skipped, unmatched, recorded.size() - cursor);
+    }
+
+    @Override
+    public void close() {
+    }
+}
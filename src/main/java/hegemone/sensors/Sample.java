@@ -0,0 +1,205 @@
+package hegemone.sensors;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/* one timestamped reading of a sensor group
+ *
+ * Values are stored in schema order in a primitive array; a channel that
+ * could not be read is NaN. Samples are immutable once built, so they can
+ * be shared between consumer threads without copying.
+ */
+public final class Sample {
+    private final String device;
+    private final long timestamp;
+    private final SampleSchema schema;
+    private final double[] values;
+
+    /* timestamp in microseconds since the epoch, values in schema order.
+       The array is taken over, not copied: do not touch it afterwards. */
+    public Sample(String device, long timestamp, SampleSchema schema, double... values) {
+        if (values.length != schema.size()) {
+            throw new IllegalArgumentException("expected " + schema.size() + " values for " + schema.getName()
+                    + ", got " + values.length);
+        }
+        this.device = device;
+        this.timestamp = timestamp;
+        this.schema = schema;
+        this.values = values;
+    }
+
+    public String getDevice() {
+        return device;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public SampleSchema getSchema() {
+        return schema;
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public String channel(int i) {
+        return schema.channel(i);
+    }
+
+    public double value(int i) {
+        return values[i];
+    }
+
+    /* NaN if the channel is not part of this sample */
+    public double value(String channel) {
+        int i = schema.indexOf(channel);
+        return i < 0 ? Double.NaN : values[i];
+    }
+
+    /* flat JSON object, {"device_id":..,"timestamp":..,<channel>:<value>,..} */
+    public StringBuilder toJSON(StringBuilder sb) {
+        appendString(sb.append("{\"device_id\":"), device).append(",\"timestamp\":").append(timestamp);
+        for (int i = 0; i < values.length; i++) {
+            appendString(sb.append(','), schema.channel(i)).append(':');
+            appendNumber(sb, values[i]);
+        }
+        return sb.append('}');
+    }
+
+    public String toJSON() {
+        return toJSON(new StringBuilder(64 + 32 * values.length)).toString();
+    }
+
+    /* the nested document the HTTP sink posted before samples were typed:
+       spectral_data_<i> make up the array spectral_data, light_measurement_<x>
+       and rlqi_<x> the objects light_measurement and rlqi, other channels
+       stay flat. Groups without channels in this sample are left out. */
+    public StringBuilder toLegacyJSON(StringBuilder sb) {
+        appendString(sb.append("{\"device_id\":"), device).append(",\"timestamp\":").append(timestamp);
+        for (int i = 0; i < values.length; i++) {
+            var channel = schema.channel(i);
+            if (!channel.startsWith(SPECTRAL_DATA) && !channel.startsWith(LIGHT_MEASUREMENT)
+                    && !channel.startsWith(RLQI)) {
+                appendString(sb.append(','), channel).append(':');
+                appendNumber(sb, values[i]);
+            }
+        }
+        int open = -1;
+        for (int i = 0; i < values.length; i++) {
+            if (schema.channel(i).startsWith(SPECTRAL_DATA)) {
+                sb.append(open < 0 ? ",\"spectral_data\":[" : ",");
+                appendNumber(sb, values[i]);
+                open = i;
+            }
+        }
+        if (open >= 0) {
+            sb.append(']');
+        }
+        appendGroup(sb, LIGHT_MEASUREMENT);
+        appendGroup(sb, RLQI);
+        return sb.append('}');
+    }
+
+    private static final String SPECTRAL_DATA = "spectral_data_";
+    private static final String LIGHT_MEASUREMENT = "light_measurement_";
+    private static final String RLQI = "rlqi_";
+
+    /* the channels starting with prefix as an object named after it, without the prefix */
+    private void appendGroup(StringBuilder sb, String prefix) {
+        boolean open = false;
+        for (int i = 0; i < values.length; i++) {
+            var channel = schema.channel(i);
+            if (channel.startsWith(prefix)) {
+                if (open) {
+                    sb.append(',');
+                } else {
+                    sb.append(",\"").append(prefix, 0, prefix.length() - 1).append("\":{");
+                    open = true;
+                }
+                appendString(sb, channel.substring(prefix.length())).append(':');
+                appendNumber(sb, values[i]);
+            }
+        }
+        if (open) {
+            sb.append('}');
+        }
+    }
+
+    /* s as a JSON string, quotes, backslashes and control characters escaped */
+    static StringBuilder appendString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+        return sb.append('"');
+    }
+
+    static void appendNumber(StringBuilder sb, double v) {
+        if (Double.isNaN(v) || Double.isInfinite(v)) {
+            sb.append("null");
+        } else if (v == (long) v) {
+            sb.append((long) v);
+        } else {
+            sb.append(v);
+        }
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(device);
+        out.writeLong(timestamp);
+        out.writeUTF(schema.getName());
+        out.writeShort(values.length);
+        for (int i = 0; i < values.length; i++) {
+            out.writeUTF(schema.channel(i));
+            out.writeDouble(values[i]);
+        }
+    }
+
+    public static Sample readFrom(DataInput in) throws IOException {
+        var device = in.readUTF();
+        var timestamp = in.readLong();
+        var name = in.readUTF();
+        int n = in.readUnsignedShort();
+        var channels = new String[n];
+        var values = new double[n];
+        for (int i = 0; i < n; i++) {
+            channels[i] = in.readUTF();
+            values[i] = in.readDouble();
+        }
+        return new Sample(device, timestamp, new SampleSchema(name, channels), values);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Sample s && timestamp == s.timestamp && device.equals(s.device)
+                && schema.equals(s.schema) && Arrays.equals(values, s.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(timestamp) * 31 + Arrays.hashCode(values);
+    }
+
+    @Override
+    public String toString() {
+        return toJSON();
+    }
+}
@@ -0,0 +1,570 @@
+package hegemone.sensors;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/* compact binary encoding of sample streams
+ *
+ *   stream:  [sync] "HSB1" record*
+ *   record:  SCHEMA  0x01 id name count (channel decimals)*
+ *            DEVICE  0x02 index name
+ *            SAMPLE  0x03 schema device flags timestamp [nan mask] value*
+ *
+ * Integers are LEB128 varints, signed ones zigzag encoded first; names
+ * are a varint length and UTF-8. Values are stored as integers, scaled
+ * by 10^decimals of their channel. Per schema and device the first
+ * sample of a stream is a key frame (absolute timestamp and values);
+ * after it the timestamp is the delta of the delta to the previous
+ * sample, 0 for a sample on schedule, and each value the delta to the
+ * previous one. Channels that are NaN are left out and marked in a
+ * bit mask, which is only present when flags bit 0 is set; a sample
+ * without any finite value has flags bit 2 set instead and no mask.
+ *
+ * The schemas of Sensors have fixed ids below 128 and are never sent;
+ * other schemas are defined in the stream with ids from 128 on. A new
+ * "HSB1" header resets all state, so streams can be concatenated (the
+ * data dump gets one per daemon start).
+ *
+ * A stream written after a crash may follow a record cut short. Such
+ * streams start with a sync, SYNC_LENGTH bytes of 0xFF: no record holds
+ * a run that long (varints end within 10 bytes, UTF-8 has no 0xFF), so
+ * reading a cut record on into it always fails instead of taking the
+ * next header for data. For that a NaN mask that leaves out every
+ * channel is corrupt in such a stream, it could be the sync itself. The decoder then skips from the start of the
+ * damaged record to the next "HSB1" and goes on from there.
+ *
+ * Run as a program it decodes streams into one JSON object per line.
+ */
+class SampleCodec {
+    static final byte[] MAGIC = {'H', 'S', 'B', '1'};
+    public static final String CONTENT_TYPE = "application/x-hegemone-samples";
+    private static final int SCHEMA = 0x01;
+    private static final int DEVICE = 0x02;
+    private static final int SAMPLE = 0x03;
+    private static final int SYNC = 0xFF;
+    private static final int SYNC_LENGTH = 32;
+    /* bounds on what a record may declare, a corrupt one is caught before it is read */
+    private static final int MAX_NAME = 1024;
+    private static final int MAX_CHANNELS = 1024;
+    private static final int MAX_RECORD = 2 * MAX_CHANNELS * (MAX_NAME + 8);
+    private static final int HAS_NAN = 0x01;
+    private static final int KEY_FRAME = 0x02;
+    private static final int ALL_NAN = 0x04;
+    private static final int FIRST_STREAM_ID = 128;
+    private static final double[] POW10 = {1, 10, 100, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9};
+
+    /* a schema with its wire id and per-channel scale */
+    record Definition(int id, SampleSchema schema, int[] decimals) {
+    }
+
+    private static final Map<Integer, Definition> FIXED = new HashMap<>();
+    private static final Map<SampleSchema, Definition> FIXED_BY_SCHEMA = new HashMap<>();
+
+    /* the spectral layouts before light_band_*, ppfd, red_far_red and dli */
+    private static final String[] SPECTRAL_V1 = {
+            "spectral_data_0", "spectral_data_1", "spectral_data_2", "spectral_data_3",
+            "spectral_data_4", "spectral_data_5", "spectral_data_6", "spectral_data_7",
+            "spectral_data_8", "spectral_data_9",
+            "light_measurement_red", "light_measurement_blue", "light_measurement_green",
+            "light_measurement_far_red",
+            "rlqi_blue", "rlqi_green", "rlqi_red"};
+
+    private static SampleSchema spectralV1(String name, String... more) {
+        var channels = new ArrayList<>(List.of(SPECTRAL_V1));
+        channels.addAll(List.of(more));
+        return new SampleSchema(name, channels.toArray(new String[0]));
+    }
+
+    /* never renumber, old dumps refer to these ids; a schema that changes
+       gets a new id and its old layout stays here for decoding */
+    static {
+        define(1, spectralV1("spectral"), 0);
+        define(2, Sensors.LIGHT, 0);
+        define(3, Sensors.SOIL, 0, 3);
+        define(4, Sensors.TEMPERATURE, 3);
+        define(5, spectralV1("all", "light_measurement_white", "moisture_level", "soil_temp", "ambient_temp"),
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 3, 3);
+        define(6, spectralV1("spectral_auto", "spectral_gain", "spectral_integration_us", "spectral_saturated"),
+                2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0);
+        define(7, Sensors.SPECTRAL, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 2, 3, 4);
+        define(8, Sensors.ALL, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 2, 3, 4, 0, 0, 3, 3);
+        define(9, Sensors.SPECTRAL_AUTO, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 0, 0, 0, 0, 0, 0, 0, 2, 2, 2, 2, 2, 3, 4, 1, 0, 0);
+    }
+
+    /* decimals per channel, one value for all channels */
+    static synchronized void define(int id, SampleSchema schema, int... decimals) {
+        if (id < 1 || id >= FIRST_STREAM_ID || FIXED.containsKey(id)) {
+            throw new IllegalArgumentException("schema id " + id + " is out of range or taken");
+        }
+        var d = decimals(schema, decimals);
+        var def = new Definition(id, schema, d);
+        FIXED.put(id, def);
+        FIXED_BY_SCHEMA.put(schema, def);
+    }
+
+    private static int[] decimals(SampleSchema schema, int[] decimals) {
+        var d = new int[schema.size()];
+        for (int i = 0; i < d.length; i++) {
+            int v = decimals.length == 1 ? decimals[0] : decimals.length > i ? decimals[i] : 0;
+            if (v < 0 || v >= POW10.length) {
+                throw new IllegalArgumentException("0 to " + (POW10.length - 1) + " decimals");
+            }
+            d[i] = v;
+        }
+        return d;
+    }
+
+    /* encode/decode state of one schema and device */
+    private static class Track {
+        final Definition def;
+        final long[] last;
+        boolean started;
+        long timestamp;
+        long delta;
+
+        Track(Definition def) {
+            this.def = def;
+            this.last = new long[def.schema().size()];
+        }
+    }
+
+    /* writes one stream, not thread safe */
+    static class Encoder {
+        private final OutputStream out;
+        private final boolean sync;
+        private final Map<SampleSchema, Definition> local = new HashMap<>();
+        private final Map<String, Integer> devices = new HashMap<>();
+        private final Map<Long, Track> tracks = new HashMap<>();
+        private int nextId;
+        private boolean started;
+
+        Encoder(OutputStream out) {
+            this(out, false);
+        }
+
+        /* with sync for streams appended to a file that may end in a cut record */
+        Encoder(OutputStream out, boolean sync) {
+            this.out = out;
+            this.sync = sync;
+            reset();
+        }
+
+        /* start a new stream, the next write begins with a header */
+        public void reset() {
+            local.clear();
+            devices.clear();
+            tracks.clear();
+            nextId = FIRST_STREAM_ID;
+            started = false;
+        }
+
+        public void write(Sample sample) throws IOException {
+            if (!started) {
+                if (sync) {
+                    for (int i = 0; i < SYNC_LENGTH; i++) {
+                        out.write(SYNC);
+                    }
+                }
+                out.write(MAGIC);
+                started = true;
+            }
+            var def = definition(sample.getSchema());
+            int device = device(sample.getDevice());
+            var track = tracks.computeIfAbsent((long) def.id() << 32 | device, k -> new Track(def));
+            boolean key = !track.started;
+            track.started = true;
+            int n = sample.size();
+            int nans = 0;
+            for (int i = 0; i < n; i++) {
+                nans += Double.isFinite(sample.value(i)) ? 0 : 1;
+            }
+            boolean nan = nans > 0 && nans < n;
+            out.write(SAMPLE);
+            writeVarint(out, def.id());
+            writeVarint(out, device);
+            out.write((nan ? HAS_NAN : 0) | (key ? KEY_FRAME : 0) | (n > 0 && nans == n ? ALL_NAN : 0));
+            long ts = sample.getTimestamp();
+            if (key) {
+                writeSigned(out, ts);
+                track.delta = 0;
+            } else {
+                long delta = ts - track.timestamp;
+                writeSigned(out, delta - track.delta);
+                track.delta = delta;
+            }
+            track.timestamp = ts;
+            if (nan) {
+                for (int b = 0; b < (n + 7) / 8; b++) {
+                    int mask = 0;
+                    for (int i = 8 * b; i < Math.min(n, 8 * b + 8); i++) {
+                        if (!Double.isFinite(sample.value(i))) {
+                            mask |= 1 << (i - 8 * b);
+                        }
+                    }
+                    out.write(mask);
+                }
+            }
+            var decimals = def.decimals();
+            for (int i = 0; i < n; i++) {
+                double v = sample.value(i);
+                if (!Double.isFinite(v)) {
+                    continue;
+                }
+                long q = Math.round(v * POW10[decimals[i]]);
+                writeSigned(out, key ? q : q - track.last[i]);
+                track.last[i] = q;
+            }
+        }
+
+        private Definition definition(SampleSchema schema) throws IOException {
+            Definition def;
+            synchronized (SampleCodec.class) {
+                def = FIXED_BY_SCHEMA.get(schema);
+            }
+            if (def != null) {
+                return def;
+            }
+            def = local.get(schema);
+            if (def == null) {
+                /* schemas without a fixed id get six decimals */
+                def = new Definition(nextId++, schema, decimals(schema, new int[]{6}));
+                local.put(schema, def);
+                out.write(SCHEMA);
+                writeVarint(out, def.id());
+                writeString(out, schema.getName());
+                writeVarint(out, schema.size());
+                for (int i = 0; i < schema.size(); i++) {
+                    writeString(out, schema.channel(i));
+                    out.write(def.decimals()[i]);
+                }
+            }
+            return def;
+        }
+
+        private int device(String name) throws IOException {
+            var index = devices.get(name);
+            if (index == null) {
+                index = devices.size();
+                devices.put(name, index);
+                out.write(DEVICE);
+                writeVarint(out, index);
+                writeString(out, name);
+            }
+            return index;
+        }
+    }
+
+    /* a record that cannot be right */
+    private static final class CorruptStreamException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CorruptStreamException(String message) {
+            super("corrupt sample stream, " + message);
+        }
+    }
+
+    /* reads concatenated streams, skipping damaged records */
+    static class Decoder {
+        private final BufferedInputStream in;
+        private final Map<Integer, Definition> local = new HashMap<>();
+        private final List<String> devices = new ArrayList<>();
+        private final Map<Long, Track> tracks = new HashMap<>();
+        private long skipped;
+        /* a header was read, input without one is no sample stream at all */
+        private boolean started;
+        /* the current stream began with a sync */
+        private boolean synced;
+
+        Decoder(InputStream in) {
+            /* marks the start of every record to go back to it */
+            this.in = new BufferedInputStream(in);
+        }
+
+        /* next sample, null at the end of input */
+        public Sample read() throws IOException {
+            while (true) {
+                in.mark(MAX_RECORD);
+                try {
+                    int tag = in.read();
+                    switch (tag) {
+                        case -1 -> {
+                            return null;
+                        }
+                        case SYNC -> sync();
+                        case 'H' -> header();
+                        case SCHEMA -> schema();
+                        case DEVICE -> device();
+                        case SAMPLE -> {
+                            return sample();
+                        }
+                        default -> throw new CorruptStreamException("unknown record 0x" + Integer.toHexString(tag));
+                    }
+                } catch (EOFException | CorruptStreamException e) {
+                    if (!resync()) {
+                        if (!started) {
+                            throw new IOException("not a hegemone sample stream", e);
+                        }
+                        return null;
+                    }
+                }
+            }
+        }
+
+        /* bytes passed over in damaged records, a cut end included */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        /* from the byte after the start of the damaged record to past the next header */
+        private boolean resync() throws IOException {
+            in.reset();
+            long scanned = in.skip(1);
+            int matched = 0;
+            /* 0xFF right before the header, a sync */
+            int run = 0;
+            int syncRun = 0;
+            while (matched < MAGIC.length) {
+                int b = in.read();
+                if (b < 0) {
+                    skipped += scanned;
+                    return false;
+                }
+                scanned++;
+                if (b == MAGIC[0]) {
+                    syncRun = run;
+                }
+                run = b == SYNC ? run + 1 : 0;
+                matched = b == MAGIC[matched] ? matched + 1 : b == MAGIC[0] ? 1 : 0;
+            }
+            /* the sync belongs to the next stream */
+            skipped += scanned - MAGIC.length - syncRun;
+            reset();
+            synced = syncRun >= SYNC_LENGTH;
+            return true;
+        }
+
+        private void sync() throws IOException {
+            int b;
+            do {
+                b = readByte(in);
+            } while (b == SYNC);
+            if (b != 'H') {
+                throw new CorruptStreamException("no header after sync");
+            }
+            header();
+            synced = true;
+        }
+
+        private void header() throws IOException {
+            for (int i = 1; i < MAGIC.length; i++) {
+                if (in.read() != MAGIC[i]) {
+                    throw new CorruptStreamException("bad header");
+                }
+            }
+            reset();
+        }
+
+        private void reset() {
+            started = true;
+            synced = false;
+            local.clear();
+            devices.clear();
+            tracks.clear();
+        }
+
+        private void device() throws IOException {
+            long index = readVarint(in);
+            var name = readString(in);
+            /* numbered in order of appearance */
+            if (index > devices.size()) {
+                throw new CorruptStreamException("device " + index + " out of order");
+            }
+            if (index == devices.size()) {
+                devices.add(name);
+            } else {
+                devices.set((int) index, name);
+            }
+        }
+
+        private void schema() throws IOException {
+            long id = readVarint(in);
+            var name = readString(in);
+            long n = readVarint(in);
+            if (id < FIRST_STREAM_ID || id > Integer.MAX_VALUE || n > MAX_CHANNELS) {
+                throw new CorruptStreamException("schema " + id + " with " + n + " channels");
+            }
+            var channels = new String[(int) n];
+            var decimals = new int[(int) n];
+            for (int i = 0; i < n; i++) {
+                channels[i] = readString(in);
+                decimals[i] = readByte(in);
+                if (decimals[i] >= POW10.length) {
+                    throw new CorruptStreamException(decimals[i] + " decimals");
+                }
+            }
+            local.put((int) id, new Definition((int) id, new SampleSchema(name, channels), decimals));
+        }
+
+        private Sample sample() throws IOException {
+            int id = (int) readVarint(in);
+            int device = (int) readVarint(in);
+            Definition def;
+            synchronized (SampleCodec.class) {
+                def = id < FIRST_STREAM_ID ? FIXED.get(id) : local.get(id);
+            }
+            if (def == null || device < 0 || device >= devices.size()) {
+                throw new CorruptStreamException("undefined schema " + id + " or device " + device);
+            }
+            int flags = readByte(in);
+            if ((flags & ~(HAS_NAN | KEY_FRAME | ALL_NAN)) != 0 || (flags & (HAS_NAN | ALL_NAN)) == (HAS_NAN | ALL_NAN)) {
+                throw new CorruptStreamException("flags 0x" + Integer.toHexString(flags));
+            }
+            var track = tracks.computeIfAbsent((long) id << 32 | device, k -> new Track(def));
+            boolean key = (flags & KEY_FRAME) != 0;
+            if (key) {
+                track.timestamp = readSigned(in);
+                track.delta = 0;
+            } else {
+                track.delta += readSigned(in);
+                track.timestamp += track.delta;
+            }
+            int n = def.schema().size();
+            var nan = new boolean[n];
+            if ((flags & ALL_NAN) != 0) {
+                Arrays.fill(nan, true);
+            } else if ((flags & HAS_NAN) != 0) {
+                int nans = 0;
+                for (int b = 0; b < (n + 7) / 8; b++) {
+                    int mask = readByte(in);
+                    /* bits past the last channel are never set */
+                    if (mask >>> Math.min(8, n - 8 * b) != 0) {
+                        throw new CorruptStreamException("NaN mask 0x" + Integer.toHexString(mask));
+                    }
+                    for (int i = 8 * b; i < Math.min(n, 8 * b + 8); i++) {
+                        nan[i] = (mask & 1 << (i - 8 * b)) != 0;
+                        nans += nan[i] ? 1 : 0;
+                    }
+                }
+                if (synced && nans == n) {
+                    throw new CorruptStreamException("NaN mask without a value");
+                }
+            }
+            var values = new double[n];
+            var decimals = def.decimals();
+            for (int i = 0; i < n; i++) {
+                if (nan[i]) {
+                    values[i] = Double.NaN;
+                    continue;
+                }
+                long q = key ? readSigned(in) : track.last[i] + readSigned(in);
+                track.last[i] = q;
+                values[i] = q / POW10[decimals[i]];
+            }
+            return new Sample(devices.get(device), track.timestamp, def.schema(), values);
+        }
+    }
+
+    static void writeVarint(OutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    static void writeSigned(OutputStream out, long v) throws IOException {
+        writeVarint(out, (v << 1) ^ (v >> 63));
+    }
+
+    static long readVarint(InputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("truncated sample stream");
+            }
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new CorruptStreamException("varint too long");
+    }
+
+    static long readSigned(InputStream in) throws IOException {
+        long v = readVarint(in);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void writeString(OutputStream out, String s) throws IOException {
+        var b = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, b.length);
+        out.write(b);
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("truncated sample stream");
+        }
+        return b;
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        long len = readVarint(in);
+        if (len > MAX_NAME) {
+            throw new CorruptStreamException("name of " + len + " bytes");
+        }
+        var b = in.readNBytes((int) len);
+        if (b.length != len) {
+            throw new EOFException("truncated sample stream");
+        }
+        for (var c : b) {
+            /* never in UTF-8, e.g. a sync */
+            if ((c & 0xFF) >= 0xF8) {
+                throw new CorruptStreamException("name is not UTF-8");
+            }
+        }
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /* hegemone.sensors.SampleCodec [file...], stdin without arguments */
+    public static void main(String[] args) throws IOException {
+        var out = new PrintStream(new BufferedOutputStream(System.out), false, StandardCharsets.UTF_8);
+        var sb = new StringBuilder(1024);
+        if (args.length == 0) {
+            decode(System.in, out, sb);
+        }
+        for (var a : args) {
+            try (var in = new FileInputStream(a)) {
+                decode(in, out, sb);
+            }
+        }
+        out.flush();
+    }
+
+    private static void decode(InputStream in, PrintStream out, StringBuilder sb) throws IOException {
+        var decoder = new Decoder(in);
+        Sample s;
+        while ((s = decoder.read()) != null) {
+            sb.setLength(0);
+            out.println(s.toJSON(sb));
+        }
+        if (decoder.getSkipped() > 0) {
+            /* records cut short, e.g. by a power loss */
+            System.err.println("skipped " + decoder.getSkipped() + " bytes of damaged records");
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package hegemone.sensors;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/* the last samples of every sensor group, in memory, for the local API
+ *
+ * One ring per device and schema: capacity timestamps in a long[] and
+ * their values in one double[], written in place, so adding a sample
+ * copies it and allocates nothing once a group has been seen. add() is
+ * called on the sampling threads with the raw samples, before the stages;
+ * readers copy out under the ring's lock and build their Samples from
+ * the copy, the sensors and their buses are never involved. Listeners
+ * get every sample after it is in the ring, on the sampling thread, and
+ * must not block.
+ */
+class SampleRing {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private record Source(String device, SampleSchema schema) {
+    }
+
+    private static final class Ring {
+        final String device;
+        final SampleSchema schema;
+        final long[] timestamps;
+        final double[] values;
+        /* samples ever written, the next goes to written % capacity */
+        long written;
+
+        Ring(String device, SampleSchema schema, int capacity) {
+            this.device = device;
+            this.schema = schema;
+            timestamps = new long[capacity];
+            values = new double[capacity * schema.size()];
+        }
+
+        synchronized void add(Sample sample) {
+            int slot = (int) (written++ % timestamps.length);
+            timestamps[slot] = sample.getTimestamp();
+            int width = schema.size();
+            for (int i = 0, v = slot * width; i < width; i++, v++) {
+                values[v] = sample.value(i);
+            }
+        }
+
+        private Sample sample(int slot) {
+            int width = schema.size();
+            var v = new double[width];
+            System.arraycopy(values, slot * width, v, 0, width);
+            return new Sample(device, timestamps[slot], schema, v);
+        }
+
+        synchronized Sample latest() {
+            return written == 0 ? null : sample((int) ((written - 1) % timestamps.length));
+        }
+
+        synchronized void range(long from, long to, List<Sample> out) {
+            for (long n = Math.max(0, written - timestamps.length); n < written; n++) {
+                int slot = (int) (n % timestamps.length);
+                if (timestamps[slot] >= from && timestamps[slot] < to) {
+                    out.add(sample(slot));
+                }
+            }
+        }
+    }
+
+    private final int capacity;
+    private final Map<Source, Ring> rings = new ConcurrentHashMap<>();
+    private final List<Consumer<Sample>> listeners = new CopyOnWriteArrayList<>();
+
+    public SampleRing() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /* capacity samples per device and schema */
+    public SampleRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("ring needs room for a sample");
+        }
+        this.capacity = capacity;
+    }
+
+    public void add(Sample sample) {
+        var source = new Source(sample.getDevice(), sample.getSchema());
+        var ring = rings.get(source);
+        if (ring == null) {
+            ring = rings.computeIfAbsent(source, s -> new Ring(s.device(), s.schema(), capacity));
+        }
+        ring.add(sample);
+        for (var l : listeners) {
+            l.accept(sample);
+        }
+    }
+
+    public void addListener(Consumer<Sample> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<Sample> listener) {
+        listeners.remove(listener);
+    }
+
+    /* the newest sample of every device and schema */
+    public List<Sample> latest() {
+        var out = new ArrayList<Sample>();
+        for (var ring : rings.values()) {
+            var s = ring.latest();
+            if (s != null) {
+                out.add(s);
+            }
+        }
+        out.sort(Comparator.comparing(Sample::getDevice).thenComparing(s -> s.getSchema().getName()));
+        return out;
+    }
+
+    /* the samples still held with from <= timestamp < to, oldest first */
+    public List<Sample> range(long from, long to) {
+        var out = new ArrayList<Sample>();
+        for (var ring : rings.values()) {
+            ring.range(from, to, out);
+        }
+        out.sort(Comparator.comparingLong(Sample::getTimestamp));
+        return out;
+    }
+}
@@ -0,0 +1,52 @@
+package hegemone.sensors;
+
+import java.util.Arrays;
+
+/* the fixed, ordered list of channels a sensor group reports.
+   Channel names double as QuestDB column names. */
+public final class SampleSchema {
+    private final String name;
+    private final String[] channels;
+
+    public SampleSchema(String name, String... channels) {
+        this.name = name;
+        this.channels = channels.clone();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+        return channels.length;
+    }
+
+    public String channel(int i) {
+        return channels[i];
+    }
+
+    /* -1 if the schema has no such channel */
+    public int indexOf(String channel) {
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i].equals(channel)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SampleSchema s && name.equals(s.name) && Arrays.equals(channels, s.channels);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * name.hashCode() + Arrays.hashCode(channels);
+    }
+
+    @Override
+    public String toString() {
+        return name + Arrays.toString(channels);
+    }
+}
@@ -0,0 +1,511 @@
+package hegemone.sensors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/* durable append-only log of samples, the write-ahead spool of the sinks
+ *
+ * Samples are appended to memory-mapped segment files of SEGMENT_SIZE
+ * bytes, named after the sequence number of their first record:
+ *
+ *   segment: magic "HSP1" | version | base sequence (long) | records...
+ *   record:  length (int) | CRC32C of the payload (int) | payload
+ *
+ * The payload is Sample.writeTo(). On open the newest segment is scanned
+ * up to the first empty or damaged record, which is where a crash cut
+ * the log short, and appending continues from there.
+ *
+ * Every sink reads through its own Cursor, persisted in <name>.cursor,
+ * and commits once its sink has accepted what it read. Delivery is at
+ * least once: after a crash a sink sees again what it read since its
+ * last persisted commit (at most CURSOR_SYNC_MS). Segments all cursors
+ * have passed are deleted; past maxBytes the oldest segment is deleted
+ * anyway and cursors still in it lose those records.
+ */
+class SampleSpool implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.spool");
+    private static final int MAGIC = 0x48535031;
+    private static final int VERSION = 1;
+    private static final int HEADER = 16;
+    private static final int RECORD_HEADER = 8;
+    private static final String SUFFIX = ".seg";
+    private static final long CURSOR_SYNC_MS = 1000;
+    public static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    public static final long MAX_BYTES = 256L * 1024 * 1024;
+
+    enum SyncPolicy {
+        /* msync after every append, survives power loss, slowest */
+        ALWAYS,
+        /* msync from a background thread every syncIntervalMs */
+        INTERVAL,
+        /* leave write back to the kernel, survives a crash of the daemon only */
+        NEVER
+    }
+
+    private final File dir;
+    private final int segmentSize;
+    private final long maxBytes;
+    private final SyncPolicy syncPolicy;
+    /* base sequence -> segment file, oldest first */
+    private final TreeMap<Long, File> segments = new TreeMap<>();
+    private final Map<String, Cursor> cursors = new HashMap<>();
+    private final Thread syncer;
+    private MappedByteBuffer head;
+    private long headBase;
+    private int headRecords;
+    /* sequence number of the next append */
+    private long next;
+    private boolean dirty;
+    private volatile boolean open = true;
+    /* serialization scratch, only used under the lock */
+    private final Scratch scratch = new Scratch();
+    private final DataOutputStream scratchOut = new DataOutputStream(scratch);
+    private final CRC32C crc = new CRC32C();
+
+    public SampleSpool(File dir) throws IOException {
+        this(dir, SEGMENT_SIZE, MAX_BYTES, SyncPolicy.INTERVAL, 1000);
+    }
+
+    public SampleSpool(File dir, int segmentSize, long maxBytes, SyncPolicy syncPolicy, long syncIntervalMs)
+            throws IOException {
+        if (segmentSize < 4096 || maxBytes < 2L * segmentSize) {
+            throw new IllegalArgumentException("spool needs segments of 4 KiB or more and room for two");
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.syncPolicy = syncPolicy;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create spool directory " + dir);
+        }
+        recover();
+        if (syncPolicy == SyncPolicy.INTERVAL) {
+            syncer = new Thread(() -> syncLoop(syncIntervalMs), "hegemone-spool-sync");
+            syncer.setDaemon(true);
+            syncer.start();
+        } else {
+            syncer = null;
+        }
+    }
+
+    private void recover() throws IOException {
+        var files = dir.listFiles((d, n) -> n.endsWith(SUFFIX));
+        if (files != null) {
+            for (var f : files) {
+                try {
+                    segments.put(Long.parseLong(f.getName().substring(0, f.getName().length() - SUFFIX.length())), f);
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring {} in spool directory", f);
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            roll(0);
+            return;
+        }
+        var last = segments.lastEntry();
+        head = map(last.getValue(), FileChannel.MapMode.READ_WRITE);
+        headBase = last.getKey();
+        if (head.getInt(0) != MAGIC) {
+            logger.error("Spool segment {} has no valid header, starting a new one", last.getValue());
+            segments.remove(headBase);
+            Files.delete(last.getValue().toPath());
+            roll(headBase);
+            return;
+        }
+        int pos = HEADER;
+        headRecords = 0;
+        while (true) {
+            int len = recordAt(head, pos);
+            if (len < 0) {
+                break;
+            }
+            pos += RECORD_HEADER + len;
+            headRecords++;
+        }
+        head.position(pos);
+        next = headBase + headRecords;
+        logger.info("Spool {}: {} segments, sequence {} to {}", dir, segments.size(), segments.firstKey(), next);
+    }
+
+    /* payload length of the record at pos, -1 if there is none or it is damaged */
+    private int recordAt(ByteBuffer seg, int pos) {
+        if (pos + RECORD_HEADER > seg.limit()) {
+            return -1;
+        }
+        int len = seg.getInt(pos);
+        if (len <= 0 || pos + RECORD_HEADER + len > seg.limit()) {
+            return -1;
+        }
+        crc.reset();
+        crc.update(seg.slice(pos + RECORD_HEADER, len));
+        return (int) crc.getValue() == seg.getInt(pos + 4) ? len : -1;
+    }
+
+    private MappedByteBuffer map(File f, FileChannel.MapMode mode) throws IOException {
+        var options = mode == FileChannel.MapMode.READ_ONLY
+                ? new StandardOpenOption[]{StandardOpenOption.READ}
+                : new StandardOpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE};
+        try (var ch = FileChannel.open(f.toPath(), options)) {
+            long size = mode == FileChannel.MapMode.READ_ONLY ? ch.size() : segmentSize;
+            return ch.map(mode, 0, size);
+        }
+    }
+
+    private void roll(long base) throws IOException {
+        if (head != null) {
+            head.force();
+        }
+        var f = new File(dir, String.format("%020d%s", base, SUFFIX));
+        head = map(f, FileChannel.MapMode.READ_WRITE);
+        head.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, base);
+        head.position(HEADER);
+        headBase = base;
+        headRecords = 0;
+        next = base;
+        segments.put(base, f);
+        enforceLimit();
+    }
+
+    public void append(Sample sample) throws IOException {
+        synchronized (this) {
+            if (!open) {
+                throw new IOException("spool is closed");
+            }
+            scratch.reset();
+            sample.writeTo(scratchOut);
+            int len = scratch.size();
+            if (RECORD_HEADER + len > segmentSize - HEADER) {
+                throw new IOException("sample of " + len + " bytes does not fit a spool segment");
+            }
+            if (head.remaining() < RECORD_HEADER + len) {
+                roll(next);
+            }
+            int pos = head.position();
+            crc.reset();
+            crc.update(scratch.array(), 0, len);
+            /* length last, recovery stops at a record without one */
+            head.putInt(pos + 4, (int) crc.getValue());
+            head.put(pos + RECORD_HEADER, scratch.array(), 0, len);
+            head.putInt(pos, len);
+            head.position(pos + RECORD_HEADER + len);
+            headRecords++;
+            next++;
+            dirty = true;
+            if (syncPolicy == SyncPolicy.ALWAYS) {
+                head.force();
+                dirty = false;
+            }
+            notifyAll();
+        }
+    }
+
+    public synchronized long getNextSequence() {
+        return next;
+    }
+
+    public synchronized long getFirstSequence() {
+        return segments.firstKey();
+    }
+
+    public synchronized long getSizeBytes() {
+        return (long) segments.size() * segmentSize;
+    }
+
+    /* a sink's read position; a new sink starts at the end of the spool */
+    public synchronized Cursor cursor(String name) throws IOException {
+        var c = cursors.get(name);
+        if (c == null) {
+            c = new Cursor(name, new File(dir, name + ".cursor"));
+            cursors.put(name, c);
+        }
+        return c;
+    }
+
+    /* wait up to timeoutMs for records after seq */
+    synchronized boolean await(long seq, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (open && next <= seq) {
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return next > seq;
+    }
+
+    private synchronized File segmentFor(long seq) {
+        var e = segments.floorEntry(seq);
+        return e == null ? null : e.getValue();
+    }
+
+    private synchronized long segmentEnd(long base) {
+        var higher = segments.higherKey(base);
+        return higher == null ? next : higher;
+    }
+
+    /* delete segments every cursor has left behind, and the oldest beyond maxBytes */
+    private void enforceLimit() {
+        long oldest = next;
+        for (var c : cursors.values()) {
+            oldest = Math.min(oldest, c.committed);
+        }
+        while (segments.size() > 1) {
+            var first = segments.firstEntry();
+            long end = segments.higherKey(first.getKey());
+            boolean consumed = end <= oldest;
+            boolean over = (long) segments.size() * segmentSize > maxBytes;
+            if (!consumed && !over) {
+                break;
+            }
+            if (!consumed) {
+                logger.warn("Spool over {} MiB, dropping records {} to {}", maxBytes >> 20, first.getKey(), end);
+                for (var c : cursors.values()) {
+                    if (c.committed < end) {
+                        c.lost += end - c.committed;
+                        c.committed = end;
+                    }
+                }
+            }
+            segments.remove(first.getKey());
+            if (!first.getValue().delete()) {
+                logger.warn("Could not delete spool segment {}", first.getValue());
+            }
+        }
+    }
+
+    private void syncLoop(long intervalMs) {
+        while (open) {
+            try {
+                Thread.sleep(intervalMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            sync();
+        }
+    }
+
+    public synchronized void sync() {
+        if (dirty) {
+            head.force();
+            dirty = false;
+        }
+        for (var c : cursors.values()) {
+            c.persist();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (!open) {
+                return;
+            }
+            sync();
+            open = false;
+            notifyAll();
+        }
+        if (syncer != null) {
+            syncer.interrupt();
+        }
+    }
+
+    /* a sink's position in the spool, owned by that sink's worker thread */
+    class Cursor {
+        private final String name;
+        private final File file;
+        /* everything before committed has been delivered, guarded by the spool */
+        private long committed;
+        private long persisted = -1;
+        private long persistedAt;
+        private long lost;
+        /* next record to read, read side only */
+        private long position;
+        private MappedByteBuffer segment;
+        private long segmentBase = -1;
+        private int offset;
+        private byte[] payload = new byte[512];
+
+        private Cursor(String name, File file) throws IOException {
+            this.name = name;
+            this.file = file;
+            long start = next;
+            if (file.exists()) {
+                start = Long.parseLong(Files.readString(file.toPath()).trim());
+                persisted = start;
+            }
+            /* records before the oldest segment are gone */
+            start = Math.max(start, segments.firstKey());
+            if (start > next) {
+                logger.warn("Spool cursor {} is past the end of the spool, starting over at the end", name);
+                start = next;
+            }
+            committed = position = start;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /* records appended and not yet committed */
+        public long backlog() {
+            synchronized (SampleSpool.this) {
+                return next - committed;
+            }
+        }
+
+        public long getLost() {
+            synchronized (SampleSpool.this) {
+                return lost;
+            }
+        }
+
+        /* wait up to timeoutMs until there is something to read */
+        public boolean await(long timeoutMs) throws InterruptedException {
+            return SampleSpool.this.await(position, timeoutMs);
+        }
+
+        /* read up to max samples after the last read into out, returns how many */
+        public int read(List<Sample> out, int max) throws IOException {
+            long end;
+            synchronized (SampleSpool.this) {
+                end = next;
+                if (position < committed) {
+                    /* records were dropped underneath us */
+                    position = committed;
+                    segmentBase = -1;
+                }
+            }
+            int n = 0;
+            while (n < max && position < end) {
+                if (!seek()) {
+                    break;
+                }
+                int len = segment.getInt(offset);
+                if (len <= 0 || offset + RECORD_HEADER + len > segment.limit()) {
+                    skipSegment("truncated record");
+                    continue;
+                }
+                if (payload.length < len) {
+                    payload = new byte[Math.max(len, payload.length * 2)];
+                }
+                segment.get(offset + RECORD_HEADER, payload, 0, len);
+                var c = new CRC32C();
+                c.update(payload, 0, len);
+                if ((int) c.getValue() != segment.getInt(offset + 4)) {
+                    skipSegment("CRC mismatch");
+                    continue;
+                }
+                out.add(Sample.readFrom(new DataInputStream(new ByteArrayInputStream(payload, 0, len))));
+                offset += RECORD_HEADER + len;
+                position++;
+                n++;
+            }
+            return n;
+        }
+
+        /* map the segment holding position and move offset to it */
+        private boolean seek() throws IOException {
+            if (segmentBase >= 0 && position < segmentEnd(segmentBase)) {
+                return true;
+            }
+            var f = segmentFor(position);
+            if (f == null) {
+                return false;
+            }
+            long base = Long.parseLong(f.getName().substring(0, f.getName().length() - SUFFIX.length()));
+            segment = map(f, FileChannel.MapMode.READ_ONLY);
+            segmentBase = base;
+            offset = HEADER;
+            for (long s = base; s < position; s++) {
+                int len = segment.getInt(offset);
+                if (len <= 0) {
+                    skipSegment("truncated record");
+                    return false;
+                }
+                offset += RECORD_HEADER + len;
+            }
+            return true;
+        }
+
+        private void skipSegment(String why) {
+            long end = segmentEnd(segmentBase);
+            logger.error("Spool cursor {}: {} in segment {}, skipping records {} to {}",
+                    name, why, segmentBase, position, end);
+            synchronized (SampleSpool.this) {
+                lost += end - position;
+            }
+            position = end;
+            segmentBase = -1;
+        }
+
+        /* go back to the last commit, the reads since are delivered again */
+        public void rewind() {
+            synchronized (SampleSpool.this) {
+                position = committed;
+            }
+            segmentBase = -1;
+        }
+
+        /* everything read so far was delivered */
+        public void commit() {
+            synchronized (SampleSpool.this) {
+                committed = position;
+                if (System.nanoTime() - persistedAt >= TimeUnit.MILLISECONDS.toNanos(CURSOR_SYNC_MS)) {
+                    persist();
+                }
+                if (segments.size() > 1 && committed >= segments.higherKey(segments.firstKey())) {
+                    enforceLimit();
+                }
+            }
+        }
+
+        /* under the spool lock */
+        private void persist() {
+            if (committed == persisted) {
+                return;
+            }
+            try {
+                var tmp = new File(dir, "." + name + ".cursor.tmp");
+                Files.writeString(tmp.toPath(), Long.toString(committed));
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                persisted = committed;
+                persistedAt = System.nanoTime();
+            } catch (IOException e) {
+                logger.error("Could not persist spool cursor {}", name, e);
+            }
+        }
+    }
+
+    /* ByteArrayOutputStream that lets us at its array */
+    private static class Scratch extends ByteArrayOutputStream {
+        Scratch() {
+            super(512);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
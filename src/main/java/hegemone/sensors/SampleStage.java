@@ -0,0 +1,15 @@
+package hegemone.sensors;
+
+import java.util.function.Consumer;
+
+/* a processing step between the sensors and the consumers
+ *
+ * Stages are chained in DataSubmitter in the order they were added. Every
+ * submitted sample goes through process(), which hands whatever should
+ * continue down the chain to next: the sample itself, nothing, or new
+ * samples built from it. Stages are called from the sampling threads
+ * (several at once) and have to synchronize themselves.
+ */
+public interface SampleStage {
+    void process(Sample sample, Consumer<Sample> next);
+}
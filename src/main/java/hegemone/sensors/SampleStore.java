@@ -0,0 +1,665 @@
+package hegemone.sensors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/* on-device history, an append-only compressed time-series store
+ *
+ * Every channel of every device is a series of (timestamp, value) points
+ * in fixed-size blocks of one file, history.db:
+ *
+ *   block: magic "HTS1" | series id | points | payload bits |
+ *          first timestamp (long) | last timestamp (long) | payload
+ *
+ * The payload is compressed as in Facebook's Gorilla: the first point of
+ * a block in full, then per point the change of the timestamp delta (a
+ * single bit while the sampling period holds) and the XOR of the value
+ * with the previous one, of which only the bits between the leading and
+ * trailing zeros are written. Each series appends to its own head block,
+ * memory-mapped read-write; a full one is forced out and a new block
+ * taken. Series ids are kept in series.idx, one line per series.
+ *
+ * Blocks whose last point is older than the retention are evicted and
+ * their space reused; once the file is at maxBytes the oldest block of
+ * all makes room. NaN values (a channel that was not read) and points
+ * older than the last one of their series are not stored.
+ *
+ * Queries are scan(), the raw points of a range, and downsample(),
+ * statistics per interval; both skip blocks by the time range in their
+ * header. A block is a page and its header is updated after the payload,
+ * so after a crash a block holds what it says; what the kernel had not
+ * written back, at most SYNC_MS of points, is lost.
+ */
+class SampleStore implements DataConsumer, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.store");
+    public static final String DEFAULT_DIR = "/var/lib/hegemone/history";
+    public static final long DEFAULT_RETENTION_MS = TimeUnit.DAYS.toMillis(28);
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    static final int BLOCK_SIZE = 4096;
+    private static final int MAGIC = 0x48545331;
+    private static final int HEADER = 32;
+    private static final int PAYLOAD_BITS = (BLOCK_SIZE - HEADER) * 8;
+    /* the longest a point gets: 4 + 64 bits of timestamp, 2 + 6 + 6 + 64 of value */
+    private static final int MAX_POINT_BITS = 146;
+    private static final long SYNC_MS = 10_000;
+    private static final long EVICT_MS = 60_000;
+    private static final String DATA = "history.db";
+    private static final String INDEX = "series.idx";
+
+    /* receives the points of a scan, in time order */
+    interface PointConsumer {
+        void accept(long timestamp, double value);
+    }
+
+    record SeriesKey(String device, String schema, String channel) {
+    }
+
+    /* the points in [start, start + step), empty intervals are left out */
+    record Bucket(long start, int count, double min, double max, double mean, double last) {
+    }
+
+    private record Source(String device, SampleSchema schema) {
+    }
+
+    private static final class Block {
+        final int index;
+        final long first;
+        long last;
+        int count;
+
+        Block(int index, long first, long last, int count) {
+            this.index = index;
+            this.first = first;
+            this.last = last;
+            this.count = count;
+        }
+    }
+
+    private static final class Series {
+        final int id;
+        final SeriesKey key;
+        /* oldest first, the last one is the head */
+        final List<Block> blocks = new ArrayList<>();
+        /* the head block mapped, null until the first append after open or eviction */
+        MappedByteBuffer head;
+        final BlockCodec codec = new BlockCodec();
+
+        Series(int id, SeriesKey key) {
+            this.id = id;
+            this.key = key;
+        }
+    }
+
+    private final File dir;
+    private final long retentionUs;
+    private final int maxBlocks;
+    private final FileChannel data;
+    private final File index;
+    private final Map<SeriesKey, Series> series = new HashMap<>();
+    private final List<Series> byId = new ArrayList<>();
+    /* series of a sample, by channel */
+    private final Map<Source, Series[]> sources = new HashMap<>();
+    /* evicted blocks, reused before the file grows */
+    private final BitSet free = new BitSet();
+    private final Set<Series> dirty = new HashSet<>();
+    /* scratch for sealed blocks and headers, only used under the lock */
+    private final ByteBuffer scratch = ByteBuffer.allocate(BLOCK_SIZE);
+    private final BlockCodec reader = new BlockCodec();
+    private final Metrics.Counter points;
+    private final Metrics.Counter rejected;
+    private final Metrics.Counter evicted;
+    /* blocks in the file */
+    private int blocks;
+    private long syncedAt;
+    private long evictedAt;
+    /* warned about evicting for room */
+    private boolean full;
+    private boolean open = true;
+
+    public SampleStore(File dir) throws IOException {
+        this(dir, DEFAULT_RETENTION_MS, DEFAULT_MAX_BYTES);
+    }
+
+    public SampleStore(File dir, long retentionMs, long maxBytes) throws IOException {
+        if (maxBytes < 16L * BLOCK_SIZE) {
+            throw new IllegalArgumentException("sample store needs room for 16 blocks of " + BLOCK_SIZE + " bytes");
+        }
+        this.dir = dir;
+        this.retentionUs = TimeUnit.MILLISECONDS.toMicros(retentionMs);
+        this.maxBlocks = (int) Math.min(Integer.MAX_VALUE, maxBytes / BLOCK_SIZE);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create sample store directory " + dir);
+        }
+        data = FileChannel.open(new File(dir, DATA).toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        index = new File(dir, INDEX);
+        recover();
+        points = Metrics.counter("hegemone_store_points_total", "Points written to the sample store");
+        rejected = Metrics.counter("hegemone_store_rejected_total",
+                "Points not stored, out of order or without a free block");
+        evicted = Metrics.counter("hegemone_store_evicted_blocks_total", "Sample store blocks evicted");
+        Metrics.gauge("hegemone_store_blocks", "Sample store blocks in use", this::getUsedBlocks);
+    }
+
+    private void recover() throws IOException {
+        if (index.exists()) {
+            for (var line : Files.readAllLines(index.toPath(), StandardCharsets.UTF_8)) {
+                var f = line.split("\t", 4);
+                try {
+                    int id = Integer.parseInt(f[0]);
+                    while (byId.size() <= id) {
+                        byId.add(null);
+                    }
+                    var s = new Series(id, new SeriesKey(f[1], f[2], f[3]));
+                    byId.set(id, s);
+                    series.put(s.key, s);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    logger.warn("Ignoring line '{}' of {}", line, index);
+                }
+            }
+        }
+        blocks = (int) (data.size() / BLOCK_SIZE);
+        var header = scratch.slice(0, HEADER);
+        for (int i = 0; i < blocks; i++) {
+            readFully(header.clear(), (long) i * BLOCK_SIZE);
+            int id = header.getInt(4);
+            int count = header.getInt(8);
+            if (header.getInt(0) != MAGIC || id < 0 || id >= byId.size() || byId.get(id) == null || count <= 0) {
+                free.set(i);
+                continue;
+            }
+            byId.get(id).blocks.add(new Block(i, header.getLong(16), header.getLong(24), count));
+        }
+        int used = 0;
+        for (var s : series.values()) {
+            s.blocks.sort(Comparator.comparingLong(b -> b.first));
+            used += s.blocks.size();
+            if (!s.blocks.isEmpty()) {
+                /* replay the head to continue where it stopped */
+                var head = s.blocks.get(s.blocks.size() - 1);
+                s.head = map(head.index);
+                s.codec.reset(s.head);
+                while (s.codec.count < head.count) {
+                    s.codec.next();
+                }
+            }
+        }
+        logger.info("Sample store {}: {} series in {} blocks", dir, series.size(), used);
+    }
+
+    private MappedByteBuffer map(int block) throws IOException {
+        return data.map(FileChannel.MapMode.READ_WRITE, (long) block * BLOCK_SIZE, BLOCK_SIZE);
+    }
+
+    private void readFully(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            if (data.read(buf, pos + buf.position()) < 0) {
+                throw new IOException("sample store " + dir + " ends inside a block");
+            }
+        }
+    }
+
+    @Override
+    public void accept(Sample sample) {
+        acceptBatch(List.of(sample));
+    }
+
+    @Override
+    public synchronized void acceptBatch(List<Sample> batch) {
+        if (!open) {
+            return;
+        }
+        try {
+            for (var sample : batch) {
+                var channels = series(sample.getDevice(), sample.getSchema());
+                for (int i = 0; i < channels.length; i++) {
+                    append(channels[i], sample.getTimestamp(), sample.value(i));
+                }
+            }
+            long now = System.currentTimeMillis();
+            if (now - evictedAt >= EVICT_MS) {
+                evictExpired(TimeUnit.MILLISECONDS.toMicros(now) - retentionUs);
+                evictedAt = now;
+            }
+            if (now - syncedAt >= SYNC_MS) {
+                sync();
+            }
+        } catch (IOException e) {
+            logger.error("Could not write to sample store {}", dir, e);
+        }
+    }
+
+    @Override
+    public void flush() {
+        sync();
+    }
+
+    private Series[] series(String device, SampleSchema schema) throws IOException {
+        var source = new Source(device, schema);
+        var channels = sources.get(source);
+        if (channels == null) {
+            channels = new Series[schema.size()];
+            for (int i = 0; i < channels.length; i++) {
+                var key = new SeriesKey(device, schema.getName(), schema.channel(i));
+                var s = series.get(key);
+                if (s == null) {
+                    s = new Series(byId.size(), key);
+                    Files.writeString(index.toPath(), s.id + "\t" + device + "\t" + key.schema() + "\t" + key.channel() + "\n",
+                            StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                    byId.add(s);
+                    series.put(key, s);
+                }
+                channels[i] = s;
+            }
+            sources.put(source, channels);
+        }
+        return channels;
+    }
+
+    private void append(Series s, long timestamp, double value) throws IOException {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        var head = s.head == null ? null : s.blocks.get(s.blocks.size() - 1);
+        if (head != null && timestamp < head.last) {
+            rejected.increment();
+            return;
+        }
+        if (head == null || s.codec.bit + MAX_POINT_BITS > PAYLOAD_BITS) {
+            head = roll(s, timestamp);
+            if (head == null) {
+                rejected.increment();
+                return;
+            }
+        }
+        s.codec.append(timestamp, value);
+        head.last = timestamp;
+        head.count = s.codec.count;
+        /* header after payload */
+        s.head.putInt(8, head.count).putInt(12, s.codec.bit).putLong(24, timestamp);
+        dirty.add(s);
+        points.increment();
+    }
+
+    /* a new head block for s, null if there is no room */
+    private Block roll(Series s, long first) throws IOException {
+        if (s.head != null) {
+            s.head.force();
+            dirty.remove(s);
+        }
+        int i = allocate();
+        if (i < 0) {
+            return null;
+        }
+        s.head = map(i);
+        s.head.putInt(0, MAGIC).putInt(4, s.id).putInt(8, 0).putInt(12, 0).putLong(16, first).putLong(24, first);
+        s.codec.reset(s.head);
+        var block = new Block(i, first, first, 0);
+        s.blocks.add(block);
+        return block;
+    }
+
+    private int allocate() throws IOException {
+        int i = free.nextSetBit(0);
+        if (i < 0 && blocks < maxBlocks) {
+            return blocks++;
+        }
+        if (i < 0) {
+            evictOldest();
+            i = free.nextSetBit(0);
+        }
+        if (i >= 0) {
+            free.clear(i);
+        }
+        return i;
+    }
+
+    /* the oldest block that is not a head, when the file is full */
+    private void evictOldest() throws IOException {
+        Series oldest = null;
+        for (var s : series.values()) {
+            if (s.blocks.size() > 1 && (oldest == null || s.blocks.get(0).last < oldest.blocks.get(0).last)) {
+                oldest = s;
+            }
+        }
+        if (oldest != null) {
+            if (!full) {
+                logger.warn("Sample store {} is at {} MiB, evicting blocks before their retention", dir,
+                        (long) maxBlocks * BLOCK_SIZE >> 20);
+                full = true;
+            }
+            evict(oldest);
+        }
+    }
+
+    /* blocks ending before cutoff, heads of series that stopped included */
+    private void evictExpired(long cutoff) throws IOException {
+        for (var s : series.values()) {
+            while (!s.blocks.isEmpty() && s.blocks.get(0).last < cutoff) {
+                if (s.blocks.size() == 1) {
+                    s.head = null;
+                    dirty.remove(s);
+                }
+                evict(s);
+            }
+        }
+    }
+
+    private void evict(Series s) throws IOException {
+        var block = s.blocks.remove(0);
+        var magic = scratch.slice(0, 4).putInt(0, 0);
+        data.write(magic, (long) block.index * BLOCK_SIZE);
+        free.set(block.index);
+        evicted.increment();
+    }
+
+    /* write back the head blocks appended to since the last sync */
+    public synchronized void sync() {
+        for (var s : dirty) {
+            s.head.force();
+        }
+        dirty.clear();
+        syncedAt = System.currentTimeMillis();
+    }
+
+    public synchronized List<SeriesKey> getSeries() {
+        var keys = new ArrayList<SeriesKey>();
+        for (var s : byId) {
+            if (s != null && !s.blocks.isEmpty()) {
+                keys.add(s.key);
+            }
+        }
+        return keys;
+    }
+
+    public synchronized int getUsedBlocks() {
+        return blocks - free.cardinality();
+    }
+
+    /* the points of a series in [from, to), µs since the epoch; returns how
+       many. out is called with the store locked, keep it short */
+    public synchronized int scan(SeriesKey key, long from, long to, PointConsumer out) throws IOException {
+        var s = series.get(key);
+        if (s == null) {
+            return 0;
+        }
+        int n = 0;
+        for (int i = firstBlock(s, from); i < s.blocks.size(); i++) {
+            var block = s.blocks.get(i);
+            if (block.first >= to) {
+                break;
+            }
+            reader.reset(load(s, i));
+            while (reader.count < block.count) {
+                reader.next();
+                if (reader.time >= to) {
+                    return n;
+                }
+                if (reader.time >= from) {
+                    out.accept(reader.time, Double.longBitsToDouble(reader.value));
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    /* statistics of a series per step µs from from on, for plots over long ranges */
+    public List<Bucket> downsample(SeriesKey key, long from, long to, long step) throws IOException {
+        if (step <= 0) {
+            throw new IllegalArgumentException("downsampling step must be positive");
+        }
+        var buckets = new Downsampler(from, step);
+        scan(key, from, to, buckets);
+        return buckets.finish();
+    }
+
+    /* first block ending at or after from */
+    private static int firstBlock(Series s, long from) {
+        int lo = 0;
+        int hi = s.blocks.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (s.blocks.get(mid).last < from) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private ByteBuffer load(Series s, int i) throws IOException {
+        if (i == s.blocks.size() - 1 && s.head != null) {
+            return s.head;
+        }
+        readFully(scratch.clear(), (long) s.blocks.get(i).index * BLOCK_SIZE);
+        return scratch;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!open) {
+            return;
+        }
+        sync();
+        open = false;
+        try {
+            data.close();
+        } catch (IOException e) {
+            logger.warn("Could not close sample store {}", dir, e);
+        }
+    }
+
+    private static final class Downsampler implements PointConsumer {
+        private final long from;
+        private final long step;
+        private final List<Bucket> buckets = new ArrayList<>();
+        private long start = Long.MIN_VALUE;
+        private int count;
+        private double min;
+        private double max;
+        private double sum;
+        private double last;
+
+        Downsampler(long from, long step) {
+            this.from = from;
+            this.step = step;
+        }
+
+        @Override
+        public void accept(long timestamp, double value) {
+            long bucket = from + (timestamp - from) / step * step;
+            if (bucket != start) {
+                emit();
+                start = bucket;
+                count = 0;
+                min = Double.POSITIVE_INFINITY;
+                max = Double.NEGATIVE_INFINITY;
+                sum = 0;
+            }
+            count++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            last = value;
+        }
+
+        private void emit() {
+            if (count > 0) {
+                buckets.add(new Bucket(start, count, min, max, sum / count, last));
+            }
+        }
+
+        List<Bucket> finish() {
+            emit();
+            count = 0;
+            return buckets;
+        }
+    }
+
+    /* Gorilla state of one block, appending to it or reading it back;
+       after reading all its points it continues as if it had written them */
+    private static final class BlockCodec {
+        private ByteBuffer buf;
+        /* payload bits and points done */
+        int bit;
+        int count;
+        long time;
+        long delta;
+        /* raw bits of the last value */
+        long value;
+        /* meaningful bits window of the last XOR, leading -1 until there is one */
+        int leading;
+        int trailing;
+
+        void reset(ByteBuffer block) {
+            buf = block;
+            bit = 0;
+            count = 0;
+            delta = 0;
+            leading = -1;
+            trailing = 0;
+        }
+
+        void append(long timestamp, double v) {
+            long bits = Double.doubleToRawLongBits(v);
+            if (count == 0) {
+                write(timestamp, 64);
+                write(bits, 64);
+            } else {
+                long d = timestamp - time;
+                writeDelta(d - delta);
+                delta = d;
+                writeXor(bits ^ value);
+            }
+            time = timestamp;
+            value = bits;
+            count++;
+        }
+
+        void next() {
+            if (count == 0) {
+                time = read(64);
+                value = read(64);
+            } else {
+                delta += readDelta();
+                time += delta;
+                value ^= readXor();
+            }
+            count++;
+        }
+
+        /* 0, or 10, 110, 1110, 1111 and the zigzag in 14, 20, 32, 64 bits */
+        private void writeDelta(long dod) {
+            if (dod == 0) {
+                write(0, 1);
+                return;
+            }
+            long z = dod << 1 ^ dod >> 63;
+            int n = 64 - Long.numberOfLeadingZeros(z);
+            if (n <= 14) {
+                write(0b10, 2);
+                write(z, 14);
+            } else if (n <= 20) {
+                write(0b110, 3);
+                write(z, 20);
+            } else if (n <= 32) {
+                write(0b1110, 4);
+                write(z, 32);
+            } else {
+                write(0b1111, 4);
+                write(z, 64);
+            }
+        }
+
+        private long readDelta() {
+            if (read(1) == 0) {
+                return 0;
+            }
+            int n = read(1) == 0 ? 14 : read(1) == 0 ? 20 : read(1) == 0 ? 32 : 64;
+            long z = read(n);
+            return z >>> 1 ^ -(z & 1);
+        }
+
+        /* 0 for the same value, 10 and the bits in the last window, or
+           11, 6 bits leading zeros, 6 bits length - 1 and the bits */
+        private void writeXor(long x) {
+            if (x == 0) {
+                write(0, 1);
+                return;
+            }
+            int lead = Long.numberOfLeadingZeros(x);
+            int trail = Long.numberOfTrailingZeros(x);
+            if (leading >= 0 && lead >= leading && trail >= trailing) {
+                write(0b10, 2);
+                write(x >>> trailing, 64 - leading - trailing);
+                return;
+            }
+            int length = 64 - lead - trail;
+            write(0b11, 2);
+            write(lead, 6);
+            write(length - 1, 6);
+            write(x >>> trail, length);
+            leading = lead;
+            trailing = trail;
+        }
+
+        private long readXor() {
+            if (read(1) == 0) {
+                return 0;
+            }
+            if (read(1) == 1) {
+                leading = (int) read(6);
+                trailing = 64 - leading - ((int) read(6) + 1);
+            }
+            return read(64 - leading - trailing) << trailing;
+        }
+
+        /* the low n bits of v, most significant first */
+        private void write(long v, int n) {
+            while (n > 0) {
+                int pos = HEADER + (bit >>> 3);
+                int room = 8 - (bit & 7);
+                int take = Math.min(room, n);
+                int chunk = (int) (v >>> (n - take)) & (1 << take) - 1;
+                /* a reused block has old bytes, a new byte starts from 0 */
+                int b = room == 8 ? 0 : buf.get(pos) & 0xFF;
+                buf.put(pos, (byte) (b | chunk << (room - take)));
+                bit += take;
+                n -= take;
+            }
+        }
+
+        private long read(int n) {
+            long v = 0;
+            while (n > 0) {
+                int pos = HEADER + (bit >>> 3);
+                int room = 8 - (bit & 7);
+                int take = Math.min(room, n);
+                v = v << take | (buf.get(pos) & 0xFF) >>> (room - take) & (1 << take) - 1;
+                bit += take;
+                n -= take;
+            }
+            return v;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package hegemone.sensors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+/* fixed-rate sampling scheduler
+ *
+ * Every task owns an absolute deadline on the System.nanoTime() clock,
+ * deadline(n) = start + n * period. Deadlines are advanced by the period,
+ * never recomputed from "now", so the time a read takes does not push
+ * the following samples back (no drift). Tasks are passed the wall-clock
+ * time of their slot, so sample timestamps are evenly spaced even when
+ * the read itself starts late.
+ *
+ * Slot times are the deadline mapped onto the wall clock through an
+ * anchor, a (currentTimeMillis, nanoTime) pair. At every dispatch the
+ * anchor is checked against the wall clock and taken again when the two
+ * disagree by more than CLOCK_TOLERANCE: a Pi has no RTC and often starts
+ * before NTP has synced, and NTP steps and the drift between the two
+ * clocks must reach the timestamps. Scheduling itself stays on nanoTime,
+ * a step of the wall clock moves no deadline; a step back makes the
+ * following timestamps go back with it.
+ *
+ * The scheduler thread only keeps time; at each deadline the task is
+ * handed to its executor (the bus owner of the device it reads). A task
+ * whose previous run has not finished by the next deadline has missed
+ * that deadline; the policy decides whether the slot is queued behind
+ * the running one (CATCH_UP, bounded by MAX_CATCH_UP) or dropped (SKIP).
+ */
+class SamplingScheduler implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.scheduler");
+    private static final int MAX_CATCH_UP = 3;
+    private static final long REPORT_INTERVAL = TimeUnit.MINUTES.toNanos(5);
+    /* µs the extrapolated wall clock may be off before the anchor is taken again */
+    private static final long CLOCK_TOLERANCE = 50_000;
+
+    enum MissedDeadlinePolicy {
+        /* queue missed slots behind the running one, at most MAX_CATCH_UP */
+        CATCH_UP,
+        /* drop missed slots and continue with the next deadline */
+        SKIP
+    }
+
+    private final List<Task> tasks = new ArrayList<>();
+    private final MissedDeadlinePolicy policy;
+    private volatile boolean running;
+    /* wall clock in µs at nanoStart, for slot timestamps; only touched by the scheduler thread */
+    private long epochStart;
+    private long nanoStart;
+    private final Metrics.Counter clockSteps;
+
+    public SamplingScheduler(MissedDeadlinePolicy policy) {
+        this.policy = policy;
+        clockSteps = Metrics.counter("hegemone_sampling_clock_steps_total",
+                "Times the wall clock was found off the sampling clock and the timestamps re-anchored");
+    }
+
+    /* run the task on the scheduler thread itself */
+    public Task schedule(String name, long periodMs, LongConsumer action) {
+        return schedule(name, periodMs, Runnable::run, action);
+    }
+
+    public Task schedule(String name, long periodMs, Executor executor, LongConsumer action) {
+        if (periodMs <= 0) {
+            throw new IllegalArgumentException("sampling period must be positive: " + name);
+        }
+        var task = new Task(name, TimeUnit.MILLISECONDS.toNanos(periodMs), executor, action);
+        synchronized (tasks) {
+            tasks.add(task);
+        }
+        return task;
+    }
+
+    public List<Task> getTasks() {
+        synchronized (tasks) {
+            return List.copyOf(tasks);
+        }
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public void run() {
+        running = true;
+        long start = System.nanoTime();
+        epochStart = System.currentTimeMillis() * 1000;
+        nanoStart = start;
+        long nextReport = start + REPORT_INTERVAL;
+        for (var t : getTasks()) {
+            t.deadline = start;
+        }
+        while (running) {
+            var task = nextTask();
+            if (task == null) {
+                return;
+            }
+            Timing.sleepUntil(task.deadline);
+            dispatch(task);
+            task.deadline += task.period;
+            long now = System.nanoTime();
+            if (now - nextReport >= 0) {
+                report();
+                nextReport += REPORT_INTERVAL;
+            }
+        }
+    }
+
+    private Task nextTask() {
+        Task next = null;
+        for (var t : getTasks()) {
+            if (next == null || t.deadline - next.deadline < 0) {
+                next = t;
+            }
+        }
+        return next;
+    }
+
+    private void dispatch(Task task) {
+        int limit = policy == MissedDeadlinePolicy.CATCH_UP ? MAX_CATCH_UP : 0;
+        int busy = task.pending.get();
+        if (busy > 0) {
+            task.missed.incrementAndGet();
+            if (busy > limit) {
+                task.skipped.incrementAndGet();
+                logger.warn("Sampling task {} missed its deadline, previous run still busy after {} ms",
+                        task.name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - task.deadline + task.period));
+                return;
+            }
+        }
+        task.pending.incrementAndGet();
+        final long scheduled = task.deadline;
+        checkClock();
+        final long timestamp = epochStart + (scheduled - nanoStart) / 1000;
+        try {
+            task.executor.execute(() -> task.execute(scheduled, timestamp));
+        } catch (RejectedExecutionException e) {
+            task.pending.decrementAndGet();
+            logger.error("Sampling task {} rejected by its executor", task.name);
+        }
+    }
+
+    /* re-anchors the slot timestamps when the wall clock was stepped or drifted */
+    private void checkClock() {
+        long nanos = System.nanoTime();
+        long wall = System.currentTimeMillis() * 1000;
+        long off = wall - (epochStart + (nanos - nanoStart) / 1000);
+        if (Math.abs(off) > CLOCK_TOLERANCE) {
+            /* drift takes a small step every so often, NTP a big one */
+            if (Math.abs(off) >= 1_000_000) {
+                logger.warn("Wall clock is {} ms off the sampling clock, re-anchoring sample timestamps", off / 1000);
+            } else {
+                logger.debug("Wall clock drifted {} µs off the sampling clock, re-anchoring", off);
+            }
+            clockSteps.increment();
+            epochStart = wall;
+            nanoStart = nanos;
+        }
+    }
+
+    public void report() {
+        for (var t : getTasks()) {
+            logger.info("{}", t);
+        }
+        logger.info("Timing: {}", Timing.stats());
+        for (var c : DataSubmitter.stats()) {
+            logger.info("Sink {}", c);
+        }
+    }
+
+    static class Task {
+        final String name;
+        final long period;
+        final Executor executor;
+        final LongConsumer action;
+        /* only touched by the scheduler thread */
+        long deadline;
+        final AtomicInteger pending = new AtomicInteger();
+        /* statistics */
+        final AtomicInteger missed = new AtomicInteger();
+        final AtomicInteger skipped = new AtomicInteger();
+        private long runs;
+        private long failures;
+        private long lastDuration;
+        private long maxDuration;
+        private long maxLateness;
+        private long totalLateness;
+
+        private Task(String name, long period, Executor executor, LongConsumer action) {
+            this.name = name;
+            this.period = period;
+            this.executor = executor;
+            this.action = action;
+            this.deadline = System.nanoTime();
+            Metrics.counter("hegemone_sampling_missed_total", "Deadlines missed because the previous run was still going",
+                    missed::get, "task", name);
+            Metrics.counter("hegemone_sampling_skipped_total", "Sampling slots dropped", skipped::get, "task", name);
+        }
+
+        private void execute(long scheduled, long timestamp) {
+            long begin = System.nanoTime();
+            boolean failed = false;
+            try {
+                action.accept(timestamp);
+            } catch (RuntimeException e) {
+                failed = true;
+                logger.error("Sampling task {} failed", name, e);
+            } finally {
+                pending.decrementAndGet();
+            }
+            record(scheduled, begin, System.nanoTime(), failed);
+        }
+
+        private synchronized void record(long scheduled, long begin, long end, boolean failed) {
+            long lateness = begin - scheduled;
+            runs++;
+            if (failed) {
+                failures++;
+            }
+            totalLateness += lateness;
+            maxLateness = Math.max(maxLateness, lateness);
+            lastDuration = end - begin;
+            maxDuration = Math.max(maxDuration, lastDuration);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public synchronized long getRuns() {
+            return runs;
+        }
+
+        public long getMissed() {
+            return missed.get();
+        }
+
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%s: period=%d ms runs=%d missed=%d skipped=%d failures=%d "
+                            + "lateness(mean=%d µs, max=%d µs) duration(last=%d ms, max=%d ms)",
+                    name, TimeUnit.NANOSECONDS.toMillis(period), runs, missed.get(), skipped.get(), failures,
+                    runs == 0 ? 0 : totalLateness / runs / 1000, maxLateness / 1000,
+                    TimeUnit.NANOSECONDS.toMillis(lastDuration), TimeUnit.NANOSECONDS.toMillis(maxDuration));
+        }
+    }
+}
@@ -1,10 +1,8 @@
 package hegemone.sensors;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonObject;
 import io.helins.linux.i2c.*;
 
+import java.util.Arrays;
 import java.util.Map;
 import java.util.logging.*;
 import java.io.IOException;
@@ -13,35 +11,80 @@ import hegemone.sensors.Soil;
 import hegemone.sensors.AmbientLight;
 import java.nio.ByteBuffer;
 import java.io.File;
-import java.io.FileReader;
-import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 
 class Sensors {
-	private static I2CBuffer writeBuf;
-	private static I2CBuffer readBuf;
-	private static I2CBus i2cbus;
+	private final I2CPort i2cbus;
 	private static final long I2C_WAIT = 400l;
+	static final String DEVICE_ID = "PlantyPlantMonitor";
+	/* channel layout of each sensor group, names are the
+	   QuestDB columns the old flattened JSON produced */
+	/* light_measurement_* onwards, see SpectralIndices */
+	public static final SampleSchema SPECTRAL = new SampleSchema("spectral",
+			"spectral_data_0", "spectral_data_1", "spectral_data_2", "spectral_data_3",
+			"spectral_data_4", "spectral_data_5", "spectral_data_6", "spectral_data_7",
+			"spectral_data_8", "spectral_data_9",
+			"light_measurement_red", "light_measurement_blue", "light_measurement_green",
+			"light_measurement_far_red",
+			"rlqi_blue", "rlqi_green", "rlqi_red",
+			"light_band_red", "light_band_blue", "light_band_green", "light_band_far_red",
+			"ppfd", "red_far_red", "dli");
+	/* SPECTRAL under auto exposure: spectral_data_* scaled to the fixed
+	   settings (4x, about 100 ms), plus the settings actually measured with */
+	public static final SampleSchema SPECTRAL_AUTO = new SampleSchema("spectral_auto",
+			"spectral_data_0", "spectral_data_1", "spectral_data_2", "spectral_data_3",
+			"spectral_data_4", "spectral_data_5", "spectral_data_6", "spectral_data_7",
+			"spectral_data_8", "spectral_data_9",
+			"light_measurement_red", "light_measurement_blue", "light_measurement_green",
+			"light_measurement_far_red",
+			"rlqi_blue", "rlqi_green", "rlqi_red",
+			"light_band_red", "light_band_blue", "light_band_green", "light_band_far_red",
+			"ppfd", "red_far_red", "dli",
+			"spectral_gain", "spectral_integration_us", "spectral_saturated");
+	public static final SampleSchema LIGHT = new SampleSchema("light", "light_measurement_white");
+	public static final SampleSchema SOIL = new SampleSchema("soil", "moisture_level", "soil_temp");
+	public static final SampleSchema TEMPERATURE = new SampleSchema("temperature", "ambient_temp");
+	public static final SampleSchema ALL = new SampleSchema("all",
+			"spectral_data_0", "spectral_data_1", "spectral_data_2", "spectral_data_3",
+			"spectral_data_4", "spectral_data_5", "spectral_data_6", "spectral_data_7",
+			"spectral_data_8", "spectral_data_9",
+			"light_measurement_red", "light_measurement_blue", "light_measurement_green",
+			"light_measurement_far_red",
+			"rlqi_blue", "rlqi_green", "rlqi_red",
+			"light_band_red", "light_band_blue", "light_band_green", "light_band_far_red",
+			"ppfd", "red_far_red", "dli",
+			"light_measurement_white", "moisture_level", "soil_temp", "ambient_temp");
 	private Soil soilSensor;
 	private AmbientLight lightSensor;
 	private Spectrometer spectralSensor;
-	static {
-		try {
-			writeBuf = new I2CBuffer(2);
-			readBuf = new I2CBuffer(4);
-			i2cbus = new I2CBus(DeviceTree.DEFAULT_I2C_BUS);
-		} catch (IOException e) {
-			System.err.println("Failed to init i2c bus. Goodbye!");
-			System.exit(1);
-		}
+	private final AcquisitionPipeline pipeline;
+	/* the DS18B20s on the 1-Wire bus master */
+	private final OneWireBus oneWire;
+	private final int[] flux = new int[10];
+	private final SpectralIndices indices = new SpectralIndices();
+	public Sensors(AcquisitionPipeline pipeline) {
+		this(pipeline, openDefaultBus(), new File(DeviceTree.DEFAULT_W1_BUS));
 	}
-	public Sensors() {
+	/* for running against other (e.g. simulated) buses */
+	Sensors(AcquisitionPipeline pipeline, I2CPort bus, File w1Bus) {
+		this.pipeline = pipeline;
+		this.oneWire = new OneWireBus(w1Bus);
+		i2cbus = bus;
 		soilSensor = new Soil(i2cbus);
 		lightSensor = new AmbientLight(i2cbus);
 		spectralSensor = new Spectrometer(i2cbus);
 		lightSensor.configure();
 		spectralSensor.configure();
 	}
+	private static I2CPort openDefaultBus() {
+		try {
+			return new LinuxI2CPort(DeviceTree.DEFAULT_I2C_BUS);
+		} catch (IOException e) {
+			System.err.println("Failed to init i2c bus. Goodbye!");
+			System.exit(1);
+			return null;
+		}
+	}
 	public Spectrometer getSpectralSensor() {
 			return spectralSensor;
 	};
@@ -49,31 +92,7 @@ class Sensors {
 		return lightSensor.getWhiteLight();
 	}
 	public double getTemperature() {
-		double ret = 0;
-		try {
-			var sensor = new File(DeviceTree.DEFAULT_W1_BUS, DeviceTree.DS18B20_SENSOR);
-			/* acquire */
-			try (BufferedReader bufreader = new BufferedReader(new FileReader(sensor))) {
-				String s = bufreader.readLine();
-				int i = -1;
-				while (s != null) {
-					i = s.indexOf("t=");
-					System.out.println(s);
-					System.out.println(i);
-					if (i >= 0) {
-						break;
-					}
-					s = bufreader.readLine();
-				}
-				if (i < 0) {
-					throw new IOException("Could not read from sensor");
-				}
-				ret = Integer.parseInt(s.substring(i + 2)) / 1000f;
-			}
-		} catch (IOException e) {
-			System.err.println("Could not access DS18B20 temperature sensor.");
-		}
-		return ret;
+		return oneWire.read(DeviceTree.DS18B20_SERIAL);
 	}
 
 	public int getSoilMoisture() {
@@ -83,28 +102,79 @@ class Sensors {
 		return soilSensor.getTemperature();
 	}
 
-	public String sensorsToJSON() {
-		var spectralData = spectralSensor.spectralData();
-		var blue = spectralSensor.getRLQI(spectralData).getOrDefault("blue", 0);
-		var red = spectralSensor.getRLQI(spectralData).getOrDefault("red", 0);
-		var green = spectralSensor.getRLQI(spectralData).getOrDefault("green", 0);
+	/* a full reading of every sensor, the 1-Wire read runs
+	   concurrently with the (serialized) I2C reads */
+	public Sample readAll(long timestamp) {
+		var temperature = pipeline.onOneWire(this::getTemperature);
+		var spectral = pipeline.onI2C(() -> readSpectral(timestamp));
+		var soil = pipeline.onI2C(() -> soilSensor.read(pipeline.i2c())).thenCompose(f -> f);
+		var white = pipeline.onI2C(this::getWhite);
 
-		var resultMap = Map.of(
-				"device_id", "PlantyPlantMonitor",
-				"moisture_level", getSoilMoisture(),
-				"soil_temp", getSoilTemperature(),
-				"ambient_temp", getTemperature(),
-				"spectral_data", spectralData.values(),
-				"light_measurement", Map.of(
-						"red", red,
-						"blue", blue,
-						"green", green,
-						"white", getWhite(),
-							"far_red", red/2),
-				"rlqi", spectralSensor.getRLQI(spectralData)
-		);
-		Gson gson = new GsonBuilder().setPrettyPrinting().create();
-		return gson.toJson(resultMap);
+		var values = new double[ALL.size()];
+		var s = spectral.join();
+		int n = SPECTRAL.size();
+		for (int i = 0; i < n; i++) {
+			values[i] = s.value(i);
+		}
+		values[n] = white.join();
+		var reading = soil.join();
+		values[n + 1] = reading != null ? reading.moisture() : Double.NaN;
+		values[n + 2] = reading != null ? reading.temperature() : Double.NaN;
+		values[n + 3] = temperature.join();
+		return new Sample(DEVICE_ID, timestamp, ALL, values);
+	}
+
+	/* per-sensor readings for the sampling scheduler,
+	   timestamps in microseconds since the epoch */
+	public Sample readSpectral(long timestamp) {
+		/* scratch arrays are only touched from the I2C bus owner */
+		return spectralSample(DEVICE_ID, timestamp, spectralSensor, flux, indices);
+	}
+
+	/* per-driver sample builders, shared with DeviceRegistry */
+	static Sample spectralSample(String device, long timestamp, Spectrometer spectralSensor, int[] flux,
+			SpectralIndices indices) {
+		boolean auto = spectralSensor.isAutoExposure();
+		var schema = auto ? SPECTRAL_AUTO : SPECTRAL;
+		var values = new double[schema.size()];
+		if (!spectralSensor.getPhotonFlux(flux)) {
+			Arrays.fill(values, Double.NaN);
+			return new Sample(device, timestamp, schema, values);
+		}
+		double scale = auto ? spectralSensor.getExposureScale() : 1;
+		int i = 0;
+		for (int v : flux) {
+			values[i++] = v * scale;
+		}
+		indices.compute(flux, scale, timestamp, values, i);
+		i += SpectralIndices.SIZE;
+		if (auto) {
+			values[i++] = spectralSensor.getMeasuredGain();
+			values[i++] = spectralSensor.getMeasuredIntegrationTimeUs();
+			values[i] = spectralSensor.isSaturated() ? 1 : 0;
+		}
+		return new Sample(device, timestamp, schema, values);
+	}
+	static Sample soilSample(String device, long timestamp, Soil soil) {
+		return soilSample(device, timestamp, soil.read());
+	}
+	static Sample soilSample(String device, long timestamp, Soil.Reading reading) {
+		return new Sample(device, timestamp, SOIL, reading.moisture(), reading.temperature());
+	}
+	static Sample temperatureSample(String device, long timestamp, OneWireBus bus, String serial) {
+		return new Sample(device, timestamp, TEMPERATURE, bus.read(serial));
+	}
+	static Sample lightSample(String device, long timestamp, AmbientLight light) {
+		return new Sample(device, timestamp, LIGHT, light.getWhiteLight());
+	}
+	public Sample readSoil(long timestamp) {
+		return soilSample(DEVICE_ID, timestamp, soilSensor);
+	}
+	public Sample readTemperature(long timestamp) {
+		return new Sample(DEVICE_ID, timestamp, TEMPERATURE, getTemperature());
+	}
+	public Sample readLight(long timestamp) {
+		return lightSample(DEVICE_ID, timestamp, lightSensor);
 	}
 	public int[] getSpectralMeasurement() {
 		return spectralSensor.getPhotonFlux();
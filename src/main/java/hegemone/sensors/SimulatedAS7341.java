@@ -0,0 +1,219 @@
+package hegemone.sensors;
+
+import java.util.SplittableRandom;
+
+/* register model of the AS7341 for SimulatedI2CBus
+ *
+ * Covers what the Spectrometer driver touches: the SMUX RAM at 0x00..0x13
+ * (decoded per pixel, so a wrong SMUX table shows up as wrong channels),
+ * SMUXEN and SINT_SMUX completion, ATIME/ASTEP/AGAIN and spectral
+ * measurements in SPM mode. A measurement takes the programmed
+ * integration time, (ATIME + 1) x (ASTEP + 1) x 2.78 µs, and saturates
+ * digitally at min(65535, (ATIME + 1) x (ASTEP + 1)) counts. Untimed,
+ * SMUX commands and measurements complete at once.
+ */
+class SimulatedAS7341 implements SimulatedI2CBus.Device {
+    private static final int ENABLE = 0x80;
+    private static final int ATIME = 0x81;
+    private static final int STATUS = 0x93;
+    private static final int ASTATUS = 0x94;
+    private static final int CH0_DATA_L = 0x95;
+    private static final int STATUS2 = 0xA3;
+    private static final int STATUS5 = 0xA6;
+    private static final int AGAIN = 0xAA;
+    private static final int CFG6 = 0xAF;
+    private static final int CFG9 = 0xB2;
+    private static final int ASTEP_L = 0xCA;
+    private static final int ASTEP_H = 0xCB;
+    private static final int PON = 0x01;
+    private static final int SP_EN = 0x02;
+    private static final int SMUXEN = 0x10;
+    private static final int SMUX_CMD_WRITE = 0x10;
+    private static final int SINT_SMUX_ENABLE = 0x10;
+    private static final int SINT_SMUX = 0x04;
+    private static final int AVALID = 0x40;
+    private static final int ASAT_DIGITAL = 0x10;
+    private static final int ASAT_ANALOG = 0x08;
+    private static final int ASAT = 0x80;
+    private static final int SMUX_RAM = 20;
+    private static final long SMUX_NS = 80_000;
+    private static final double ASTEP_NS = 2780;
+    /* per-step signal above which the photodiode front end clips */
+    private static final double ANALOG_LIMIT = 600;
+
+    /* pixel id -> filter, from the SMUX table in Spectrometer.
+       F1..F8 are 0..7, NIR 8, Clear 9, -1 for pixels we do not model */
+    private static final int[] PIXEL_FILTER = new int[2 * SMUX_RAM];
+    /* signal per integration step at gain 1x and light level 1.0,
+       about half scale at the default 4x / 100 ms on a bright day */
+    private static final double[] RESPONSE = {
+            0.08, 0.13, 0.16, 0.20, 0.22, 0.23, 0.22, 0.18, 0.14, 0.23
+    };
+
+    static {
+        java.util.Arrays.fill(PIXEL_FILTER, -1);
+        int[][] pixels = {{2, 32}, {10, 25}, {1, 31}, {11, 26}, {13, 19}, {8, 29}, {14, 20}, {7, 28}, {38}, {17, 35}};
+        for (int f = 0; f < pixels.length; f++) {
+            for (int p : pixels[f]) {
+                PIXEL_FILTER[p] = f;
+            }
+        }
+    }
+
+    private final boolean timed;
+    private final int[] regs = new int[256];
+    private final int[] smux = new int[SMUX_RAM];
+    /* ADC -> connected pixels, from the last SMUX write command */
+    private final int[] adcPixels = new int[2 * SMUX_RAM];
+    private final SplittableRandom random = new SplittableRandom(7341);
+    private volatile double level = 0.3;
+    private int pointer;
+    private long smuxDoneAt;
+    private boolean smuxBusy;
+    private long measurementDoneAt;
+    private boolean measuring;
+    private long measurements;
+
+    SimulatedAS7341() {
+        this(true);
+    }
+
+    SimulatedAS7341(boolean timed) {
+        this.timed = timed;
+        /* power-on defaults from the datasheet */
+        regs[ATIME] = 0x00;
+        regs[ASTEP_L] = 0xE7;
+        regs[ASTEP_H] = 0x03;
+        regs[AGAIN] = 0x09;
+    }
+
+    /* light level relative to a bright summer day */
+    public void setLevel(double level) {
+        this.level = level;
+    }
+
+    public synchronized long getMeasurements() {
+        return measurements;
+    }
+
+    @Override
+    public synchronized void write(int[] data, int length) {
+        if (length == 0) {
+            return;
+        }
+        pointer = data[0];
+        long now = System.nanoTime();
+        for (int i = 1; i < length; i++) {
+            writeRegister(pointer, data[i], now);
+            pointer = (pointer + 1) & 0xFF;
+        }
+    }
+
+    @Override
+    public synchronized void read(int[] data, int length) {
+        update(System.nanoTime());
+        for (int i = 0; i < length; i++) {
+            data[i] = regs[pointer];
+            pointer = (pointer + 1) & 0xFF;
+        }
+    }
+
+    private void writeRegister(int reg, int value, long now) {
+        if (reg < SMUX_RAM) {
+            smux[reg] = value;
+            return;
+        }
+        switch (reg) {
+            case ENABLE -> {
+                int old = regs[ENABLE];
+                regs[ENABLE] = value;
+                if ((value & PON) == 0) {
+                    measuring = false;
+                    smuxBusy = false;
+                    regs[STATUS2] = 0;
+                    return;
+                }
+                if ((value & SMUXEN) != 0 && !smuxBusy) {
+                    smuxBusy = true;
+                    smuxDoneAt = now + (timed ? SMUX_NS : 0);
+                }
+                if ((value & SP_EN) != 0 && (old & SP_EN) == 0) {
+                    regs[STATUS2] &= ~AVALID;
+                    measuring = true;
+                    measurementDoneAt = now + integrationNs();
+                } else if ((value & SP_EN) == 0) {
+                    measuring = false;
+                }
+            }
+            /* status bits are cleared by writing ones */
+            case STATUS -> {
+                regs[STATUS] &= ~value;
+                regs[STATUS5] = 0;
+            }
+            default -> regs[reg] = value;
+        }
+    }
+
+    private void update(long now) {
+        if (smuxBusy && now - smuxDoneAt >= 0) {
+            smuxBusy = false;
+            regs[ENABLE] &= ~SMUXEN;
+            if ((regs[CFG6] & 0x18) == SMUX_CMD_WRITE) {
+                decodeSmux();
+            }
+            if ((regs[CFG9] & SINT_SMUX_ENABLE) != 0) {
+                regs[STATUS5] |= SINT_SMUX;
+            }
+        }
+        if (measuring && now - measurementDoneAt >= 0) {
+            measure();
+            /* SPM keeps integrating back to back */
+            measurementDoneAt += Math.max(integrationNs(), 1);
+        }
+    }
+
+    private void decodeSmux() {
+        for (int b = 0; b < SMUX_RAM; b++) {
+            adcPixels[2 * b] = smux[b] & 0x07;
+            adcPixels[2 * b + 1] = (smux[b] >> 4) & 0x07;
+        }
+    }
+
+    private void measure() {
+        long steps = (long) (regs[ATIME] + 1) * (astep() + 1);
+        long fullScale = Math.min(65535, steps);
+        double gain = regs[AGAIN] == 0 ? 0.5 : 1 << (Math.min(regs[AGAIN], 10) - 1);
+        boolean analog = false;
+        boolean digital = false;
+        for (int adc = 1; adc <= 6; adc++) {
+            double signal = 0;
+            for (int p = 0; p < adcPixels.length; p++) {
+                if (adcPixels[p] == adc && PIXEL_FILTER[p] >= 0) {
+                    /* filters are split over two pixels, except NIR */
+                    signal += RESPONSE[PIXEL_FILTER[p]] * (PIXEL_FILTER[p] == 8 ? 1 : 0.5);
+                }
+            }
+            signal *= level * gain * (1 + 0.005 * (random.nextDouble() * 2 - 1));
+            analog |= signal > ANALOG_LIMIT;
+            long counts = Math.round(signal * steps);
+            if (counts >= fullScale) {
+                counts = fullScale;
+                digital = true;
+            }
+            int reg = CH0_DATA_L + 2 * (adc - 1);
+            regs[reg] = (int) (counts & 0xFF);
+            regs[reg + 1] = (int) (counts >> 8);
+        }
+        regs[STATUS2] = AVALID | (digital ? ASAT_DIGITAL : 0) | (analog ? ASAT_ANALOG : 0);
+        regs[ASTATUS] = (analog || digital ? ASAT : 0) | (regs[AGAIN] & 0x0F);
+        measurements++;
+    }
+
+    private int astep() {
+        return regs[ASTEP_H] << 8 | regs[ASTEP_L];
+    }
+
+    private long integrationNs() {
+        return timed ? (long) ((regs[ATIME] + 1) * (astep() + 1) * ASTEP_NS) : 0;
+    }
+}
@@ -0,0 +1,143 @@
+package hegemone.sensors;
+
+import io.helins.linux.i2c.I2CBuffer;
+import io.helins.linux.i2c.I2CFlag;
+import io.helins.linux.i2c.I2CTransaction;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/* an I2C bus without hardware, answering from register models
+ *
+ * Devices are attached by address; a transfer to any other address fails
+ * like a missing device (ENXIO). When timed, every transaction takes as
+ * long as it would on the Pi: a fixed setup cost plus nine clocks per
+ * byte (address byte included) at the bus clock. The defaults reproduce
+ * the durations in dumps/hegemone-debug-log.txt, about 350 µs for a
+ * register write and 530 µs for a two-byte register read at 100 kHz.
+ * Untimed, devices answer at once, for benchmarking our own code.
+ */
+class SimulatedI2CBus implements I2CPort {
+    static final long SETUP_NS = 100_000;
+    static final int STANDARD_MODE_HZ = 100_000;
+
+    /* a simulated chip, data excludes the address byte */
+    interface Device {
+        void write(int[] data, int length) throws IOException;
+
+        void read(int[] data, int length) throws IOException;
+    }
+
+    private final Map<Integer, Device> devices = new HashMap<>();
+    private final boolean timed;
+    private final long nsPerByte;
+    private final int[] scratch = new int[256];
+    private int slave;
+    private long transactions;
+    private long bytes;
+
+    public SimulatedI2CBus(boolean timed) {
+        this(timed, STANDARD_MODE_HZ);
+    }
+
+    public SimulatedI2CBus(boolean timed, int clockHz) {
+        this.timed = timed;
+        this.nsPerByte = 9 * 1_000_000_000L / clockHz;
+    }
+
+    /* the hegemone board: AS7341, VEML7700 and the Seesaw soil sensor */
+    public static SimulatedI2CBus hegemoneBoard(boolean timed) {
+        var bus = new SimulatedI2CBus(timed);
+        bus.attach(DeviceTree.ADAFRUIT_SPECTROMETER, new SimulatedAS7341(timed));
+        bus.attach(DeviceTree.ADAFRUIT_AMBIENT_LIGHT_SENSOR, new SimulatedVEML7700());
+        bus.attach(DeviceTree.ADAFRUIT_SOIL_SENSOR, new SimulatedSeesaw(timed));
+        return bus;
+    }
+
+    public synchronized SimulatedI2CBus attach(int address, Device device) {
+        devices.put(address, device);
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Device> T device(int address) {
+        return (T) devices.get(address);
+    }
+
+    @Override
+    public String getName() {
+        return timed ? "simulated" : "simulated (untimed)";
+    }
+
+    @Override
+    public synchronized void selectSlave(int address) {
+        slave = address;
+    }
+
+    @Override
+    public synchronized void read(I2CBuffer buffer, int length) throws IOException {
+        long start = System.nanoTime();
+        transfer(slave, buffer, length, true);
+        complete(start, length + 1);
+    }
+
+    @Override
+    public synchronized void write(I2CBuffer buffer, int length) throws IOException {
+        long start = System.nanoTime();
+        transfer(slave, buffer, length, false);
+        complete(start, length + 1);
+    }
+
+    @Override
+    public synchronized void doTransaction(I2CTransaction transaction) throws IOException {
+        long start = System.nanoTime();
+        int total = 0;
+        for (int i = 0; i < transaction.length; i++) {
+            var msg = transaction.getMessage(i);
+            var buf = msg.getBuffer();
+            transfer(msg.getAddress(), buf, buf.length, msg.getFlags().isSet(I2CFlag.READ));
+            total += buf.length + 1;
+        }
+        complete(start, total);
+    }
+
+    private void transfer(int address, I2CBuffer buffer, int length, boolean read) throws IOException {
+        var device = devices.get(address);
+        if (device == null) {
+            throw new IOException(String.format("No device at 0x%02x on simulated bus", address));
+        }
+        if (read) {
+            device.read(scratch, length);
+            for (int i = 0; i < length; i++) {
+                buffer.set(i, scratch[i]);
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                scratch[i] = buffer.get(i);
+            }
+            device.write(scratch, length);
+        }
+    }
+
+    /* hold the bus for as long as the transfer would take */
+    private void complete(long start, int count) {
+        transactions++;
+        bytes += count;
+        if (timed) {
+            Timing.sleepUntil(start + SETUP_NS + count * nsPerByte);
+        }
+    }
+
+    public synchronized long getTransactions() {
+        return transactions;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,192 @@
+package hegemone.sensors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/* a w1 sysfs tree of DS18B20 sensors in an ordinary directory
+ *
+ * Lays out <root>/w1_bus_master1 the way the w1_therm driver does:
+ * w1_master_slaves, therm_bulk_read and per sensor a directory with
+ * w1_slave (scratchpad with its CRC line and t=), temperature and
+ * resolution. Sensors reads it like the real bus when pointed at
+ * getBusMaster().
+ *
+ * A plain file can not block a reader the way w1_slave does for a
+ * conversion, so the conversion time only shows through therm_bulk_read:
+ * writing "trigger" to it makes it read -1 for the conversion time of
+ * the finest configured resolution (94 ms at 9 bits to 750 ms at 12),
+ * then 1 with fresh values in every w1_slave.
+ */
+class SimulatedOneWire implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.simulation");
+    private static final long POLL_MS = 10;
+
+    private final File master;
+    private final List<Probe> probes = new ArrayList<>();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    private static class Probe {
+        final String id;
+        final File dir;
+        volatile double temperature;
+        volatile int resolution = 12;
+
+        Probe(String id, File dir, double temperature) {
+            this.id = id;
+            this.dir = dir;
+            this.temperature = temperature;
+        }
+    }
+
+    public SimulatedOneWire(File root) throws IOException {
+        master = new File(root, "w1_bus_master1");
+        if (!master.isDirectory() && !master.mkdirs()) {
+            throw new IOException("Could not create " + master);
+        }
+        write(new File(master, "therm_bulk_read"), "0");
+        worker = new Thread(this::work, "hegemone-sim-w1");
+        worker.setDaemon(true);
+    }
+
+    /* the hegemone board, one probe under the id DeviceTree expects */
+    public static SimulatedOneWire hegemoneBoard(File root) throws IOException {
+        var bus = new SimulatedOneWire(root);
+        bus.addProbe(DeviceTree.DS18B20_SERIAL, 19.5);
+        bus.start();
+        return bus;
+    }
+
+    public File getBusMaster() {
+        return master;
+    }
+
+    public synchronized SimulatedOneWire addProbe(String id, double temperature) throws IOException {
+        var dir = new File(master, id);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        var probe = new Probe(id, dir, temperature);
+        probes.add(probe);
+        write(new File(dir, "resolution"), Integer.toString(probe.resolution));
+        convert(probe);
+        var ids = new StringBuilder();
+        for (var p : probes) {
+            ids.append(p.id).append('\n');
+        }
+        write(new File(master, "w1_master_slaves"), ids.toString());
+        return this;
+    }
+
+    public synchronized void setTemperature(String id, double temperature) {
+        for (var p : probes) {
+            if (p.id.equals(id)) {
+                p.temperature = temperature;
+            }
+        }
+    }
+
+    public void start() {
+        worker.start();
+    }
+
+    /* conversion time of a DS18B20 at the given resolution */
+    static long conversionMs(int resolution) {
+        return 750 >> (12 - Math.max(9, Math.min(12, resolution)));
+    }
+
+    private void work() {
+        var bulk = new File(master, "therm_bulk_read");
+        while (running) {
+            try {
+                Thread.sleep(POLL_MS);
+                syncResolutions();
+                if (read(bulk).startsWith("trigger")) {
+                    write(bulk, "-1");
+                    Thread.sleep(bulkConversionMs());
+                    synchronized (this) {
+                        for (var p : probes) {
+                            convert(p);
+                        }
+                    }
+                    write(bulk, "1");
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                logger.warn("Simulated 1-Wire bus failed: {}", e.toString());
+            }
+        }
+    }
+
+    /* resolution is written by the driver like on the real bus */
+    private synchronized void syncResolutions() throws IOException {
+        for (var p : probes) {
+            var s = read(new File(p.dir, "resolution")).trim();
+            if (!s.isEmpty() && !s.equals(Integer.toString(p.resolution))) {
+                try {
+                    p.resolution = Math.max(9, Math.min(12, Integer.parseInt(s)));
+                } catch (NumberFormatException e) {
+                    /* keep the old one */
+                }
+                write(new File(p.dir, "resolution"), Integer.toString(p.resolution));
+            }
+        }
+    }
+
+    private synchronized long bulkConversionMs() {
+        int finest = 9;
+        for (var p : probes) {
+            finest = Math.max(finest, p.resolution);
+        }
+        return conversionMs(finest);
+    }
+
+    /* scratchpad as w1_therm prints it, with the conversion truncated to the resolution */
+    private void convert(Probe p) throws IOException {
+        int raw = (int) Math.round(p.temperature * 16) & ~((1 << (12 - p.resolution)) - 1);
+        int config = ((p.resolution - 9) << 5) | 0x1F;
+        int[] pad = {raw & 0xFF, (raw >> 8) & 0xFF, 0x4B, 0x46, config, 0xFF, 0x0C, 0x10, 0};
+        pad[8] = crc8(pad, 8);
+        var hex = new StringBuilder();
+        for (int b : pad) {
+            hex.append(String.format("%02x ", b));
+        }
+        int milli = (int) ((short) raw * 1000L / 16);
+        write(new File(p.dir, "w1_slave"), String.format("%s: crc=%02x YES\n%st=%d\n", hex, pad[8], hex, milli));
+        write(new File(p.dir, "temperature"), milli + "\n");
+    }
+
+    static int crc8(int[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc = OneWireBus.crc8(crc, data[i]);
+        }
+        return crc;
+    }
+
+    private static String read(File f) throws IOException {
+        return Files.readString(f.toPath(), StandardCharsets.US_ASCII);
+    }
+
+    /* replace atomically, readers never see a half written file */
+    private static void write(File f, String content) throws IOException {
+        var tmp = new File(f.getParentFile(), "." + f.getName() + ".tmp");
+        Files.writeString(tmp.toPath(), content, StandardCharsets.US_ASCII);
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        worker.interrupt();
+    }
+}
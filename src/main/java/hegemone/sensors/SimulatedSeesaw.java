@@ -0,0 +1,83 @@
+package hegemone.sensors;
+
+import java.util.SplittableRandom;
+
+/* model of the Adafruit Seesaw soil sensor for SimulatedI2CBus
+ *
+ * A read is answered for the last module/function command written. The
+ * chip needs time to sample before the answer is valid; reading earlier
+ * returns 0xFF bytes, which the driver sees as an out of range moisture
+ * value and retries, as on the real board.
+ */
+class SimulatedSeesaw implements SimulatedI2CBus.Device {
+    private static final int STATUS_BASE = 0x00;
+    private static final int STATUS_TEMP = 0x04;
+    private static final int TOUCH_BASE = 0x0F;
+    private static final int TOUCH_CHANNEL = 0x10;
+    /* the delays the Adafruit library waits before reading back */
+    private static final long TOUCH_NS = 3_000_000;
+    private static final long TEMP_NS = 1_000_000;
+
+    private final boolean timed;
+    private final SplittableRandom random = new SplittableRandom(0x36);
+    private volatile int moisture = 620;
+    private volatile double temperature = 21.5;
+    private int base;
+    private int function;
+    private long readyAt;
+
+    SimulatedSeesaw() {
+        this(true);
+    }
+
+    SimulatedSeesaw(boolean timed) {
+        this.timed = timed;
+    }
+
+    public void setMoisture(int moisture) {
+        this.moisture = moisture;
+    }
+
+    public void setTemperature(double temperature) {
+        this.temperature = temperature;
+    }
+
+    @Override
+    public synchronized void write(int[] data, int length) {
+        if (length < 2) {
+            return;
+        }
+        base = data[0];
+        function = data[1];
+        long delay = base == TOUCH_BASE ? TOUCH_NS : TEMP_NS;
+        readyAt = System.nanoTime() + (timed ? delay : 0);
+    }
+
+    @Override
+    public synchronized void read(int[] data, int length) {
+        if (System.nanoTime() - readyAt < 0) {
+            for (int i = 0; i < length; i++) {
+                data[i] = 0xFF;
+            }
+            return;
+        }
+        long value;
+        int size;
+        if (base == TOUCH_BASE && function == TOUCH_CHANNEL) {
+            value = moisture + random.nextInt(-3, 4);
+            size = 2;
+        } else if (base == STATUS_BASE && function == STATUS_TEMP) {
+            /* 16.16 fixed point */
+            value = Math.round(temperature * 65536);
+            size = 4;
+        } else {
+            value = 0;
+            size = length;
+        }
+        /* big endian */
+        for (int i = 0; i < length; i++) {
+            int shift = 8 * (size - 1 - i);
+            data[i] = shift >= 0 ? (int) (value >> shift) & 0xFF : 0;
+        }
+    }
+}
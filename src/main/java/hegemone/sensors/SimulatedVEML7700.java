@@ -0,0 +1,80 @@
+package hegemone.sensors;
+
+import java.util.SplittableRandom;
+
+/* register model of the VEML7700 for SimulatedI2CBus
+ *
+ * 16-bit little endian registers addressed by a command byte. The white
+ * and ALS outputs follow the light level through the resolution the
+ * configured gain and integration time give (0.0036 lx/count at gain 2,
+ * 800 ms, datasheet table 7), clipped at 65535.
+ */
+class SimulatedVEML7700 implements SimulatedI2CBus.Device {
+    private static final int ALS_CONF = 0x00;
+    private static final int ALS = 0x04;
+    private static final int WHITE = 0x05;
+    private static final int ID = 0x07;
+    /* lux of a bright summer day, light level 1.0 */
+    private static final double FULL_DAYLIGHT_LUX = 60_000;
+    private static final double[] GAIN = {1, 2, 0.125, 0.25};
+
+    private final int[] regs = new int[8];
+    private final SplittableRandom random = new SplittableRandom(7700);
+    private volatile double level = 0.3;
+    private int command;
+
+    SimulatedVEML7700() {
+        regs[ID] = 0xC481;
+    }
+
+    public void setLevel(double level) {
+        this.level = level;
+    }
+
+    @Override
+    public synchronized void write(int[] data, int length) {
+        if (length == 0) {
+            return;
+        }
+        command = data[0] & 0x07;
+        if (length >= 3 && command == ALS_CONF) {
+            regs[ALS_CONF] = data[2] << 8 | data[1];
+        }
+    }
+
+    @Override
+    public synchronized void read(int[] data, int length) {
+        int value = switch (command) {
+            case ALS -> counts(1.0);
+            /* the white channel sees a bit more than the eye-matched ALS one */
+            case WHITE -> counts(1.2);
+            default -> regs[command];
+        };
+        for (int i = 0; i < length; i++) {
+            data[i] = i == 0 ? value & 0xFF : i == 1 ? value >> 8 : 0;
+        }
+    }
+
+    private int counts(double factor) {
+        int conf = regs[ALS_CONF];
+        /* ALS_SD, shut down */
+        if ((conf & 0x01) != 0) {
+            return 0;
+        }
+        double gain = GAIN[(conf >> 11) & 0x03];
+        double resolution = 0.0036 * (2 / gain) * (800.0 / integrationMs((conf >> 6) & 0x0F));
+        double lux = level * FULL_DAYLIGHT_LUX * factor * (1 + 0.005 * (random.nextDouble() * 2 - 1));
+        return (int) Math.min(65535, Math.round(lux / resolution));
+    }
+
+    private static int integrationMs(int it) {
+        return switch (it) {
+            case 0b1100 -> 25;
+            case 0b1000 -> 50;
+            case 0b0001 -> 200;
+            case 0b0010 -> 400;
+            case 0b0011 -> 800;
+            default -> 100;
+        };
+    }
+}
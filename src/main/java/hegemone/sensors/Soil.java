@@ -7,6 +7,9 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import io.helins.linux.i2c.*;
 
@@ -14,97 +17,207 @@ import hegemone.sensors.DeviceTree;
 import hegemone.sensors.Utils;
 
 
+/* Adafruit Seesaw soil probe
+ *
+ * A reading is a command (module and function register) and, once the
+ * chip has sampled, a collect of the answer. The Seesaw only answers the
+ * last command, so moisture and temperature are taken one after the
+ * other: command moisture, collect it (re-reading up to MAX_RETRY times
+ * while the chip still answers 0xFFFF), command temperature, collect it.
+ * Each command and collect holds the bus only for its transfer, slave
+ * select included; the conversion waits are outside the lock. read(Executor)
+ * goes further and hands the bus owner back during the waits, so the
+ * other devices of the bus are read meanwhile.
+ */
 class Soil {
-	private static I2CBuffer twoBuf;
-	private static I2CBuffer fourBuf;
-	private static I2CBus i2cBus;
-	private static final long I2C_WAIT = 800l;
+	/* scratch buffers, one set per probe */
+	private final I2CBuffer twoBuf = new I2CBuffer(2);
+	private final I2CBuffer fourBuf = new I2CBuffer(4);
+	private final I2CPort i2cBus;
+	/* 0x36 to 0x39, set by the AD0/AD1 jumpers */
+	private final int address;
+	/* failed moisture read attempts, and reads given up after MAX_RETRY of them */
+	private final Metrics.Counter retries;
+	private final Metrics.Counter failures;
+	/* set while read(Executor) is between phases, only touched on the bus owner */
+	private boolean pending;
+	private static final long I2C_WAIT = 800L;
+	/* sampling times after a command, as in the Adafruit library */
+	private static final long MOISTURE_WAIT = 3000L;
+	private static final long TEMP_WAIT = 1000L;
 	private static final int MAX_RETRY = 4;
 	private static final byte MOISTURE_ADDR = 0x0F;
 	private static final byte MOISTURE_VAL = 0x10;
 	private static final byte TEMP_ADDR = 0x0;
 	private static final byte TEMP_VAL = 0x4;
-	static {
-		try {
-			twoBuf = new I2CBuffer(2);
-			fourBuf = new I2CBuffer(4);
-		} catch (Exception e) {
-			System.err.println("Failed to initialize read-write buffers");
-			System.exit(1);
-		}
+
+	/* moisture (raw capacitance, 200 to 2000) and °C, NaN if not read */
+	record Reading(double moisture, double temperature) {
+	}
+
+	public Soil(I2CPort bus) {
+		this(bus, DeviceTree.ADAFRUIT_SOIL_SENSOR);
 	}
-				
-	public Soil(I2CBus bus) {
+
+	public Soil(I2CPort bus, int address) {
 		i2cBus = bus;
+		this.address = address;
+		var labels = new String[]{"bus", bus.getName(), "address", "0x" + Integer.toHexString(address)};
+		retries = Metrics.counter("hegemone_soil_retries_total", "Soil moisture read attempts out of range or failed", labels);
+		failures = Metrics.counter("hegemone_soil_failures_total", "Soil moisture reads given up", labels);
 	}
 
 	public double getTemperature() {
-		double ret = 0;
-
-		twoBuf.clear();
-		twoBuf.set(0,TEMP_ADDR)
-			.set(1,TEMP_VAL);
-		try{ synchronized(i2cBus) {
-				i2cBus.selectSlave(DeviceTree.ADAFRUIT_SOIL_SENSOR);
-				i2cBus.write(twoBuf);
-				Utils.suspend(I2C_WAIT*2);
-			} twoBuf.clear();
-		} catch (IOException ioe) {
+		if (!command(TEMP_ADDR, TEMP_VAL)) {
 			System.err.println("Couldn't write temperature command to soil sensor over I2C");
 			return 0;
 		}
-		fourBuf.clear();
-		try {
-		i2cBus.read(fourBuf, 4);
-		byte[] b = { (byte) (fourBuf.get(0) & 0x3F), (byte) fourBuf.get(1),
-			(byte)fourBuf.get(2), (byte)fourBuf.get(3)};
-		ByteBuffer byteBuf = ByteBuffer.wrap(b);
-		long t = (byteBuf.getInt() & 0xFFFFFFFFL);
-		ret = DeviceTree.ADAFRUIT_SOIL_SENSOR_MAGIC * t;
-		} catch (IOException ioe) {
-			System.err.println("Couldn't read temperature from soil sensor");
+		Utils.suspend(TEMP_WAIT);
+		double t = collectTemperature();
+		return Double.isNaN(t) ? 0 : t;
+	}
+
+	public int getMoisture() {
+		if (!command(MOISTURE_ADDR, MOISTURE_VAL)) {
+			System.err.println("Couldn't write moisture command to soil sensor over I2C");
+			failures.increment();
 			return 0;
 		}
-		return ret;
+		Utils.suspend(MOISTURE_WAIT);
+		for (int tries = 0; ; ) {
+			int val = collectMoisture();
+			if (val >= 0) {
+				return val;
+			}
+			retries.increment();
+			if (++tries == MAX_RETRY) {
+				failures.increment();
+				return 0;
+			}
+			Utils.suspend(I2C_WAIT);
+		}
 	}
-	public int getMoisture() {
-		int ret = 0;
-		int tries = 0;
-		twoBuf.clear();
-		twoBuf.set(0,MOISTURE_ADDR)
-		      .set(1,MOISTURE_VAL);
+
+	/* both values in one pass on the calling thread, the waits outside the bus lock */
+	public Reading read() {
+		double moisture = Double.NaN;
+		if (command(MOISTURE_ADDR, MOISTURE_VAL)) {
+			Utils.suspend(MOISTURE_WAIT);
+			for (int tries = 0; tries < MAX_RETRY; tries++) {
+				int val = collectMoisture();
+				if (val >= 0) {
+					moisture = val;
+					break;
+				}
+				retries.increment();
+				if (tries + 1 < MAX_RETRY) {
+					Utils.suspend(I2C_WAIT);
+				}
+			}
+		}
+		if (Double.isNaN(moisture)) {
+			failures.increment();
+		}
+		double temperature = Double.NaN;
+		if (command(TEMP_ADDR, TEMP_VAL)) {
+			Utils.suspend(TEMP_WAIT);
+			temperature = collectTemperature();
+		}
+		return new Reading(moisture, temperature);
+	}
+
+	/* both values; call on owner, the bus owner thread. Every following
+	   phase is scheduled on owner after its wait, so the owner is free
+	   while the chip samples. Completes with null if the previous reading
+	   is still going. */
+	public CompletableFuture<Reading> read(Executor owner) {
+		var result = new CompletableFuture<Reading>();
+		if (pending) {
+			result.complete(null);
+			return result;
+		}
+		pending = true;
+		if (command(MOISTURE_ADDR, MOISTURE_VAL)) {
+			after(MOISTURE_WAIT, owner, () -> moisturePhase(owner, result, 0));
+		} else {
+			failures.increment();
+			temperaturePhase(owner, result, Double.NaN);
+		}
+		return result;
+	}
+
+	private void moisturePhase(Executor owner, CompletableFuture<Reading> result, int tries) {
+		int val = collectMoisture();
+		if (val < 0) {
+			retries.increment();
+			if (tries + 1 < MAX_RETRY) {
+				after(I2C_WAIT, owner, () -> moisturePhase(owner, result, tries + 1));
+				return;
+			}
+			failures.increment();
+		}
+		temperaturePhase(owner, result, val < 0 ? Double.NaN : val);
+	}
+
+	private void temperaturePhase(Executor owner, CompletableFuture<Reading> result, double moisture) {
+		if (!command(TEMP_ADDR, TEMP_VAL)) {
+			pending = false;
+			result.complete(new Reading(moisture, Double.NaN));
+			return;
+		}
+		after(TEMP_WAIT, owner, () -> {
+			double t = collectTemperature();
+			pending = false;
+			result.complete(new Reading(moisture, t));
+		});
+	}
+
+	private static void after(long us, Executor owner, Runnable phase) {
+		CompletableFuture.delayedExecutor(us, TimeUnit.MICROSECONDS, owner).execute(phase);
+	}
+
+	/* write a module/function register pair */
+	private boolean command(byte base, byte function) {
 		try {
 			synchronized(i2cBus) {
-				i2cBus.selectSlave(DeviceTree.ADAFRUIT_SOIL_SENSOR);
+				twoBuf.set(0, base)
+				      .set(1, function);
+				i2cBus.selectSlave(address);
 				i2cBus.write(twoBuf);
-				Utils.suspend(I2C_WAIT*2);
 			}
-			twoBuf.clear();
+			return true;
 		} catch (IOException ioe) {
-			System.err.println("Couldn't write moisture command to soil sensor over I2C");
-			return 0;
+			return false;
 		}
-		while(tries < MAX_RETRY) {
-			try {
-				synchronized(i2cBus) {
-					i2cBus.read(twoBuf);
-					Utils.suspend(I2C_WAIT);
-					byte[] b = { (byte)(twoBuf.get(0)),
-						(byte)(twoBuf.get(1))};
-					ByteBuffer byteBuf = ByteBuffer.wrap(b);
-					var val = Short.toUnsignedInt(byteBuf.getShort());
-					if(val>4095) {
-						tries++;
-					} else {
-						ret = val;
-						break;
-					}
-				}
-			} catch (IOException ioe) {
-				tries++;					
+	}
+
+	/* moisture, -1 if the chip is not done sampling or the read failed */
+	private int collectMoisture() {
+		try {
+			synchronized(i2cBus) {
+				i2cBus.selectSlave(address);
+				i2cBus.read(twoBuf);
+				var val = (twoBuf.get(0) & 0xFF) << 8 | (twoBuf.get(1) & 0xFF);
+				return val > 4095 ? -1 : val;
 			}
+		} catch (IOException ioe) {
+			return -1;
 		}
-		return ret;
 	}
-}
 
+	/* °C, 16.16 fixed point on the chip */
+	private double collectTemperature() {
+		try {
+			synchronized(i2cBus) {
+				i2cBus.selectSlave(address);
+				i2cBus.read(fourBuf, 4);
+				long t = ((long) (fourBuf.get(0) & 0x3F) << 24 | (fourBuf.get(1) & 0xFF) << 16
+					| (fourBuf.get(2) & 0xFF) << 8 | (fourBuf.get(3) & 0xFF)) & 0xFFFFFFFFL;
+				return DeviceTree.ADAFRUIT_SOIL_SENSOR_MAGIC * t;
+			}
+		} catch (IOException ioe) {
+			System.err.println("Couldn't read temperature from soil sensor");
+			return Double.NaN;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package hegemone.sensors;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.TimeUnit;
+
+/* light indices of one AS7341, from the channel array of getPhotonFlux()
+ *
+ * Every band is a weight vector over the ten channels (F1 to F8, NIR,
+ * clear), so a band costs ten multiply-adds and a new index is a new row
+ * in WEIGHTS. Per sample, compute() fills:
+ *
+ *   light_measurement_red, _blue, _green   rlqi_red, _blue, _green again, and
+ *   light_measurement_far_red              half of rlqi_red, as these columns
+ *                                          always were
+ *   rlqi_blue, _green, _red                percent of blue + green + red, red
+ *                                          counting the NIR channel as it always did
+ *   light_band_red, _blue, _green          counts of F7-F8, F1-F3, F4-F6
+ *   light_band_far_red                     estimate at 730 nm, interpolated
+ *                                          between F8 (680 nm) and NIR (910 nm)
+ *   ppfd                                   F1-F8 weighted by their bandwidth, times
+ *                                          ppfdPerCount (µmol/m²/s per count)
+ *   red_far_red                            660 nm (F7/F8 interpolated) over 730 nm
+ *   dli                                    ppfd integrated since local midnight, mol/m²
+ *
+ * Without a calibration against a quantum sensor ppfdPerCount is 1 and
+ * ppfd and dli are relative. The DLI integrates with the trapezoid rule
+ * between consecutive samples; gaps longer than MAX_GAP_US (a sensor that
+ * was down) are not integrated, and after a restart the day's integral
+ * starts over from 0. Not thread safe, one instance per sensor
+ * used from its bus owner.
+ */
+final class SpectralIndices {
+    public static final double DEFAULT_PPFD_PER_COUNT = 1;
+    /* values written by compute() */
+    public static final int SIZE = 14;
+    private static final long MAX_GAP_US = TimeUnit.MINUTES.toMicros(15);
+
+    private static final int BLUE = 0;
+    private static final int GREEN = 1;
+    private static final int RED = 2;
+    private static final int RLQI_RED = 3;
+    private static final int FAR_RED = 4;
+    private static final int RED_660 = 5;
+    private static final int PAR = 6;
+    private static final int CHANNELS = 10;
+    /* [band][channel], channels in getPhotonFlux() order:
+       F1 415, F2 445, F3 480, F4 515, F5 555, F6 590, F7 630, F8 680, NIR 910, clear */
+    private static final double[][] WEIGHTS = {
+            {1, 1, 1, 0, 0, 0, 0, 0, 0, 0},
+            {0, 0, 0, 1, 1, 1, 0, 0, 0, 0},
+            {0, 0, 0, 0, 0, 0, 1, 1, 0, 0},
+            {0, 0, 0, 0, 0, 0, 1, 1, 1, 0},
+            {0, 0, 0, 0, 0, 0, 0, (910 - 730) / 230.0, (730 - 680) / 230.0, 0},
+            {0, 0, 0, 0, 0, 0, (680 - 660) / 50.0, (660 - 630) / 50.0, 0, 0},
+            /* FWHM in nm, photons per band are roughly count times width */
+            {25, 30, 36, 39, 39, 40, 50, 52, 0, 0},
+    };
+    /* flattened, band after band */
+    private static final double[] MATRIX = flatten(WEIGHTS);
+
+    private final double ppfdPerCount;
+    private final double[] bands = new double[WEIGHTS.length];
+    private final ZoneId zone;
+    /* DLI state, timestamps in µs since the epoch */
+    private long last = Long.MIN_VALUE;
+    private double lastPpfd;
+    private long dayEnd = Long.MIN_VALUE;
+    private double dli;
+
+    public SpectralIndices() {
+        this(DEFAULT_PPFD_PER_COUNT);
+    }
+
+    public SpectralIndices(double ppfdPerCount) {
+        this(ppfdPerCount, ZoneId.systemDefault());
+    }
+
+    SpectralIndices(double ppfdPerCount, ZoneId zone) {
+        this.ppfdPerCount = ppfdPerCount;
+        this.zone = zone;
+    }
+
+    private static double[] flatten(double[][] rows) {
+        var m = new double[rows.length * CHANNELS];
+        for (int b = 0; b < rows.length; b++) {
+            System.arraycopy(rows[b], 0, m, b * CHANNELS, CHANNELS);
+        }
+        return m;
+    }
+
+    /* SIZE values into out from offset. flux are the raw counts, scale
+       what they are multiplied by for the sample (Spectrometer.getExposureScale()) */
+    public void compute(int[] flux, double scale, long timestamp, double[] out, int offset) {
+        for (int b = 0, m = 0; b < bands.length; b++) {
+            double sum = 0;
+            for (int c = 0; c < CHANNELS; c++) {
+                sum += MATRIX[m++] * flux[c];
+            }
+            bands[b] = sum;
+        }
+        int i = offset;
+        /* integer percentages as getRLQI(), the 0/1 band sums are exact */
+        long blue = (long) bands[BLUE];
+        long green = (long) bands[GREEN];
+        long red = (long) bands[RLQI_RED];
+        long total = blue + green + red;
+        long bluePct = total == 0 ? 0 : blue * 100 / total;
+        long greenPct = total == 0 ? 0 : green * 100 / total;
+        long redPct = total == 0 ? 0 : red * 100 / total;
+        out[i++] = redPct;
+        out[i++] = bluePct;
+        out[i++] = greenPct;
+        out[i++] = redPct / 2;
+        out[i++] = bluePct;
+        out[i++] = greenPct;
+        out[i++] = redPct;
+        out[i++] = bands[RED] * scale;
+        out[i++] = bands[BLUE] * scale;
+        out[i++] = bands[GREEN] * scale;
+        out[i++] = bands[FAR_RED] * scale;
+        double ppfd = bands[PAR] * scale * ppfdPerCount;
+        out[i++] = ppfd;
+        out[i++] = bands[FAR_RED] == 0 ? Double.NaN : bands[RED_660] / bands[FAR_RED];
+        out[i] = integrate(ppfd, timestamp);
+    }
+
+    private double integrate(double ppfd, long timestamp) {
+        if (timestamp >= dayEnd) {
+            dli = 0;
+            dayEnd = nextMidnight(timestamp);
+        } else if (timestamp > last && timestamp - last <= MAX_GAP_US) {
+            /* µmol/m²/s over µs to mol/m² */
+            dli += (lastPpfd + ppfd) / 2 * (timestamp - last) * 1e-12;
+        }
+        last = timestamp;
+        lastPpfd = ppfd;
+        return dli;
+    }
+
+    private long nextMidnight(long timestamp) {
+        var date = Instant.EPOCH.plus(timestamp, ChronoUnit.MICROS).atZone(zone).toLocalDate();
+        return TimeUnit.SECONDS.toMicros(date.plusDays(1).atStartOfDay(zone).toEpochSecond());
+    }
+
+    /* mol/m² since local midnight, as of the last compute() */
+    public double getDailyLightIntegral() {
+        return dli;
+    }
+}
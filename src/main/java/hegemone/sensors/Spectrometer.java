@@ -53,24 +53,79 @@ public class Spectrometer {
     private static final int SMUX_NONE = 0x00;
     private static final int CFG0_REG = 0xA9;
     private static final int BLANK_CFG0_SET = 0x40;
-    private static I2CBuffer oneBuf;
-    private static I2CBuffer twoBuf;
-    private static I2CBuffer threeBuf;
-    private static volatile I2CBus bus;
+    /* ADC channel data registers CH0..CH5, low byte first */
+    private static final int[] ADC_DATA_REG = { 0x95 , 0x97 , 0x99, 0x9B, 0x9D, 0x9F};
+    private static final int ASTATUS_REG = 0x94;
+    private static final int ASAT_STATUS = 0x80;
+    private static final int ASAT_DIGITAL = 0x10;
+    private static final int ASAT_ANALOG = 0x08;
+    private static final int SMUXEN = 0x10;
+    private static final int SINT_SMUX_STATUS = 0x04;
+    private static final int SP_IEN = 0x08;
+    private static final int CLEAR_STATUS = 0xFF;
+    private static final int ATIME_DEFAULT = 0x3C;
+    private static final int ASTEP_DEFAULT = 0x024D;
+    private static final double ASTEP_US = 2.78;
+    private static final int GAIN_DEFAULT = 0x03;
+    /* AGAIN 10 = 512x */
+    private static final int GAIN_MAX = 10;
+    /* auto exposure ATIME ladder at ASTEP_DEFAULT, about 13, 26, 53, 100 and 182 ms;
+       below 8 steps the full scale gets too coarse, above 111 it is capped at 65535 anyway */
+    private static final int[] AUTO_ATIME = {7, 15, 31, 60, 110};
+    /* peak channel aimed for and the band kept without re-exposing, fractions of full scale */
+    private static final double AUTO_TARGET = 0.5;
+    private static final double AUTO_LOW = 0.2;
+    private static final double AUTO_HIGH = 0.8;
+    /* measurements taken again at once after saturating */
+    private static final int AUTO_RETAKES = 2;
+    /* SMUX command takes well below a millisecond */
+    private static final long SMUX_EXPECTED_US = 100;
+    private static final long SMUX_TIMEOUT_US = 20_000;
+    private final I2CPort bus;
     private static Logger logger = LoggerFactory.getLogger("hegemone.sensors.spectrometer");
-    static {
-        try {
-            oneBuf = new I2CBuffer(1);
-            twoBuf = new I2CBuffer(2);
-            threeBuf = new I2CBuffer(3);
-        } catch (Exception e) {
-            System.err.println("Failed to initialize read-write buffers");
-            System.exit(1);
-        }
+    private final I2CRegisters registers;
+    private volatile ReadMode readMode = ReadMode.BURST;
+    private volatile boolean saturated;
+    private int atime = ATIME_DEFAULT;
+    private int astep = ASTEP_DEFAULT;
+    private int gain = GAIN_DEFAULT;
+    private volatile boolean autoExposure;
+    /* STATUS2 at the end of the last measurement */
+    private int status2;
+    /* settings the last getPhotonFlux() measured with */
+    private volatile int measuredGain = GAIN_DEFAULT;
+    private volatile int measuredAtime = ATIME_DEFAULT;
+    private volatile int measuredAstep = ASTEP_DEFAULT;
+    private volatile SmuxCompletion smuxCompletion = SmuxCompletion.SMUXEN_BIT;
+    private volatile GpioLine interruptLine;
+    private final CompletionEngine smuxEngine = new CompletionEngine("as7341_smux", 20, 200);
+    private final CompletionEngine measurementEngine = new CompletionEngine("as7341_measurement", 200, 5000);
+    /* bound once, a method reference per wait would allocate */
+    private final CompletionEngine.Condition measurementDone = this::spectralMeasurementReady;
+    private final CompletionEngine.Condition smuxDone = this::smuxReady;
+
+    enum SmuxCompletion {
+        /* poll ENABLE until the chip clears SMUXEN, needs no interrupt setup */
+        SMUXEN_BIT,
+        /* enable SINT_SMUX and poll it in STATUS5 */
+        STATUS5
+    }
+
+    enum ReadMode {
+        /* one 2-byte transaction per ADC channel */
+        PER_CHANNEL,
+        /* all ADC channels of a SMUX pass in one transaction from CH0_DATA_L (0x95) */
+        BURST,
+        /* one transaction from ASTATUS (0x94): reading it latches the channel data
+           and reports analog/digital saturation of the measurement */
+        BURST_WITH_STATUS
     }
 
-    public Spectrometer(I2CBus i2cbus) {
+    public Spectrometer(I2CPort i2cbus) {
         bus = i2cbus;
+        registers = new I2CRegisters(i2cbus, ADAFRUIT_SPECTROMETER);
+        smuxEngine.export("bus", i2cbus.getName());
+        measurementEngine.export("bus", i2cbus.getName());
     }
 
     /* we follow Bäumker, Zimmerman, Woias (2021)
@@ -123,6 +178,7 @@ public class Spectrometer {
                 /* do any other config here first, e.g. SMUX  */
                 setIntegrationTime();
                 setGain();
+                configureInterrupts();
                 register_write_byte(CONFIG_REG, SPM_ENABLE);
             } catch (IOException e) {
                 System.err.println("Could not configure spectrometer");
@@ -138,15 +194,26 @@ public class Spectrometer {
      */
     public boolean setIntegrationTime() {
         try {
-            register_write_byte(ASTEP_LSB_REG, 0x4D);
-            register_write_byte(ASTEP_MSB_REG, 0x02);
-            register_write_byte(ATIME_REG, 0x3C);
+            register_write_byte(ASTEP_LSB_REG, astep & 0xFF);
+            register_write_byte(ASTEP_MSB_REG, astep >> 8);
+            register_write_byte(ATIME_REG, atime);
             return true;
         } catch (IOException e) {
             System.err.println("Could not set integration time for spectrometer");
         }
         return false;
     }
+    /* integration time = (atime + 1) x (astep + 1) x 2.78µs */
+    public boolean setIntegrationTime(int atime, int astep) {
+        if (atime < 0 || atime > 0xFF || astep < 0 || astep > 0xFFFE) {
+            throw new IllegalArgumentException("ATIME 0..255, ASTEP 0..65534");
+        }
+        synchronized (bus) {
+            this.atime = atime;
+            this.astep = astep;
+            return setIntegrationTime();
+        }
+    }
     /*
         Gain (Address 0xAA)
         Gain = 4X for visible channels (F1-F8) := 0x3
@@ -154,13 +221,80 @@ public class Spectrometer {
      */
     public boolean setGain() {
         try {
-            register_write_byte(GAIN_REG, 0x03);
+            register_write_byte(GAIN_REG, gain);
             return true;
         } catch (IOException e) {
             System.err.println("Could not set gain factor for spectrometer");
         }
         return false;
     }
+    /* AGAIN 0 = 0.5x, n = 2^(n-1)x up to 10 = 512x */
+    public boolean setGain(int again) {
+        if (again < 0 || again > GAIN_MAX) {
+            throw new IllegalArgumentException("AGAIN 0..10");
+        }
+        synchronized (bus) {
+            gain = again;
+            return setGain();
+        }
+    }
+
+    public double getGainFactor() {
+        return gainFactor(gain);
+    }
+
+    /* Auto exposure picks gain and integration time per measurement from
+       the previous one: the shortest integration time of AUTO_ATIME that,
+       at the highest gain keeping the peak channel under AUTO_TARGET of
+       full scale, still fills at least AUTO_LOW of it. Settings are kept
+       while the peak stays between AUTO_LOW and AUTO_HIGH. A saturated
+       measurement (ASAT_DIGITAL/ASAT_ANALOG in STATUS2, or a channel at
+       full scale) is taken again at once with less exposure.
+       Counts then depend on the settings, see getExposureScale().
+       Turning it off goes back to the fixed settings above. */
+    public void setAutoExposure(boolean enabled) {
+        synchronized (bus) {
+            autoExposure = enabled;
+            if (!enabled) {
+                applyExposure(GAIN_DEFAULT, ATIME_DEFAULT, ASTEP_DEFAULT);
+            }
+        }
+    }
+
+    public boolean isAutoExposure() {
+        return autoExposure;
+    }
+
+    /* gain factor the last getPhotonFlux() measured with */
+    public double getMeasuredGain() {
+        return gainFactor(measuredGain);
+    }
+
+    /* integration time the last getPhotonFlux() measured with */
+    public long getMeasuredIntegrationTimeUs() {
+        return (long) ((measuredAtime + 1) * (measuredAstep + 1) * ASTEP_US);
+    }
+
+    /* factor that brings counts of the last getPhotonFlux() to the fixed
+       settings (4x, about 100 ms), 1 unless auto exposure changed them */
+    public double getExposureScale() {
+        return sensitivity(GAIN_DEFAULT, ATIME_DEFAULT, ASTEP_DEFAULT)
+                / sensitivity(measuredGain, measuredAtime, measuredAstep);
+    }
+
+    private static double gainFactor(int again) {
+        return again == 0 ? 0.5 : 1 << (again - 1);
+    }
+
+    /* counts per unit of light */
+    private static double sensitivity(int again, int atime, int astep) {
+        return gainFactor(again) * (atime + 1) * (astep + 1);
+    }
+
+    private static long fullScale(int atime, int astep) {
+        return Math.min(65535, (long) (atime + 1) * (astep + 1));
+    }
+
     public void disable() {
         try {
             register_write_byte(ENABLE_REG, POWER_OFF);
@@ -194,6 +328,21 @@ public class Spectrometer {
 	}
         return result;
     }
+    /* same sums as the map version, over the channel order of getPhotonFlux().
+       Like the "red" key filter there, red includes the NIR channel. */
+    public void getRLQI(int[] channels, int[] out) {
+        int blue = channels[0] + channels[1] + channels[2];
+        int green = channels[3] + channels[4] + channels[5];
+        int red = channels[6] + channels[7] + channels[8];
+        int total = blue + green + red;
+        if (total == 0) {
+            out[0] = out[1] = out[2] = 0;
+            return;
+        }
+        out[0] = blue * 100 / total;
+        out[1] = green * 100 / total;
+        out[2] = red * 100 / total;
+    }
     public LinkedHashMap<String, Integer> spectralData() {
         int[] channelValues = getPhotonFlux();
         LinkedHashMap<String, Integer> values = new LinkedHashMap<>();
@@ -217,49 +366,256 @@ set to “1”.
 */
     public int[] getPhotonFlux() {
         int[] ret = new int[10];
-        int[] mem_chan = { 0x95 , 0x97 , 0x99, 0x9B, 0x9D, 0x9F};
-        setF1F6SMUX();
+        getPhotonFlux(ret);
+        return ret;
+    }
+
+    /* allocation free variant, fills out[0..9] in spectralData() order.
+       Returns false (and zeroes out) if the chip did not finish a
+       measurement in time; it is then power cycled and reconfigured. */
+    public boolean getPhotonFlux(int[] out) {
+        for (int retake = 0; ; retake++) {
+            if (!measure(out)) {
+                return false;
+            }
+            if (!autoExposure || !adjustExposure(out) || retake == AUTO_RETAKES) {
+                return true;
+            }
+            logger.debug("Spectral measurement saturated, measuring again at {}x and {} µs",
+                    gainFactor(gain), getIntegrationTimeUs());
+        }
+    }
+
+    private boolean measure(int[] out) {
+        measuredGain = gain;
+        measuredAtime = atime;
+        measuredAstep = astep;
+        writeSmux(F1F6_SMUX);
         enableMeasurement();
-        while(!spectralMeasurementReady()) {
-            Utils.suspend(400);
+        if (!awaitMeasurement()) {
+            return fail(out);
         }
         logger.trace("F1F6");
-        for(int i=0; i<mem_chan.length; i++) {
-            twoBuf.clear();
-            var currentAddress = mem_chan[i];
-            var bytes = register_read_bytes(currentAddress, twoBuf);
-             ret[i]  = getUnsignedIntFromLittleEndianByte2(bytes);
-            logger.trace("Read A: 0x" + Integer.toHexString(currentAddress).toUpperCase()
-                                    + "->[" + Utils.byteString(bytes) +"] = " + ret[i]);
-        }
+        boolean sat = readChannels(out, 0, ADC_DATA_REG.length);
+        sat |= (status2 & (ASAT_DIGITAL | ASAT_ANALOG)) != 0;
         logger.trace("-------------");
-        setF7F8NIRCLEARSMUX();
+        writeSmux(F7F8NIRCLEAR_SMUX);
         enableMeasurement();
-        while(!spectralMeasurementReady()) {
-            Utils.suspend(400);
+        if (!awaitMeasurement()) {
+            return fail(out);
         }
         logger.trace("F7F8NIRCLEAR");
-        for(int i=0; i< mem_chan.length-2; i++) {
-            twoBuf.clear();
-            var currentAddress = mem_chan[i];
-            var bytes = register_read_bytes(currentAddress, twoBuf);
-            ret[6+i]  = getUnsignedIntFromLittleEndianByte2(bytes);
-            logger.trace("Read A: 0x" + Integer.toHexString(currentAddress).toUpperCase()
-                    + "->[" + Utils.byteString(bytes) +"] = " + ret[6+i]);
-        }
+        sat |= readChannels(out, 6, ADC_DATA_REG.length-2);
+        sat |= (status2 & (ASAT_DIGITAL | ASAT_ANALOG)) != 0;
+        saturated = sat;
         logger.trace("-------------");
-        return ret;
+        return true;
+    }
+
+    /* sets up the next measurement from this one, see setAutoExposure().
+       Returns true if this one saturated and the settings changed. */
+    private boolean adjustExposure(int[] out) {
+        long fullScale = fullScale(atime, astep);
+        int peak = 0;
+        for (int v : out) {
+            peak = Math.max(peak, v);
+        }
+        boolean sat = saturated || peak >= fullScale;
+        if (!sat && peak >= AUTO_LOW * fullScale && peak <= AUTO_HIGH * fullScale) {
+            return false;
+        }
+        /* light in counts per unit of sensitivity; a saturated reading
+           only bounds it from below, so assume four times full scale */
+        double light = (sat ? 4.0 * Math.max(peak, fullScale) : Math.max(peak, 1))
+                / sensitivity(gain, atime, astep);
+        int nextGain = 0;
+        int nextAtime = AUTO_ATIME[0];
+        for (int a : AUTO_ATIME) {
+            double target = AUTO_TARGET * fullScale(a, ASTEP_DEFAULT);
+            int g = GAIN_MAX;
+            while (g > 0 && light * sensitivity(g, a, ASTEP_DEFAULT) > target) {
+                g--;
+            }
+            nextGain = g;
+            nextAtime = a;
+            if (light * sensitivity(g, a, ASTEP_DEFAULT) >= AUTO_LOW * fullScale(a, ASTEP_DEFAULT)) {
+                break;
+            }
+        }
+        if (nextGain == gain && nextAtime == atime && astep == ASTEP_DEFAULT) {
+            return false;
+        }
+        applyExposure(nextGain, nextAtime, ASTEP_DEFAULT);
+        return sat;
+    }
+
+    /* configuration must not change while SP_EN is set */
+    private void applyExposure(int again, int atime, int astep) {
+        try {
+            register_write_byte(ENABLE_REG, POWER_ON);
+        } catch (IOException e) {
+            System.err.println("Could not stop spectral measurement");
+        }
+        this.atime = atime;
+        this.astep = astep;
+        this.gain = again;
+        setIntegrationTime();
+        setGain();
     }
 
+    /* nominal integration time, (ATIME + 1) x (ASTEP + 1) x 2.78µs */
+    public long getIntegrationTimeUs() {
+        return (long) ((atime + 1) * (astep + 1) * ASTEP_US);
+    }
 
+    public void setSmuxCompletion(SmuxCompletion mode) {
+        smuxCompletion = mode;
+        synchronized (bus) {
+            configureInterrupts();
+        }
+    }
 
-    private boolean spectralMeasurementReady() {
-        oneBuf.clear();
-        var avalid = (register_read_bytes(STATUS2_REG, oneBuf))[0];
-        return (avalid == VALID_SPECTRAL);
+    /* watch the INT pin instead of polling STATUS2, null to go back to polling */
+    public void setInterruptLine(GpioLine line) {
+        interruptLine = line;
+        synchronized (bus) {
+            configureInterrupts();
+        }
     }
-    private static int getUnsignedIntFromLittleEndianByte2(byte[] arr) {
-            return (0xFF & arr[1]) <<8 | (0xFF & arr[0]);
+
+    public CompletionEngine.Stats smuxStats() {
+        return smuxEngine.stats();
+    }
+
+    public CompletionEngine.Stats measurementStats() {
+        return measurementEngine.stats();
+    }
+
+    private void configureInterrupts() {
+        int cfg9 = smuxCompletion == SmuxCompletion.STATUS5 ? SINT_SMUX_ENABLE : 0;
+        int intenab = (smuxCompletion == SmuxCompletion.STATUS5 ? SIEN_ENABLE : 0)
+                | (interruptLine != null ? SP_IEN : 0);
+        try {
+            register_write_byte(CFG9_REG, cfg9);
+            register_write_byte(INTENAB_REG, intenab);
+            register_write_byte(STATUS_REG, CLEAR_STATUS);
+        } catch (IOException e) {
+            System.err.println("Could not configure spectrometer interrupts");
+        }
+    }
+
+    private boolean awaitMeasurement() {
+        long expected = getIntegrationTimeUs();
+        /* allow twice the integration time before declaring the chip stuck */
+        status2 = 0;
+        boolean done = measurementEngine.await(measurementDone, expected, 2 * expected + 50_000);
+        if (done && interruptLine != null) {
+            try {
+                /* polling reads STATUS2 anyway, here it is only read for the saturation bits */
+                status2 = registers.readByte(STATUS2_REG);
+                /* release the INT line for the next measurement */
+                register_write_byte(STATUS_REG, CLEAR_STATUS);
+            } catch (IOException e) {
+                System.err.println("Could not clear spectrometer interrupt status");
+            }
+        }
+        return done;
+    }
+
+    private boolean fail(int[] out) {
+        for (int i = 0; i < out.length; i++) {
+            out[i] = 0;
+        }
+        logger.warn("Spectral measurement timed out, power cycling spectrometer");
+        try {
+            register_write_byte(ENABLE_REG, POWER_OFF);
+        } catch (IOException e) {
+            System.err.println("Spectrometer power off failed");
+        }
+        configure();
+        return false;
+    }
+
+    public void setReadMode(ReadMode mode) {
+        readMode = mode;
+    }
+
+    public ReadMode getReadMode() {
+        return readMode;
+    }
+
+    /* ASAT_DIGITAL/ASAT_ANALOG of the last getPhotonFlux(), from STATUS2
+       (and ASTATUS in BURST_WITH_STATUS mode) */
+    public boolean isSaturated() {
+        return saturated;
+    }
+
+    /* read ADC0..ADC(count-1) into out[offset..], returns ASAT if known.
+       The register pointer auto-increments, so a burst read from the first
+       data register returns the low/high byte pairs of all channels. */
+    private boolean readChannels(int[] out, int offset, int count) {
+        var mode = readMode;
+        if (mode == ReadMode.PER_CHANNEL) {
+            for (int i = 0; i < count; i++) {
+                out[offset + i] = readChannel(ADC_DATA_REG[i]);
+            }
+            return false;
+        }
+        boolean sat = false;
+        try {
+            if (mode == ReadMode.BURST_WITH_STATUS) {
+                var buf = registers.read(ASTATUS_REG, 1 + 2 * count);
+                sat = (buf.get(0) & ASAT_STATUS) != 0;
+                I2CRegisters.decodeWords(buf, 1, count, out, offset);
+            } else {
+                registers.readWords(ADC_DATA_REG[0], count, out, offset);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to execute burst read transaction on spectrometer");
+            for (int i = 0; i < count; i++) {
+                out[offset + i] = 0;
+            }
+        }
+        if (logger.isTraceEnabled()) {
+            for (int i = 0; i < count; i++) {
+                logger.trace("Read A: 0x{} = {}", Integer.toHexString(ADC_DATA_REG[i]).toUpperCase(), out[offset + i]);
+            }
+        }
+        return sat;
+    }
+
+    private int readChannel(int address) {
+        int value = 0;
+        try {
+            value = registers.readWord(address);
+        } catch (IOException e) {
+            System.err.println("Failed to execute register read transaction on spectrometer");
+        }
+        if (logger.isTraceEnabled()) {
+            logger.trace("Read A: 0x{} = {}", Integer.toHexString(address).toUpperCase(), value);
+        }
+        return value;
+    }
+
+    /* AVALID is masked out, STATUS2 also carries the saturation bits */
+    private boolean spectralMeasurementReady() throws IOException {
+        var line = interruptLine;
+        if (line != null) {
+            return line.isAsserted();
+        }
+        int s = registers.readByte(STATUS2_REG);
+        if ((s & VALID_SPECTRAL) == 0) {
+            return false;
+        }
+        status2 = s;
+        return true;
+    }
+
+    private boolean smuxReady() throws IOException {
+        if (smuxCompletion == SmuxCompletion.STATUS5) {
+            return (registers.readByte(STATUS5_REG) & SINT_SMUX_STATUS) != 0;
+        }
+        return (registers.readByte(ENABLE_REG) & SMUXEN) == 0;
     }
     public void enableMeasurement() {
         try {
@@ -273,17 +629,18 @@ set to “1”.
     public boolean advancedStatus() {
         var ret = false;
         synchronized (bus) {
-            var response = register_read_bytes(STATUS_READY_REG, oneBuf);
-            var s = Byte.toUnsignedInt(response[0]);
-            var r2 = BitSet.valueOf(response);
-            r2.and(BitSet.valueOf(new byte[]{0x01}));
-            var ready1 = r2.get(0);
-            System.out.println("Measurement register is " + ready1);
-            System.out.println("r2 is " + s);
-            var avalid = register_read_bytes(STATUS2_REG, oneBuf);
-            System.out.println("Avalid is " + avalid[0]);
-            if(Byte.toUnsignedInt(avalid[0]) == VALID_SPECTRAL)
-                return true;
+            try {
+                var s = registers.readByte(STATUS_READY_REG);
+                var ready1 = (s & 0x01) != 0;
+                System.out.println("Measurement register is " + ready1);
+                System.out.println("r2 is " + s);
+                var avalid = registers.readByte(STATUS2_REG);
+                System.out.println("Avalid is " + avalid);
+                if(avalid == VALID_SPECTRAL)
+                    return true;
+            } catch (IOException e) {
+                System.err.println("Failed to execute register read transaction on spectrometer");
+            }
         }
         /* bit 0 READY of register 0x71 either 1,0 for spectral measurement status
            when bit 0 is true, we can check the STATUS register 0x93 for events to handle.
@@ -308,9 +665,12 @@ set to “1”.
          *  bit 1 SAI_ACTIVE device asleep after interrupt, set bit to 0 to exit sleep
          *  bit 0 INT_BUSY device is initializing, while 1 do NOT further interact with device (!!)
          * */
-        var chipError = register_read_bytes(0xA7, oneBuf);
-        var set = BitSet.valueOf(chipError);
-        ret = set.toString();
+        try {
+            var set = BitSet.valueOf(new byte[]{(byte) registers.readByte(0xA7)});
+            ret = set.toString();
+        } catch (IOException e) {
+            System.err.println("Failed to execute register read transaction on spectrometer");
+        }
         return ret;
     }
     /* channels
@@ -355,79 +715,67 @@ set to “1”.
         0x13, SMUX_NOP
      */
 
-    private void setF1F6SMUX() {
-        int[] smuxConfig = new int[20];
-        smuxConfig[0] = (ADC_2<<4);                 // F3
-        smuxConfig[1] = ADC_0;                      // F1
-        smuxConfig[2] = SMUX_NONE;
-        smuxConfig[3] = SMUX_NONE;
-        smuxConfig[4] = ADC_5;                      // F6
-        smuxConfig[5] = ( ADC_3<<4 | ADC_1 );       // F4 F2
-        smuxConfig[6] = ( ADC_4<<4 );               // F5
-        smuxConfig[7] = SMUX_NONE;
-        smuxConfig[8] = SMUX_NONE;
-        smuxConfig[9] = ( ADC_4<<4 );               // F5
-        smuxConfig[10] = SMUX_NONE;
-        smuxConfig[11] = SMUX_NONE;
-        smuxConfig[12] = ( ADC_1<<4 );              // F2
-        smuxConfig[13] = ADC_3;                     // F4
-        smuxConfig[14] = ( ADC_5<<4 );              // F6
-        smuxConfig[15] = ( ADC_2<<4 );              // F3
-        smuxConfig[16] = ADC_0;                     // F1
-        smuxConfig[17] = SMUX_NONE;
-        smuxConfig[18] = SMUX_NONE;
-        smuxConfig[19] = SMUX_NONE;
-        I2CBuffer smuxRAM = new I2CBuffer(20);
-        for(int i=0; i<smuxConfig.length; i++) {
-            smuxRAM.set(i, smuxConfig[i]);
-        }
-        writeSmux(smuxRAM);
-    }
+    private static final int[] F1F6_SMUX = {
+        (ADC_2<<4),                 // F3
+        ADC_0,                      // F1
+        SMUX_NONE,
+        SMUX_NONE,
+        ADC_5,                      // F6
+        ( ADC_3<<4 | ADC_1 ),       // F4 F2
+        ( ADC_4<<4 ),               // F5
+        SMUX_NONE,
+        SMUX_NONE,
+        ( ADC_4<<4 ),               // F5
+        SMUX_NONE,
+        SMUX_NONE,
+        ( ADC_1<<4 ),               // F2
+        ADC_3,                      // F4
+        ( ADC_5<<4 ),               // F6
+        ( ADC_2<<4 ),               // F3
+        ADC_0,                      // F1
+        SMUX_NONE,
+        SMUX_NONE,
+        SMUX_NONE
+    };
     /*
      * F7 630 nm   50 nm   14,20            0x07 [2:0], 0x0A [2:0]  LOW,  LOW
      * F8 680 nm   52 nm   7,28             0x03 [6:4], 0x0E [2:0]  HIGH, LOW
      * NIR 910 nm   n/a    38               0x13 [2:0]              LOW
      * Clear non-filtered  17,35            0x08 [6:4], 0x11 [6:4]  HIGH, HIGH
      */
-    private void setF7F8NIRCLEARSMUX() {
-        int[] smuxConfig = new int[20];
-        smuxConfig[0] = SMUX_NONE;
-        smuxConfig[1] = SMUX_NONE;
-        smuxConfig[2] = SMUX_NONE;
-        smuxConfig[3] = (ADC_1<<4);     // F8 to ADC1
-        smuxConfig[4] = SMUX_NONE;
-        smuxConfig[5] = SMUX_NONE;
-        smuxConfig[6] = SMUX_NONE;
-        smuxConfig[7] = ADC_0;          // F7 to ADC0
-        smuxConfig[8] = (ADC_3<<4);     // Clear to ADC3
-        smuxConfig[9] = SMUX_NONE;
-        smuxConfig[10] = ADC_0;         // F7 to ADC0
-        smuxConfig[11] = SMUX_NONE;
-        smuxConfig[12] = SMUX_NONE;
-        smuxConfig[13] = SMUX_NONE;
-        smuxConfig[14] = ADC_1;         // F8 to ADC1
-        smuxConfig[15] = SMUX_NONE;
-        smuxConfig[16] = SMUX_NONE;
-        smuxConfig[17] = (ADC_3<<4);    // Clear to ADC3
-        smuxConfig[18] = SMUX_NONE;
-        smuxConfig[19] = ADC_2;         // NIR to ADC2
-        I2CBuffer smuxRAM = new I2CBuffer(20);
-        for(int i=0; i<smuxConfig.length; i++) {
-            smuxRAM.set(i, smuxConfig[i]);
-        }
-        writeSmux(smuxRAM);
-    }
+    private static final int[] F7F8NIRCLEAR_SMUX = {
+        SMUX_NONE,
+        SMUX_NONE,
+        SMUX_NONE,
+        (ADC_1<<4),     // F8 to ADC1
+        SMUX_NONE,
+        SMUX_NONE,
+        SMUX_NONE,
+        ADC_0,          // F7 to ADC0
+        (ADC_3<<4),     // Clear to ADC3
+        SMUX_NONE,
+        ADC_0,          // F7 to ADC0
+        SMUX_NONE,
+        SMUX_NONE,
+        SMUX_NONE,
+        ADC_1,          // F8 to ADC1
+        SMUX_NONE,
+        SMUX_NONE,
+        (ADC_3<<4),     // Clear to ADC3
+        SMUX_NONE,
+        ADC_2           // NIR to ADC2
+    };
     private boolean setSmuxHighBank() {
         return false;
     }
 
     /* write 20 bytes to SMUX
-    * TODO: figure out why setting interrupts isn't working
+    * completion is polled through SMUXEN by default, the SINT_SMUX
+    * interrupt is opt-in (see SmuxCompletion) as it was unreliable
     * */
-    private void writeSmux(I2CBuffer memoryBytes) {
+    private void writeSmux(int[] memoryBytes) {
         /* power on b0 1 in ENABLE_REG
-         *  enable SINT_SMUX in CFG9 ; nope! apparently something breaks
-         *  enable SIEN in INTENAB   ; nope! apparently something breaks
+         *  SINT_SMUX in CFG9 and SIEN in INTENAB are set up once in configureInterrupts()
          *  write SMUX CFG cmd in CFG6
          *  0x00,0x01,0x02,0x03,0x04
          *  0x04,0x05,0x06,0x07...*/
@@ -436,18 +784,19 @@ set to “1”.
         if (memoryBytes.length != 20)
             return;
         try {
-            bus.selectSlave(ADAFRUIT_SPECTROMETER);
             register_write_byte(ENABLE_REG, POWER_ON);
-        //    register_write_byte(CFG9_REG, SINT_SMUX_ENABLE);
-        //    register_write_byte(INTENAB_REG, SIEN_ENABLE);
             register_write_byte(CFG6_REG, WRITE_SMUX_CONF);
             for (int i = 0; i < memoryBytes.length; i++) {
-                var b = memoryBytes.get(i);
-                register_write_byte(i, b);
+                register_write_byte(i, memoryBytes[i]);
             }
             register_write_byte(CFG0_REG, BLANK_CFG0_SET);
             register_write_byte(ENABLE_REG, START_SMUXEN_PON);
-            Utils.suspend(500); /* TODO: should poll for interrupt flag */
+            if (!smuxEngine.await(smuxDone, SMUX_EXPECTED_US, SMUX_TIMEOUT_US)) {
+                logger.warn("SMUX command did not complete within {} µs", SMUX_TIMEOUT_US);
+            }
+            if (smuxCompletion == SmuxCompletion.STATUS5) {
+                register_write_byte(STATUS_REG, CLEAR_STATUS);
+            }
             register_write_byte(ENABLE_REG, POWER_ON);
         } catch (IOException e) {
             System.err.println("Failed to write SMUX configuration to spectrometer.");
@@ -455,38 +804,6 @@ set to “1”.
     }
 
     private void register_write_byte(int reg_addr, int reg_byte) throws IOException {
-        synchronized (bus) {
-            twoBuf.clear();
-            twoBuf.set(0, reg_addr);
-            twoBuf.set(1, reg_byte);
-            bus.selectSlave(ADAFRUIT_SPECTROMETER);
-            bus.write(twoBuf);
-            twoBuf.clear();
-        }
-    }
-
-    private byte[] register_read_bytes(int reg_addr, I2CBuffer buf) {
-        I2CTransaction transaction = new I2CTransaction(2);
-        oneBuf.set(0, reg_addr);
-        transaction.getMessage(0)
-                .setAddress(ADAFRUIT_SPECTROMETER)
-                .setBuffer(oneBuf);
-        transaction.getMessage(1)
-                .setAddress(ADAFRUIT_SPECTROMETER)
-                .setFlags(new I2CFlags().set(I2CFlag.READ))
-                .setBuffer(buf);
-        synchronized (bus) {
-            try {
-                bus.doTransaction(transaction);
-            } catch (IOException e) {
-                System.err.println("Failed to execute register read transaction on spectrometer");
-            }
-        }
-        byte[] b = new byte[buf.length];
-        for (int i = 0; i < buf.length; i++) {
-            b[i] = (byte) buf.get(i);
-
-        }
-        return b;
+        registers.writeByte(reg_addr, reg_byte);
     }
 }
@@ -0,0 +1,133 @@
+package hegemone.sensors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/* hybrid park/spin timing
+ *
+ * Long waits park the calling thread and hand the core back to the
+ * scheduler (and to the GC threads); only the last spinThreshold
+ * microseconds before the deadline are spun on System.nanoTime().
+ * parkNanos() routinely oversleeps by the kernel timer slack (~50 µs,
+ * worse on a loaded Pi Zero 2), so the threshold should stay above that
+ * if I2C settle delays are to keep microsecond precision.
+ */
+class Timing {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.timing");
+    /* default spin window, override with -Dhegemone.timing.spin=<µs> */
+    public static final long DEFAULT_SPIN_THRESHOLD_US = 100L;
+    private static volatile long spinThresholdNs =
+            Long.getLong("hegemone.timing.spin", DEFAULT_SPIN_THRESHOLD_US) * 1000;
+
+    /* accuracy statistics */
+    private static final LongAdder waits = new LongAdder();
+    private static final LongAdder parks = new LongAdder();
+    private static final LongAdder parkedNs = new LongAdder();
+    private static final LongAdder spunNs = new LongAdder();
+    private static final LongAdder overshootNs = new LongAdder();
+    private static final AtomicLong maxOvershootNs = new AtomicLong();
+    private static final AtomicLong maxParkOvershootNs = new AtomicLong();
+
+    private Timing() {
+    }
+
+    public static void setSpinThreshold(long us) {
+        if (us < 0) {
+            throw new IllegalArgumentException("spin threshold must not be negative");
+        }
+        spinThresholdNs = us * 1000;
+        logger.debug("spin threshold set to {} µs", us);
+    }
+
+    public static long getSpinThreshold() {
+        return spinThresholdNs / 1000;
+    }
+
+    /* suspend x microseconds */
+    public static void suspend(long us) {
+        sleepUntil(System.nanoTime() + us * 1000);
+    }
+
+    /* suspend until System.nanoTime() reaches deadline,
+       returns the overshoot in nanoseconds. An interrupt ends the wait
+       early, with the flag left set and a negative return value */
+    public static long sleepUntil(long deadline) {
+        final long spin = spinThresholdNs;
+        long now = System.nanoTime();
+        long remaining = deadline - now;
+        /* park for everything but the spin window */
+        while (remaining > spin) {
+            long request = remaining - spin;
+            LockSupport.parkNanos(request);
+            long after = System.nanoTime();
+            if (Thread.interrupted()) {
+                /* parkNanos would return at once from now on, spinning until the deadline */
+                Thread.currentThread().interrupt();
+                return after - deadline;
+            }
+            parks.increment();
+            parkedNs.add(after - now);
+            updateMax(maxParkOvershootNs, (after - now) - request);
+            now = after;
+            remaining = deadline - now;
+        }
+        /* spin the rest */
+        long spinStart = now;
+        while (remaining > 0) {
+            Thread.onSpinWait();
+            now = System.nanoTime();
+            remaining = deadline - now;
+        }
+        spunNs.add(now - spinStart);
+        long overshoot = -remaining;
+        waits.increment();
+        overshootNs.add(overshoot);
+        updateMax(maxOvershootNs, overshoot);
+        return overshoot;
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) {
+            m = max.get();
+        }
+    }
+
+    public static Stats stats() {
+        long n = waits.sum();
+        long over = overshootNs.sum();
+        return new Stats(n, parks.sum(), parkedNs.sum(), spunNs.sum(),
+                n == 0 ? 0 : over / n, maxOvershootNs.get(), maxParkOvershootNs.get());
+    }
+
+    public static void resetStats() {
+        waits.reset();
+        parks.reset();
+        parkedNs.reset();
+        spunNs.reset();
+        overshootNs.reset();
+        maxOvershootNs.set(0);
+        maxParkOvershootNs.set(0);
+    }
+
+    /* snapshot of the timing accuracy, all times in nanoseconds.
+       maxParkOvershoot larger than the spin threshold means the
+       threshold is too small for this machine. */
+    public record Stats(long waits, long parks, long parkedNs, long spunNs,
+                        long meanOvershootNs, long maxOvershootNs, long maxParkOvershootNs) {
+        public double spinRatio() {
+            long total = parkedNs + spunNs;
+            return total == 0 ? 0 : (double) spunNs / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("waits=%d parks=%d spin=%.2f%% overshoot(mean=%d ns, max=%d ns) park overshoot(max=%d ns)",
+                    waits, parks, spinRatio() * 100, meanOvershootNs, maxOvershootNs, maxParkOvershootNs);
+        }
+    }
+}
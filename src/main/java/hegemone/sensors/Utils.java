@@ -1,17 +1,10 @@
 package hegemone.sensors;
 
-import io.helins.linux.i2c.*;
-
-import java.io.IOException;
-
 class Utils {
-	/* suspend x microseconds */
+	/* suspend x microseconds, parks for long waits and
+	   only spins the tail end, see Timing */
 	public static void suspend(long us) {
-		long t = System.nanoTime() + (us * 1000);
-		/* spin cpu */
-		while (t > System.nanoTime()){
-			;
-		}
+		Timing.suspend(us);
 	}
 
 	public static String byteString(byte[] bytes) {
@@ -23,29 +16,4 @@ class Utils {
 		sb.append("]");
 		return sb.toString();
 	}
-
-	public static byte[] read_register(I2CBus bus, int device, int register, int len) throws IOException {
-		var tx = new I2CTransaction(2);
-		/* we have to wrap the reads in a two-step
-		   NO_START transaction using this API
-		   or we get nothing back from the device
-		*/
-		var readout = new I2CBuffer(len);
-		tx.getMessage(0).setAddress(device)
-				.setFlags(new I2CFlags().set(I2CFlag.NO_START))
-				.setBuffer(new I2CBuffer(1).set(0,register));
-		tx.getMessage(1).setAddress(device)
-				.setFlags(new I2CFlags().set(I2CFlag.READ))
-				.setBuffer(readout);
-		synchronized(bus) {
-			bus.doTransaction(tx);
-		}
-		byte[] b = new byte[len];
-		for (int i=0;i<len;i++) {
-			b[i] = (byte) readout.get(i);
-
-		}
-		return b;
-	}
 }
-
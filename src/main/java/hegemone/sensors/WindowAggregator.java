@@ -0,0 +1,285 @@
+package hegemone.sensors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/* rolling window statistics in place of raw samples
+ *
+ * Samples of the aggregated schemas are buffered per device in a primitive
+ * ring (a timestamp column plus one column per channel) and replaced by
+ * summaries: whenever a window closes, one sample with the count, min,
+ * max, mean, standard deviation and quantiles of every channel. Samples
+ * of other schemas pass through untouched.
+ *
+ * A window has a length and a hop, both aligned to the epoch; tumbling
+ * windows hop by their length, sliding ones by less. A summary covers
+ * (end - length, end] and is stamped with the window end. Windows close
+ * on the first sample past their end (event time), so the last summary of
+ * a sensor that stops reporting waits for its next reading; windows
+ * without samples are not reported at all.
+ *
+ * The ring holds at most capacity samples per device. A window that
+ * receives more than that only summarizes the newest capacity samples
+ * (counted in getOverflowed()); quantiles are the nearest rank over what
+ * the ring holds. NaN readings are left out, so a channel that could not
+ * be read in a window reports a count of 0 and NaN for the rest.
+ */
+public class WindowAggregator implements SampleStage {
+    public static final int DEFAULT_CAPACITY = 8192;
+    public static final double[] DEFAULT_QUANTILES = {0.5, 0.9, 0.99};
+    /* count, min, max, mean, stddev, then the quantiles */
+    private static final int FIXED_STATS = 5;
+
+    public record Window(String name, long lengthMs, long hopMs) {
+        public Window {
+            if (lengthMs <= 0 || hopMs <= 0 || hopMs > lengthMs) {
+                throw new IllegalArgumentException("invalid window " + name + ": " + lengthMs + "/" + hopMs + " ms");
+            }
+        }
+
+        public static Window tumbling(long lengthMs) {
+            return new Window(label(lengthMs), lengthMs, lengthMs);
+        }
+
+        public static Window sliding(long lengthMs, long hopMs) {
+            return new Window(label(lengthMs) + "_by_" + label(hopMs), lengthMs, hopMs);
+        }
+
+        private static String label(long ms) {
+            if (ms % 3_600_000 == 0) {
+                return ms / 3_600_000 + "h";
+            }
+            if (ms % 60_000 == 0) {
+                return ms / 60_000 + "m";
+            }
+            if (ms % 1_000 == 0) {
+                return ms / 1_000 + "s";
+            }
+            return ms + "ms";
+        }
+    }
+
+    private record Key(String device, SampleSchema schema) {
+    }
+
+    private final Set<SampleSchema> schemas;
+    private final List<Window> windows;
+    private final int capacity;
+    private final double[] quantiles;
+    /* summary schemas per input schema, one per window */
+    private final Map<SampleSchema, SampleSchema[]> summaries = new HashMap<>();
+    private final Map<Key, Ring> rings = new HashMap<>();
+    private final double[] scratch;
+    private long emitted;
+    private long late;
+    private long overflowed;
+
+    public WindowAggregator(List<Window> windows, SampleSchema... schemas) {
+        this(windows, DEFAULT_CAPACITY, DEFAULT_QUANTILES, schemas);
+    }
+
+    public WindowAggregator(List<Window> windows, int capacity, double[] quantiles, SampleSchema... schemas) {
+        if (windows.isEmpty() || capacity < 1) {
+            throw new IllegalArgumentException("need at least one window and a positive capacity");
+        }
+        for (double q : quantiles) {
+            if (!(q > 0 && q <= 1)) {
+                throw new IllegalArgumentException("quantile out of (0, 1]: " + q);
+            }
+        }
+        this.windows = List.copyOf(windows);
+        this.capacity = capacity;
+        this.quantiles = quantiles.clone();
+        this.schemas = Set.of(schemas);
+        this.scratch = new double[capacity];
+        for (var schema : schemas) {
+            var out = new SampleSchema[this.windows.size()];
+            for (int w = 0; w < out.length; w++) {
+                out[w] = summarySchema(schema, this.windows.get(w));
+            }
+            summaries.put(schema, out);
+        }
+    }
+
+    /* <channel>_<window>_count, _min, _max, _mean, _stddev, _p50, .. */
+    private SampleSchema summarySchema(SampleSchema schema, Window window) {
+        var channels = new ArrayList<String>();
+        for (int c = 0; c < schema.size(); c++) {
+            var prefix = schema.channel(c) + "_" + window.name() + "_";
+            channels.addAll(List.of(prefix + "count", prefix + "min", prefix + "max", prefix + "mean", prefix + "stddev"));
+            for (double q : quantiles) {
+                double pct = q * 100;
+                channels.add(prefix + "p" + (pct == Math.rint(pct)
+                        ? Long.toString((long) pct) : Double.toString(pct).replace('.', '_')));
+            }
+        }
+        return new SampleSchema(schema.getName() + "_" + window.name(), channels.toArray(new String[0]));
+    }
+
+    public SampleSchema getSummarySchema(SampleSchema schema, Window window) {
+        var out = summaries.get(schema);
+        int w = windows.indexOf(window);
+        if (out == null || w < 0) {
+            throw new IllegalArgumentException(schema.getName() + " is not aggregated over " + window);
+        }
+        return out[w];
+    }
+
+    @Override
+    public void process(Sample sample, Consumer<Sample> next) {
+        if (!schemas.contains(sample.getSchema())) {
+            next.accept(sample);
+            return;
+        }
+        synchronized (this) {
+            var ring = rings.computeIfAbsent(new Key(sample.getDevice(), sample.getSchema()), Ring::new);
+            ring.add(sample, next);
+        }
+    }
+
+    /* summaries handed on */
+    public synchronized long getEmitted() {
+        return emitted;
+    }
+
+    /* samples older than the newest one of their device, dropped */
+    public synchronized long getLate() {
+        return late;
+    }
+
+    /* samples pushed out of a full ring before their windows closed */
+    public synchronized long getOverflowed() {
+        return overflowed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("aggregating %s over %s: emitted=%d late=%d overflowed=%d",
+                schemas, windows, emitted, late, overflowed);
+    }
+
+    private final class Ring {
+        private final String device;
+        private final SampleSchema[] out;
+        private final long[] timestamps = new long[capacity];
+        /* [channel][slot] */
+        private final double[][] values;
+        private int head;
+        private int size;
+        /* end of the open window per Window, µs since the epoch, 0 before the first sample */
+        private final long[] ends = new long[windows.size()];
+        private long newest = Long.MIN_VALUE;
+
+        Ring(Key key) {
+            device = key.device();
+            out = summaries.get(key.schema());
+            values = new double[key.schema().size()][capacity];
+        }
+
+        void add(Sample sample, Consumer<Sample> next) {
+            long t = sample.getTimestamp();
+            if (t < newest) {
+                late++;
+                return;
+            }
+            long keepAfter = Long.MAX_VALUE;
+            for (int w = 0; w < ends.length; w++) {
+                long length = windows.get(w).lengthMs() * 1000;
+                long hop = windows.get(w).hopMs() * 1000;
+                if (ends[w] == 0) {
+                    ends[w] = alignUp(t, hop);
+                }
+                while (t > ends[w]) {
+                    summarize(w, ends[w] - length, ends[w], next);
+                    ends[w] += hop;
+                    if (newest <= ends[w] - length) {
+                        /* nothing buffered reaches into the next window, skip the gap */
+                        ends[w] = alignUp(t, hop);
+                    }
+                }
+                keepAfter = Math.min(keepAfter, ends[w] - length);
+            }
+            /* drop what no open window covers any more */
+            while (size > 0 && timestamps[head] <= keepAfter) {
+                head = (head + 1) % capacity;
+                size--;
+            }
+            if (size == capacity) {
+                overflowed++;
+                head = (head + 1) % capacity;
+                size--;
+            }
+            int slot = (head + size) % capacity;
+            timestamps[slot] = t;
+            for (int c = 0; c < values.length; c++) {
+                values[c][slot] = sample.value(c);
+            }
+            size++;
+            newest = t;
+        }
+
+        /* one summary of the buffered samples in (from, to] */
+        private void summarize(int w, long from, long to, Consumer<Sample> next) {
+            int first = 0;
+            while (first < size && timestamps[(head + first) % capacity] <= from) {
+                first++;
+            }
+            int last = first;
+            while (last < size && timestamps[(head + last) % capacity] <= to) {
+                last++;
+            }
+            if (first == last) {
+                return;
+            }
+            int stride = FIXED_STATS + quantiles.length;
+            var result = new double[values.length * stride];
+            for (int c = 0; c < values.length; c++) {
+                var column = values[c];
+                int n = 0;
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                double mean = 0;
+                double m2 = 0;
+                for (int i = first; i < last; i++) {
+                    double v = column[(head + i) % capacity];
+                    if (Double.isNaN(v)) {
+                        continue;
+                    }
+                    scratch[n++] = v;
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                    /* Welford, stable for long windows of similar values */
+                    double delta = v - mean;
+                    mean += delta / n;
+                    m2 += delta * (v - mean);
+                }
+                int base = c * stride;
+                result[base] = n;
+                if (n == 0) {
+                    Arrays.fill(result, base + 1, base + stride, Double.NaN);
+                    continue;
+                }
+                result[base + 1] = min;
+                result[base + 2] = max;
+                result[base + 3] = mean;
+                result[base + 4] = Math.sqrt(m2 / n);
+                Arrays.sort(scratch, 0, n);
+                for (int q = 0; q < quantiles.length; q++) {
+                    int rank = (int) Math.ceil(quantiles[q] * n) - 1;
+                    result[base + FIXED_STATS + q] = scratch[Math.max(0, Math.min(n - 1, rank))];
+                }
+            }
+            emitted++;
+            next.accept(new Sample(device, to, out[w], result));
+        }
+    }
+
+    private static long alignUp(long t, long step) {
+        return Math.floorDiv(t + step - 1, step) * step;
+    }
+}
@@ -0,0 +1,144 @@
+package hegemone.sensors;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ChangeFilterTest {
+    private static final SampleSchema SCHEMA = new SampleSchema("test", "a", "b");
+    private static final long SECOND = 1_000_000;
+
+    private static Sample sample(long second, double a) {
+        return new Sample("dev", second * SECOND, SCHEMA, new double[]{a, 0});
+    }
+
+    private static List<Sample> run(ChangeFilter filter, List<Sample> in) {
+        var out = new ArrayList<Sample>();
+        for (var s : in) {
+            filter.process(s, out::add);
+        }
+        return out;
+    }
+
+    private static List<Long> seconds(List<Sample> samples) {
+        var out = new ArrayList<Long>();
+        for (var s : samples) {
+            out.add(s.getTimestamp() / SECOND);
+        }
+        return out;
+    }
+
+    /* 0.5 a second up to second 10, flat after */
+    private static List<Sample> rampThenFlat(int n) {
+        var out = new ArrayList<Sample>();
+        for (int i = 0; i < n; i++) {
+            out.add(sample(i, 0.5 * Math.min(i, 10)));
+        }
+        return out;
+    }
+
+    @Test
+    void deadbandPassesAStep() {
+        var filter = new ChangeFilter(Map.of("a", ChangeFilter.Rule.deadband(0.5, 0)));
+        var in = List.of(sample(0, 20), sample(1, 20.2), sample(2, 20.4), sample(3, 20.6),
+                sample(4, 20.9), sample(5, 25), sample(6, 25));
+        /* against the last passed value, not the last seen one */
+        assertEquals(List.of(0L, 3L, 5L), seconds(run(filter, in)));
+    }
+
+    @Test
+    void relativeDeviationScalesWithTheValue() {
+        var filter = new ChangeFilter(Map.of("a", ChangeFilter.Rule.deadband(0, 0.1)));
+        var in = List.of(sample(0, 100), sample(1, 109), sample(2, 91), sample(3, 111), sample(4, 120));
+        assertEquals(List.of(0L, 3L), seconds(run(filter, in)));
+    }
+
+    @Test
+    void swingingDoorPassesAStepOneSampleLate() {
+        var filter = new ChangeFilter(Map.of("a", ChangeFilter.Rule.swingingDoor(0.5, 0)));
+        var in = List.of(sample(0, 5), sample(1, 5), sample(2, 5), sample(3, 10), sample(4, 10), sample(5, 10));
+        /* the last sample before the step, then the step once the next one shows it is no spike */
+        assertEquals(List.of(0L, 2L, 3L), seconds(run(filter, in)));
+    }
+
+    @Test
+    void slowRampCostsOneSamplePerBend() {
+        var in = rampThenFlat(40);
+        var deadband = new ChangeFilter(Map.of("a", ChangeFilter.Rule.deadband(0.75, 0)));
+        assertEquals(List.of(0L, 2L, 4L, 6L, 8L, 10L), seconds(run(deadband, in)));
+
+        /* a line from the first sample stays within 0.75 of every sample up
+           to second 13, so the bend at 10 costs the one sample at 13 */
+        var door = new ChangeFilter(Map.of("a", ChangeFilter.Rule.swingingDoor(0.75, 0)));
+        assertEquals(List.of(0L, 13L), seconds(run(door, in)));
+    }
+
+    @Test
+    void heldSampleIsReleasedWhenTheDoorCloses() {
+        var filter = new ChangeFilter(Map.of("a", ChangeFilter.Rule.swingingDoor(0.75, 0)));
+        var in = rampThenFlat(15);
+        var out = new ArrayList<Sample>();
+        for (int i = 0; i < 14; i++) {
+            filter.process(in.get(i), out::add);
+        }
+        assertEquals(1, out.size());
+        /* 14 leaves no line through all of them: 13 goes out, 14 is held in turn */
+        filter.process(in.get(14), out::add);
+        assertEquals(2, out.size());
+        assertSame(in.get(13), out.get(1));
+    }
+
+    @Test
+    void heartbeatAfterMaxSilence() {
+        var in = new ArrayList<Sample>();
+        for (int i = 0; i <= 25; i++) {
+            in.add(sample(i, 20));
+        }
+        var deadband = new ChangeFilter(Map.of("a", ChangeFilter.Rule.deadband(1, 0)), 10_000);
+        assertEquals(List.of(0L, 10L, 20L), seconds(run(deadband, in)));
+        var door = new ChangeFilter(Map.of("a", ChangeFilter.Rule.swingingDoor(1, 0)), 10_000);
+        assertEquals(List.of(0L, 10L, 20L), seconds(run(door, in)));
+    }
+
+    @Test
+    void nanTransitionsPass() {
+        var in = List.of(sample(0, 20), sample(1, 20), sample(2, Double.NaN), sample(3, Double.NaN),
+                sample(4, 20), sample(5, 20));
+        var deadband = new ChangeFilter(Map.of("a", ChangeFilter.Rule.deadband(1, 0)));
+        assertEquals(List.of(0L, 2L, 4L), seconds(run(deadband, in)));
+        /* the held sample goes out first, no line reaches a NaN: the ends
+           of the gap are both sent */
+        var door = new ChangeFilter(Map.of("a", ChangeFilter.Rule.swingingDoor(1, 0)));
+        assertEquals(List.of(0L, 1L, 2L, 3L, 4L), seconds(run(door, in)));
+    }
+
+    @Test
+    void otherSchemasPassUntouched() {
+        var filter = new ChangeFilter(Map.of("a", ChangeFilter.Rule.deadband(1, 0)));
+        var in = new ArrayList<Sample>();
+        for (int i = 0; i < 5; i++) {
+            in.add(new Sample("dev", i * SECOND, Sensors.TEMPERATURE, 20));
+        }
+        assertEquals(in, run(filter, in));
+    }
+
+    @Test
+    void lateSamplesAreSuppressed() {
+        var filter = new ChangeFilter(Map.of("a", ChangeFilter.Rule.deadband(1, 0)));
+        var in = List.of(sample(5, 20), sample(4, 30), sample(5, 30), sample(6, 30));
+        assertEquals(List.of(5L, 6L), seconds(run(filter, in)));
+    }
+
+    @Test
+    void negativeThresholdsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> ChangeFilter.Rule.deadband(-1, 0));
+        assertThrows(IllegalArgumentException.class, () -> ChangeFilter.Rule.swingingDoor(0, Double.NaN));
+        assertThrows(IllegalArgumentException.class, () -> new ChangeFilter(Map.of(), 0));
+    }
+}
@@ -0,0 +1,78 @@
+package hegemone.sensors;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/* the drivers against the recordings in dumps/ */
+class ReplayI2CBusTest {
+    private static ReplayI2CBus replay(String dump) throws IOException {
+        return new ReplayI2CBus(I2CTrace.load(Path.of("dumps", dump)), false, false);
+    }
+
+    @Test
+    void ambientLightReadsTheRecordedValues() throws IOException {
+        var bus = replay("veml7700_i2c_trace.log");
+        var light = new AmbientLight(bus);
+        /* ALS words of the trace, low byte first */
+        int[] expected = {0x016a, 0xe615, 0x0028, 0x724d, 0x0259, 0x2dbb, 0x2650, 0x2aee};
+        var read = new int[expected.length];
+        for (int i = 0; i < read.length; i++) {
+            read[i] = light.getAmbientLight();
+        }
+        assertArrayEquals(expected, read);
+        assertEquals(expected.length, bus.getMatched());
+        assertEquals(0, bus.getUnmatched());
+        /* past the end of the recording */
+        assertEquals(0, light.getAmbientLight());
+        assertEquals(1, bus.getUnmatched());
+    }
+
+    @Test
+    void ambientLightConfigurationIsTheRecordedOne() throws IOException {
+        var bus = replay("veml7700_i2c_trace.log");
+        var light = new AmbientLight(bus);
+        /* 1/8 gain and 25 ms, written once near the end of the trace */
+        light.configure();
+        assertEquals(1, bus.getMatched());
+        assertEquals(0, bus.getUnmatched());
+        int[] after = {0x0259, 0x2dbb, 0x2650, 0x2aee};
+        for (int v : after) {
+            assertEquals(v, light.getAmbientLight());
+        }
+        assertEquals(0, bus.getRemaining());
+    }
+
+    @Test
+    void spectrometerSendsTheRecordedSmuxTable() throws IOException {
+        var bus = replay("hegemone-debug-log.txt");
+        var spectrometer = new Spectrometer(bus);
+        spectrometer.configure();
+        /* PON, CONFIG, ASTEP, ATIME, GAIN and SPM; the interrupt setup is newer than the recording */
+        assertEquals(7, bus.getMatched());
+        assertEquals(3, bus.getUnmatched());
+
+        /* the recording stops before AVALID: STATUS2 reads 0, the
+           measurement times out and the chip is power cycled */
+        spectrometer.setIntegrationTime(0, 0);
+        var flux = new int[10];
+        for (int i = 0; i < flux.length; i++) {
+            flux[i] = -1;
+        }
+        assertFalse(spectrometer.getPhotonFlux(flux));
+        assertArrayEquals(new int[10], flux);
+        /* PON, the SMUX write command, all 20 bytes of the F1-F6 table, EXEC
+           SMUX, PON again and the STATUS2 poll each matched a recorded transfer */
+        assertEquals(7 + 2 + 20 + 1 + 1 + 1, bus.getMatched());
+
+        /* and the last recorded transfer: no error bits in STATUS6 */
+        assertEquals(1, bus.getRemaining());
+        assertEquals("{}", spectrometer.chipError());
+        assertEquals(0, bus.getRemaining());
+    }
+}
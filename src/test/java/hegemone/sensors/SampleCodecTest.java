@@ -0,0 +1,119 @@
+package hegemone.sensors;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SampleCodecTest {
+    private static final SampleSchema OTHER = new SampleSchema("other", "x", "y");
+
+    /* soil, temperatures and a schema defined in the stream, some NaN and some all NaN */
+    private static List<Sample> samples(String device, long start, int n) {
+        var out = new ArrayList<Sample>();
+        for (int i = 0; i < n; i++) {
+            long t = start + i * 1_000_000L + (i % 3) * 17;
+            out.add(new Sample(device, t, Sensors.SOIL, 500 + i % 7, i % 5 == 0 ? Double.NaN : 21.5 + i * 0.125));
+            out.add(new Sample(device + "/air", t, Sensors.TEMPERATURE, i % 4 == 1 ? Double.NaN : 20.125 - i * 0.5));
+            out.add(new Sample(device, t, OTHER, i * 0.25, -i));
+        }
+        return out;
+    }
+
+    private record Encoded(byte[] bytes, int[] ends) {
+    }
+
+    /* the stream and the offset each sample ends at */
+    private static Encoded encode(List<Sample> samples, boolean sync) throws IOException {
+        var out = new ByteArrayOutputStream();
+        var encoder = new SampleCodec.Encoder(out, sync);
+        var ends = new int[samples.size()];
+        for (int i = 0; i < ends.length; i++) {
+            encoder.write(samples.get(i));
+            ends[i] = out.size();
+        }
+        return new Encoded(out.toByteArray(), ends);
+    }
+
+    private static List<Sample> decode(byte[] bytes, SampleCodec.Decoder[] decoder) throws IOException {
+        decoder[0] = new SampleCodec.Decoder(new ByteArrayInputStream(bytes));
+        var out = new ArrayList<Sample>();
+        for (Sample s; (s = decoder[0].read()) != null; ) {
+            out.add(s);
+        }
+        return out;
+    }
+
+    private static List<Sample> decode(byte[] bytes) throws IOException {
+        return decode(bytes, new SampleCodec.Decoder[1]);
+    }
+
+    private static byte[] concat(byte[] a, int length, byte[] b) {
+        var out = Arrays.copyOf(a, length + b.length);
+        System.arraycopy(b, 0, out, length, b.length);
+        return out;
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+        for (var sync : new boolean[]{false, true}) {
+            var samples = samples("station", 1_792_000_000_000_000L, 50);
+            assertEquals(samples, decode(encode(samples, sync).bytes()));
+        }
+    }
+
+    @Test
+    void concatenatedStreamsResetState() throws IOException {
+        var first = samples("a", 1_792_000_000_000_000L, 10);
+        var second = samples("b", 1_792_000_100_000_000L, 10);
+        var a = encode(first, false).bytes();
+        var all = new ArrayList<>(first);
+        all.addAll(second);
+        assertEquals(all, decode(concat(a, a.length, encode(second, false).bytes())));
+    }
+
+    /* a power loss in the middle of the dump, then the next daemon start */
+    @Test
+    void streamAfterACutOneDecodes() throws IOException {
+        var first = samples("a", 1_792_000_000_000_000L, 20);
+        var second = samples("b", 1_792_000_100_000_000L, 20);
+        var a = encode(first, true);
+        var b = encode(second, true).bytes();
+        for (int cut = 0; cut <= a.bytes().length; cut++) {
+            int complete = 0;
+            while (complete < a.ends().length && a.ends()[complete] <= cut) {
+                complete++;
+            }
+            var expected = new ArrayList<>(first.subList(0, complete));
+            expected.addAll(second);
+            var decoder = new SampleCodec.Decoder[1];
+            assertEquals(expected, decode(concat(a.bytes(), cut, b), decoder), "cut at " + cut);
+            /* at most what follows the last whole sample, a device or schema record may be whole too */
+            long tail = cut - (complete > 0 ? a.ends()[complete - 1] : 0);
+            assertTrue(decoder[0].getSkipped() <= tail, "cut at " + cut);
+        }
+    }
+
+    @Test
+    void cutEndIsSkipped() throws IOException {
+        var samples = samples("a", 1_792_000_000_000_000L, 5);
+        var a = encode(samples, true);
+        var decoder = new SampleCodec.Decoder[1];
+        int cut = a.ends()[3] + 2;
+        assertEquals(samples.subList(0, 4), decode(Arrays.copyOf(a.bytes(), cut), decoder));
+        assertEquals(2, decoder[0].getSkipped());
+    }
+
+    @Test
+    void otherDataIsNoStream() {
+        assertThrows(IOException.class, () -> decode(new byte[]{0x10, 0x20, 0x30, 0x40, 0x50}));
+    }
+}
@@ -0,0 +1,184 @@
+package hegemone.sensors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SampleStoreTest {
+    private static final SampleSchema SCHEMA = new SampleSchema("test", "a", "b");
+    private static final SampleStore.SeriesKey A = new SampleStore.SeriesKey("dev", "test", "a");
+    private static final SampleStore.SeriesKey B = new SampleStore.SeriesKey("dev", "test", "b");
+    private static final long DAY_MS = TimeUnit.DAYS.toMillis(1);
+
+    @TempDir
+    File dir;
+
+    private record Point(long timestamp, double value) {
+    }
+
+    private static long now() {
+        return TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    }
+
+    private static List<Point> scan(SampleStore store, SampleStore.SeriesKey key) throws IOException {
+        var out = new ArrayList<Point>();
+        store.scan(key, Long.MIN_VALUE, Long.MAX_VALUE, (t, v) -> out.add(new Point(t, v)));
+        return out;
+    }
+
+    /* a and b of every sample, b random bits */
+    private static void write(SampleStore store, List<Point> a, List<Point> b, long start, int n, Random random) {
+        long t = start;
+        double v = 20;
+        for (int i = 0; i < n; i++) {
+            /* mostly regular, now and then every size of jitter */
+            t += switch (random.nextInt(10)) {
+                case 0 -> random.nextInt(1 << 12);
+                case 1 -> random.nextInt(1 << 18);
+                case 2 -> 1L << 30;
+                case 3 -> 1L << 40;
+                default -> 1_000_000;
+            };
+            v += random.nextInt(5) == 0 ? random.nextGaussian() : 0;
+            double r = Double.longBitsToDouble(random.nextLong());
+            if (Double.isNaN(r)) {
+                r = -0.0;
+            }
+            store.accept(new Sample("dev", t, SCHEMA, new double[]{v, r}));
+            a.add(new Point(t, v));
+            b.add(new Point(t, r));
+        }
+    }
+
+    @Test
+    void pointsComeBackExactly() throws IOException {
+        var a = new ArrayList<Point>();
+        var b = new ArrayList<Point>();
+        try (var store = new SampleStore(dir)) {
+            write(store, a, b, now() - TimeUnit.HOURS.toMicros(1), 5000, new Random(1));
+            assertTrue(store.getUsedBlocks() > 2, "spans several blocks");
+            assertEquals(a, scan(store, A));
+            assertEquals(b, scan(store, B));
+            assertEquals(List.of(A, B), store.getSeries());
+
+            long from = a.get(1000).timestamp();
+            long to = a.get(2000).timestamp();
+            var range = new ArrayList<Point>();
+            assertEquals(1000, store.scan(A, from, to, (t, v) -> range.add(new Point(t, v))));
+            assertEquals(a.subList(1000, 2000), range);
+        }
+    }
+
+    @Test
+    void downsamplesPerStep() throws IOException {
+        try (var store = new SampleStore(dir)) {
+            long start = now() - TimeUnit.HOURS.toMicros(1);
+            for (int i = 0; i < 600; i++) {
+                store.accept(new Sample("dev", start + i * 1_000_000L, SCHEMA, new double[]{i, Double.NaN}));
+            }
+            var buckets = store.downsample(A, start, start + 600_000_000L, 60_000_000L);
+            assertEquals(10, buckets.size());
+            for (int i = 0; i < 10; i++) {
+                var bucket = buckets.get(i);
+                assertEquals(start + i * 60_000_000L, bucket.start());
+                assertEquals(60, bucket.count());
+                assertEquals(i * 60, bucket.min());
+                assertEquals(i * 60 + 59, bucket.max());
+                assertEquals(i * 60 + 29.5, bucket.mean());
+                assertEquals(i * 60 + 59, bucket.last());
+            }
+            /* NaN is not stored */
+            assertEquals(List.of(), scan(store, B));
+        }
+    }
+
+    @Test
+    void reopenContinuesTheHeadBlock() throws IOException {
+        var a = new ArrayList<Point>();
+        var b = new ArrayList<Point>();
+        var random = new Random(2);
+        long start = now() - TimeUnit.HOURS.toMicros(1);
+        int used;
+        try (var store = new SampleStore(dir)) {
+            write(store, a, b, start, 100, random);
+            used = store.getUsedBlocks();
+        }
+        try (var store = new SampleStore(dir)) {
+            assertEquals(a, scan(store, A));
+            assertEquals(b, scan(store, B));
+            write(store, a, b, a.get(a.size() - 1).timestamp(), 100, random);
+            assertEquals(used, store.getUsedBlocks(), "appends to the partial head blocks");
+            /* not closed, as after a crash */
+            store.sync();
+            try (var after = new SampleStore(dir)) {
+                assertEquals(a, scan(after, A));
+                assertEquals(b, scan(after, B));
+            }
+        }
+    }
+
+    @Test
+    void rejectsPointsOlderThanTheHead() throws IOException {
+        try (var store = new SampleStore(dir)) {
+            long t = now();
+            store.accept(new Sample("dev", t, SCHEMA, new double[]{1, 1}));
+            store.accept(new Sample("dev", t - 1, SCHEMA, new double[]{2, 2}));
+            store.accept(new Sample("dev", t, SCHEMA, new double[]{3, 3}));
+            assertEquals(List.of(new Point(t, 1), new Point(t, 3)), scan(store, A));
+        }
+    }
+
+    @Test
+    void expiredBlocksAreReused() throws IOException {
+        var random = new Random(3);
+        long old = now() - TimeUnit.DAYS.toMicros(2);
+        var expired = new ArrayList<Sample>();
+        for (int i = 0; i < 2000; i++) {
+            expired.add(new Sample("old", old + i, SCHEMA, new double[]{random.nextDouble(), random.nextDouble()}));
+        }
+        var data = new File(dir, "history.db");
+        try (var store = new SampleStore(dir, DAY_MS, SampleStore.DEFAULT_MAX_BYTES)) {
+            /* the first batch also runs the first eviction */
+            store.acceptBatch(expired);
+            assertEquals(0, store.getUsedBlocks());
+            assertEquals(List.of(), store.getSeries());
+            long length = data.length();
+            assertTrue(length >= 4L * SampleStore.BLOCK_SIZE);
+
+            var a = new ArrayList<Point>();
+            var b = new ArrayList<Point>();
+            write(store, a, b, now() - TimeUnit.HOURS.toMicros(1), 1500, random);
+            assertEquals(length, data.length(), "written into the evicted blocks");
+            assertEquals(a, scan(store, A));
+            assertEquals(b, scan(store, B));
+        }
+    }
+
+    @Test
+    void fullStoreEvictsTheOldestBlocks() throws IOException {
+        var a = new ArrayList<Point>();
+        var b = new ArrayList<Point>();
+        long maxBytes = 16L * SampleStore.BLOCK_SIZE;
+        try (var store = new SampleStore(dir, DAY_MS, maxBytes)) {
+            write(store, a, b, now() - TimeUnit.HOURS.toMicros(1), 20_000, new Random(4));
+            assertEquals(maxBytes, new File(dir, "history.db").length());
+            assertEquals(16, store.getUsedBlocks());
+
+            /* what is left is the newest points, without gaps */
+            var keptA = scan(store, A);
+            var keptB = scan(store, B);
+            assertTrue(keptB.size() < b.size());
+            assertEquals(a.subList(a.size() - keptA.size(), a.size()), keptA);
+            assertEquals(b.subList(b.size() - keptB.size(), b.size()), keptB);
+        }
+    }
+}
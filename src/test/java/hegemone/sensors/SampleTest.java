@@ -0,0 +1,46 @@
+package hegemone.sensors;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SampleTest {
+    @Test
+    void jsonEscapesStrings() {
+        var schema = new SampleSchema("t", "a\"b");
+        var sample = new Sample("st\"a\\tion/\tbed\u0001", 5, schema, 1.5);
+        assertEquals("{\"device_id\":\"st\\\"a\\\\tion/\\tbed\\u0001\",\"timestamp\":5,\"a\\\"b\":1.5}",
+                sample.toJSON());
+    }
+
+    @Test
+    void jsonWritesWholeNumbersAndNull() {
+        var sample = new Sample("d", 1, Sensors.SOIL, 512, Double.NaN);
+        assertEquals("{\"device_id\":\"d\",\"timestamp\":1,\"moisture_level\":512,\"soil_temp\":null}",
+                sample.toJSON());
+    }
+
+    @Test
+    void legacyJsonNestsTheSpectralGroups() {
+        var values = new double[Sensors.SPECTRAL.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+        var sample = new Sample("d", 1, Sensors.SPECTRAL, values);
+        assertEquals("{\"device_id\":\"d\",\"timestamp\":1,"
+                        + "\"light_band_red\":17,\"light_band_blue\":18,\"light_band_green\":19,\"light_band_far_red\":20,"
+                        + "\"ppfd\":21,\"red_far_red\":22,\"dli\":23,"
+                        + "\"spectral_data\":[0,1,2,3,4,5,6,7,8,9],"
+                        + "\"light_measurement\":{\"red\":10,\"blue\":11,\"green\":12,\"far_red\":13},"
+                        + "\"rlqi\":{\"blue\":14,\"green\":15,\"red\":16}}",
+                sample.toLegacyJSON(new StringBuilder()).toString());
+    }
+
+    @Test
+    void legacyJsonOfOtherGroups() {
+        assertEquals("{\"device_id\":\"d\",\"timestamp\":1,\"light_measurement\":{\"white\":300}}",
+                new Sample("d", 1, Sensors.LIGHT, 300).toLegacyJSON(new StringBuilder()).toString());
+        assertEquals("{\"device_id\":\"d\",\"timestamp\":1,\"moisture_level\":512,\"soil_temp\":21.5}",
+                new Sample("d", 1, Sensors.SOIL, 512, 21.5).toLegacyJSON(new StringBuilder()).toString());
+    }
+}
@@ -0,0 +1,62 @@
+package hegemone.sensors;
+
+import io.helins.linux.i2c.I2CBuffer;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SimulatedSeesawTest {
+    /* touch channel 0, as Soil commands it */
+    private static final int TOUCH_BASE = 0x0F;
+    private static final int TOUCH_CHANNEL = 0x10;
+
+    private static SimulatedI2CBus bus(SimulatedSeesaw seesaw) {
+        return new SimulatedI2CBus(false).attach(DeviceTree.ADAFRUIT_SOIL_SENSOR, seesaw);
+    }
+
+    private static int moisture(I2CPort bus) throws IOException {
+        var buf = new I2CBuffer(2);
+        bus.read(buf);
+        return buf.get(0) << 8 | buf.get(1);
+    }
+
+    @Test
+    void readTooEarlyIsAllOnes() throws IOException {
+        var seesaw = new SimulatedSeesaw(true);
+        seesaw.setMoisture(700);
+        var bus = bus(seesaw);
+        bus.selectSlave(DeviceTree.ADAFRUIT_SOIL_SENSOR);
+        bus.write(new I2CBuffer(2).set(0, TOUCH_BASE).set(1, TOUCH_CHANNEL));
+        assertEquals(0xFFFF, moisture(bus));
+
+        /* the wait the Adafruit library uses */
+        Utils.suspend(3000);
+        int m = moisture(bus);
+        assertTrue(m >= 697 && m <= 703, "moisture " + m);
+    }
+
+    @Test
+    void untimedAnswersAtOnce() throws IOException {
+        var seesaw = new SimulatedSeesaw(false);
+        seesaw.setMoisture(400);
+        var bus = bus(seesaw);
+        bus.selectSlave(DeviceTree.ADAFRUIT_SOIL_SENSOR);
+        bus.write(new I2CBuffer(2).set(0, TOUCH_BASE).set(1, TOUCH_CHANNEL));
+        int m = moisture(bus);
+        assertTrue(m >= 397 && m <= 403, "moisture " + m);
+    }
+
+    @Test
+    void soilWaitsForTheChip() {
+        var seesaw = new SimulatedSeesaw(true);
+        seesaw.setMoisture(512);
+        seesaw.setTemperature(23.25);
+        var soil = new Soil(bus(seesaw));
+        int m = soil.getMoisture();
+        assertTrue(m >= 509 && m <= 515, "moisture " + m);
+        assertEquals(23.25, soil.getTemperature(), 1e-3);
+    }
+}
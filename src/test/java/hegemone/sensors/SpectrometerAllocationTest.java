@@ -0,0 +1,62 @@
+package hegemone.sensors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/* the spectral read path on the untimed simulated bus, as in
+   AcquisitionBenchmark, must not allocate once compiled */
+class SpectrometerAllocationTest {
+    private static final int WARMUP = 50_000;
+    private static final int ITERATIONS = 10_000;
+
+    private AcquisitionPipeline pipeline;
+    private SimulatedOneWire oneWire;
+    private Spectrometer spectrometer;
+    private final int[] flux = new int[10];
+
+    @BeforeEach
+    void setup() throws Exception {
+        pipeline = new AcquisitionPipeline();
+        oneWire = SimulatedOneWire.hegemoneBoard(Files.createTempDirectory("hegemone-w1").toFile());
+        var sensors = new Sensors(pipeline, SimulatedI2CBus.hegemoneBoard(false), oneWire.getBusMaster());
+        spectrometer = sensors.getSpectralSensor();
+        spectrometer.setIntegrationTime(0, 0);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pipeline.close();
+        oneWire.close();
+    }
+
+    private boolean read(int n) {
+        boolean ok = true;
+        for (int i = 0; i < n; i++) {
+            ok &= spectrometer.getPhotonFlux(flux);
+        }
+        return ok;
+    }
+
+    @Test
+    void getPhotonFluxDoesNotAllocate() {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        assertTrue(read(WARMUP));
+        /* what the two calls themselves cost */
+        long before = threads.getThreadAllocatedBytes(thread);
+        long overhead = threads.getThreadAllocatedBytes(thread) - before;
+
+        before = threads.getThreadAllocatedBytes(thread);
+        boolean ok = read(ITERATIONS);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before - overhead;
+        assertTrue(ok);
+        assertEquals(0, allocated, allocated + " bytes in " + ITERATIONS + " reads");
+    }
+}
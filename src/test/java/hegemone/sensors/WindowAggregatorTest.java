@@ -0,0 +1,189 @@
+package hegemone.sensors;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WindowAggregatorTest {
+    private static final SampleSchema SCHEMA = new SampleSchema("test", "a", "b");
+    private static final long SECOND = 1_000_000;
+    /* a multiple of every window below */
+    private static final long BASE = 1_792_000_000L * SECOND;
+
+    /* a is the value, b never read */
+    private static Sample sample(long second, double a) {
+        return new Sample("dev", BASE + second * SECOND, SCHEMA, new double[]{a, Double.NaN});
+    }
+
+    private static List<Sample> run(WindowAggregator aggregator, List<Sample> in) {
+        var out = new ArrayList<Sample>();
+        for (var s : in) {
+            aggregator.process(s, out::add);
+        }
+        return out;
+    }
+
+    /* value t at second t, from..to */
+    private static List<Sample> ramp(int from, int to) {
+        var out = new ArrayList<Sample>();
+        for (int t = from; t <= to; t++) {
+            out.add(sample(t, t));
+        }
+        return out;
+    }
+
+    private static double stat(Sample summary, String channel) {
+        int i = summary.getSchema().indexOf(channel);
+        assertTrue(i >= 0, channel + " in " + summary.getSchema());
+        return summary.value(i);
+    }
+
+    private static long end(Sample summary) {
+        return (summary.getTimestamp() - BASE) / SECOND;
+    }
+
+    /* count, min, max, mean and stddev of the consecutive integers from..to */
+    private static void assertRange(Sample summary, String prefix, int from, int to) {
+        int n = to - from + 1;
+        assertEquals(n, stat(summary, prefix + "count"));
+        assertEquals(from, stat(summary, prefix + "min"));
+        assertEquals(to, stat(summary, prefix + "max"));
+        assertEquals((from + to) / 2.0, stat(summary, prefix + "mean"), 1e-9);
+        assertEquals(Math.sqrt((n * n - 1) / 12.0), stat(summary, prefix + "stddev"), 1e-9);
+    }
+
+    @Test
+    void tumblingWindows() {
+        var window = WindowAggregator.Window.tumbling(10_000);
+        var aggregator = new WindowAggregator(List.of(window), SCHEMA);
+        var out = run(aggregator, ramp(1, 21));
+        assertEquals(2, out.size());
+        assertEquals(2, aggregator.getEmitted());
+
+        /* (0, 10]: the sample at the end is in, the one at the start of the next is not */
+        var first = out.get(0);
+        assertSame(aggregator.getSummarySchema(SCHEMA, window), first.getSchema());
+        assertEquals(10, end(first));
+        assertRange(first, "a_10s_", 1, 10);
+        /* nearest rank of 1..10 */
+        assertEquals(5, stat(first, "a_10s_p50"));
+        assertEquals(9, stat(first, "a_10s_p90"));
+        assertEquals(10, stat(first, "a_10s_p99"));
+
+        var second = out.get(1);
+        assertEquals(20, end(second));
+        assertRange(second, "a_10s_", 11, 20);
+        assertEquals(15, stat(second, "a_10s_p50"));
+        assertEquals(19, stat(second, "a_10s_p90"));
+    }
+
+    @Test
+    void slidingWindows() {
+        var aggregator = new WindowAggregator(List.of(WindowAggregator.Window.sliding(10_000, 5_000)), SCHEMA);
+        var out = run(aggregator, ramp(1, 21));
+        var ends = new ArrayList<Long>();
+        for (var s : out) {
+            ends.add(end(s));
+        }
+        assertEquals(List.of(5L, 10L, 15L, 20L), ends);
+        assertRange(out.get(0), "a_10s_by_5s_", 1, 5);
+        assertRange(out.get(1), "a_10s_by_5s_", 1, 10);
+        assertRange(out.get(2), "a_10s_by_5s_", 6, 15);
+        assertRange(out.get(3), "a_10s_by_5s_", 11, 20);
+        assertEquals(10, stat(out.get(2), "a_10s_by_5s_p50"));
+        assertEquals(14, stat(out.get(2), "a_10s_by_5s_p90"));
+    }
+
+    @Test
+    void windowsWaitForTheNextSample() {
+        var aggregator = new WindowAggregator(List.of(WindowAggregator.Window.tumbling(10_000)), SCHEMA);
+        assertEquals(1, run(aggregator, ramp(1, 20)).size());
+        /* a sample at the end is still in (10, 20] */
+        assertEquals(List.of(), run(aggregator, List.of(sample(20, 20))));
+        var out = run(aggregator, List.of(sample(30, 30)));
+        assertEquals(1, out.size());
+        assertEquals(20, end(out.get(0)));
+        assertEquals(11, stat(out.get(0), "a_10s_count"));
+    }
+
+    @Test
+    void unreadChannelReportsNoValues() {
+        var aggregator = new WindowAggregator(List.of(WindowAggregator.Window.tumbling(10_000)), SCHEMA);
+        var summary = run(aggregator, ramp(1, 11)).get(0);
+        assertEquals(0, stat(summary, "b_10s_count"));
+        for (var s : new String[]{"min", "max", "mean", "stddev", "p50", "p90", "p99"}) {
+            assertTrue(Double.isNaN(stat(summary, "b_10s_" + s)), s);
+        }
+    }
+
+    @Test
+    void gapSkipsTheEmptyWindows() {
+        var window = WindowAggregator.Window.sliding(2, 1);
+        var aggregator = new WindowAggregator(List.of(window), SCHEMA);
+        /* a year of 1 ms hops in between, not walked one by one */
+        long year = 365L * 24 * 3600;
+        var out = assertTimeoutPreemptively(Duration.ofSeconds(5),
+                () -> run(aggregator, List.of(sample(1, 1), sample(year, 2), sample(year + 1, 3))));
+        var ends = new ArrayList<Long>();
+        for (var s : out) {
+            ends.add(s.getTimestamp() - BASE);
+        }
+        /* the two windows of the first sample, then those of the second */
+        assertEquals(List.of(SECOND, SECOND + 1000, year * SECOND, year * SECOND + 1000), ends);
+        assertEquals(1, stat(out.get(1), "a_2ms_by_1ms_min"));
+        assertEquals(2, stat(out.get(2), "a_2ms_by_1ms_min"));
+    }
+
+    @Test
+    void fullRingSummarizesTheNewest() {
+        var aggregator = new WindowAggregator(List.of(WindowAggregator.Window.tumbling(10_000)), 4,
+                WindowAggregator.DEFAULT_QUANTILES, SCHEMA);
+        var out = run(aggregator, ramp(1, 11));
+        assertEquals(6, aggregator.getOverflowed());
+        assertRange(out.get(0), "a_10s_", 7, 10);
+    }
+
+    @Test
+    void nearestRankQuantiles() {
+        var aggregator = new WindowAggregator(List.of(WindowAggregator.Window.tumbling(10_000)), 16,
+                new double[]{0.25, 0.5, 0.9, 0.995, 1}, SCHEMA);
+        var in = new ArrayList<Sample>();
+        double[] values = {5, 1, 4, 2, 3};
+        for (int i = 0; i < values.length; i++) {
+            in.add(sample(i + 1, values[i]));
+        }
+        in.add(sample(11, 0));
+        var summary = run(aggregator, in).get(0);
+        /* ceil(q * n)-th smallest */
+        assertEquals(2, stat(summary, "a_10s_p25"));
+        assertEquals(3, stat(summary, "a_10s_p50"));
+        assertEquals(5, stat(summary, "a_10s_p90"));
+        assertEquals(5, stat(summary, "a_10s_p99_5"));
+        assertEquals(5, stat(summary, "a_10s_p100"));
+        assertEquals(Math.sqrt(2), stat(summary, "a_10s_stddev"), 1e-9);
+    }
+
+    @Test
+    void lateSamplesAreDropped() {
+        var aggregator = new WindowAggregator(List.of(WindowAggregator.Window.tumbling(10_000)), SCHEMA);
+        var out = run(aggregator, List.of(sample(5, 1), sample(3, 100), sample(6, 2), sample(11, 0)));
+        assertEquals(1, aggregator.getLate());
+        assertEquals(2, stat(out.get(0), "a_10s_count"));
+        assertEquals(2, stat(out.get(0), "a_10s_max"));
+    }
+
+    @Test
+    void otherSchemasPassThrough() {
+        var aggregator = new WindowAggregator(List.of(WindowAggregator.Window.tumbling(10_000)), SCHEMA);
+        var sample = new Sample("dev", BASE, Sensors.TEMPERATURE, 20);
+        assertEquals(List.of(sample), run(aggregator, List.of(sample)));
+        assertEquals(0, aggregator.getEmitted());
+    }
+}